@@ -0,0 +1,150 @@
+package com.lucidworks;
+
+import java.util.Locale;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.codahale.metrics.Histogram;
+
+/**
+ * Picks the batch size and the number of batches in flight from the observed send latency,
+ * AIMD style: after every window of sends, if the average latency was under the target the
+ * batch size goes up by a step (or, once it's at the max, one more batch is let in flight), and
+ * if it was over, the number in flight is halved (or, once it's down to 1, the batch size is
+ * cut by 30%). A failed send halves both right away. Bigger batches are cheaper per doc, so
+ * they're grown first; concurrency is what piles up in Solr's queues, so it's cut first.
+ *
+ * Given as MIN:MAX:TARGET_MS, e.g. 10:2000:250. Thread-safe.
+ */
+public class AdaptiveBatchController {
+
+  private static final Log log = LogFactory.getLog(AdaptiveBatchController.class);
+
+  static final int WINDOW = 8;
+  static final double DECREASE = 0.7d;
+
+  final int minBatchSize;
+  final int maxBatchSize;
+  final long targetNanos;
+  final int maxInFlight;
+  final int step;
+
+  private volatile int batchSize;
+  private int inFlightLimit;
+  private int inFlight = 0;
+
+  private int windowSends = 0;
+  private long windowNanos = 0;
+
+  private Histogram batchSizes;
+  private Histogram inFlightLimits;
+
+  AdaptiveBatchController(int minBatchSize, int maxBatchSize, long targetMs, int startBatchSize, int maxInFlight) {
+    if (minBatchSize < 1 || maxBatchSize < minBatchSize || targetMs <= 0)
+      throw new IllegalArgumentException("Adaptive batch bounds must be 1 <= min <= max with a target > 0 ms, not " +
+        minBatchSize + ":" + maxBatchSize + ":" + targetMs);
+    this.minBatchSize = minBatchSize;
+    this.maxBatchSize = maxBatchSize;
+    this.targetNanos = targetMs * 1000000L;
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.step = Math.max(1, (maxBatchSize - minBatchSize) / 20);
+    this.batchSize = Math.min(maxBatchSize, Math.max(minBatchSize, startBatchSize));
+    this.inFlightLimit = this.maxInFlight;
+  }
+
+  /**
+   * Parses a MIN:MAX:TARGET_MS spec; batches start at startBatchSize (kept within the bounds)
+   * and up to maxInFlight batches can be sent at once.
+   */
+  public static AdaptiveBatchController parse(String spec, int startBatchSize, int maxInFlight) {
+    String[] parts = spec.trim().split(":");
+    if (parts.length == 3) {
+      try {
+        return new AdaptiveBatchController(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+          Long.parseLong(parts[2].trim()), startBatchSize, maxInFlight);
+      } catch (NumberFormatException nfe) {
+        // fall through
+      }
+    }
+    throw new IllegalArgumentException("Invalid adaptive batch spec [" + spec + "]; expected MIN:MAX:TARGET_MS, e.g. 10:2000:250");
+  }
+
+  /**
+   * Reports the batch size and in-flight limit each time a batch is sent.
+   */
+  public void setMetrics(Histogram batchSizes, Histogram inFlightLimits) {
+    this.batchSizes = batchSizes;
+    this.inFlightLimits = inFlightLimits;
+  }
+
+  public int batchSize() {
+    return batchSize;
+  }
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  public synchronized int inFlightLimit() {
+    return inFlightLimit;
+  }
+
+  /**
+   * Waits until another batch is allowed in flight; must be followed by a call to completed.
+   */
+  public synchronized void acquire() throws InterruptedException {
+    while (inFlight >= inFlightLimit)
+      wait();
+    ++inFlight;
+  }
+
+  /**
+   * Records how a send went and adjusts the batch size and in-flight limit at the end of a window.
+   */
+  public synchronized void completed(int numDocs, long nanos, boolean ok) {
+    --inFlight;
+    if (batchSizes != null) {
+      batchSizes.update(numDocs);
+      inFlightLimits.update(inFlightLimit);
+    }
+
+    if (!ok) {
+      batchSize = Math.max(minBatchSize, batchSize / 2);
+      inFlightLimit = Math.max(1, inFlightLimit / 2);
+      resetWindow("send failed");
+      notifyAll();
+      return;
+    }
+
+    windowNanos += nanos;
+    if (++windowSends >= WINDOW) {
+      long avgNanos = windowNanos / windowSends;
+      if (avgNanos > targetNanos) {
+        if (inFlightLimit > 1) {
+          inFlightLimit = Math.max(1, inFlightLimit / 2);
+        } else {
+          batchSize = Math.max(minBatchSize, (int) (batchSize * DECREASE));
+        }
+      } else if (batchSize < maxBatchSize) {
+        batchSize = Math.min(maxBatchSize, batchSize + step);
+      } else if (inFlightLimit < maxInFlight) {
+        ++inFlightLimit;
+      }
+      resetWindow(String.format(Locale.ROOT, "avg latency %.1f ms", avgNanos / 1e6d));
+    }
+    notifyAll();
+  }
+
+  private void resetWindow(String why) {
+    if (log.isDebugEnabled())
+      log.debug(why + "; batch size is now " + batchSize + " with " + inFlightLimit + " in flight");
+    windowSends = 0;
+    windowNanos = 0;
+  }
+
+  public synchronized String toString() {
+    return "batchSize=" + batchSize + " (" + minBatchSize + ".." + maxBatchSize + "), inFlight=" + inFlightLimit +
+      " (1.." + maxInFlight + "), target=" + (targetNanos / 1000000L) + "ms";
+  }
+}
@@ -0,0 +1,82 @@
+package com.lucidworks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+/**
+ * Records each request a sampler sends during one runTest (a batch of docs, a corpus block, a
+ * mixed-workload op) so they can be added to its SampleResult as sub-results, giving JMeter's
+ * listeners per-batch latencies and throughput instead of one sample for the whole loop.
+ * Recording is a small object added to a list under a lock, so it's safe to call from sender
+ * threads and callbacks; the SampleResults aren't built until the loop is done. Only the first
+ * maxResults requests are kept, so a big NUM_DOCS_PER_LOOP can't bloat the results file.
+ */
+public class BatchResults {
+
+  static final class Entry {
+    final String label;
+    final long startMs;
+    final long elapsedMs;
+    final int numDocs;
+    final long bytes;
+    final String error;
+
+    Entry(String label, long startMs, long elapsedMs, int numDocs, long bytes, String error) {
+      this.label = label;
+      this.startMs = startMs;
+      this.elapsedMs = elapsedMs;
+      this.numDocs = numDocs;
+      this.bytes = bytes;
+      this.error = error;
+    }
+  }
+
+  final int maxResults;
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private int numRecorded = 0;
+  private long totalBytes = 0L;
+
+  public BatchResults(int maxResults) {
+    this.maxResults = maxResults;
+  }
+
+  /**
+   * Records a request that took from startMs until now; bytes is the size of the request body,
+   * or 0 if it wasn't known (e.g. javabin written by SolrJ), and error is null if it succeeded.
+   */
+  public void record(String label, long startMs, int numDocs, long bytes, Throwable error) {
+    long elapsedMs = System.currentTimeMillis() - startMs;
+    synchronized (this) {
+      ++numRecorded;
+      totalBytes += bytes;
+      if (entries.size() < maxResults)
+        entries.add(new Entry(label, startMs, elapsedMs, numDocs, bytes, (error != null) ? error.toString() : null));
+    }
+  }
+
+  /**
+   * Adds a sub-result per recorded request to the parent, which keeps its own start and end
+   * times, and sets its bytes to the total over all requests, including any not kept.
+   */
+  public synchronized void addTo(SampleResult parent) {
+    for (Entry entry : entries) {
+      SampleResult sub = new SampleResult(entry.startMs, entry.elapsedMs);
+      sub.setSampleLabel(entry.label);
+      sub.setBytes((int) Math.min(Integer.MAX_VALUE, entry.bytes));
+      sub.setSuccessful(entry.error == null);
+      if (entry.error == null) {
+        sub.setResponseCodeOK();
+        sub.setResponseMessage(entry.numDocs + " docs");
+      } else {
+        sub.setErrorCount(1);
+        sub.setResponseMessage(entry.error);
+      }
+      parent.storeSubResult(sub);
+    }
+    parent.setBytes((int) Math.min(Integer.MAX_VALUE, totalBytes));
+    if (numRecorded > entries.size())
+      parent.setResponseMessage("Kept sub-results for " + entries.size() + " of " + numRecorded + " requests");
+  }
+}
@@ -0,0 +1,101 @@
+package com.lucidworks;
+
+import java.util.Random;
+
+import com.lucidworks.IndexingSampler.FieldSpec;
+
+/**
+ * Nested child docs to generate under each parent doc, for block-join indexing. The number of
+ * children per parent is drawn from [min..max], either uniformly or from a Zipf distribution
+ * where min is the most likely count.
+ *
+ * The fan-out is given as min:max:u or min:max:z[exponent], e.g. 0:20:z1.2; a single number
+ * is a fixed fan-out. Parents and children are told apart by DOC_TYPE_FIELD, so block-join
+ * queries can use {!parent which="doc_type_s:parent"}.
+ */
+public class ChildDocSpec {
+
+  public static final String DOC_TYPE_FIELD = "doc_type_s";
+  public static final String PARENT = "parent";
+  public static final String CHILD = "child";
+
+  // keeps a batch of children from getting out of hand; 100 parents could have 100K children
+  static final int MAX_FAN_OUT = 1000;
+
+  final FieldSpec[] fields;
+  final int min;
+  final int max;
+  final ZipfDistribution zipf; // null for uniform
+
+  ChildDocSpec(FieldSpec[] fields, int min, int max, double zipfExponent) {
+    if (min < 0 || max < min || max > MAX_FAN_OUT)
+      throw new IllegalArgumentException("Child doc fan-out must be 0 <= min <= max <= " + MAX_FAN_OUT +
+        ", not " + min + ":" + max);
+    this.fields = fields;
+    this.min = min;
+    this.max = max;
+    this.zipf = (zipfExponent >= 0 && max > min) ? ZipfDistribution.get(max - min + 1, zipfExponent) : null;
+  }
+
+  /**
+   * Parses a fan-out spec (see class docs) for children with the given fields.
+   */
+  public static ChildDocSpec parse(String fanOut, FieldSpec[] fields) {
+    String[] parts = fanOut.trim().split(":");
+    try {
+      if (parts.length == 1) {
+        int n = Integer.parseInt(parts[0]);
+        return new ChildDocSpec(fields, n, n, -1);
+      } else if (parts.length == 3) {
+        int min = Integer.parseInt(parts[0]);
+        int max = Integer.parseInt(parts[1]);
+        String dist = parts[2];
+        if ("u".equals(dist)) {
+          return new ChildDocSpec(fields, min, max, -1);
+        } else if (dist.startsWith("z")) {
+          double exponent = (dist.length() > 1) ? Double.parseDouble(dist.substring(1)) : ZipfDistribution.DEFAULT_EXPONENT;
+          return new ChildDocSpec(fields, min, max, exponent);
+        }
+      }
+    } catch (NumberFormatException nfe) {
+      throw new IllegalArgumentException("Invalid child doc fan-out [" + fanOut + "]; expected N or min:max:u|z[exp]");
+    }
+    throw new IllegalArgumentException("Invalid child doc fan-out [" + fanOut + "]; expected N or min:max:u|z[exp]");
+  }
+
+  /**
+   * Fields for children when no doc profile defines them; a product / SKU style layout.
+   */
+  public static FieldSpec[] defaultFields() {
+    FieldSpec[] fields = new FieldSpec[] {
+      new FieldSpec("sku_s", "s:1:50000:u:0"),
+      new FieldSpec("color_s", "s:1:20:z:10"),
+      new FieldSpec("size_i", "i:1:20:u:20"),
+      new FieldSpec("price_d", "d:1:5000:u:0"),
+      new FieldSpec("stock_l", "l:1:1000:z:30"),
+      new FieldSpec("attrs_ss", "s:1:500:z:0"),
+      new FieldSpec("review_en", "s:1:20000:z:50", 30)
+    };
+    fields[5].maxValues = 5;
+    return fields;
+  }
+
+  public FieldSpec[] getFields() {
+    return fields;
+  }
+
+  public int nextNumChildren(Random rand) {
+    if (min == max)
+      return min;
+    return min + ((zipf != null) ? zipf.next(rand) : rand.nextInt(max - min + 1));
+  }
+
+  static String childId(String parentId, int childNum) {
+    return parentId + "_c" + childNum;
+  }
+
+  public String toString() {
+    return "ChildDocSpec(" + min + ":" + max + ":" + (zipf != null ? "z" + zipf.getExponent() : "u") +
+      ", " + fields.length + " fields)";
+  }
+}
@@ -0,0 +1,131 @@
+package com.lucidworks;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.HttpClient;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+/**
+ * One CloudSolrClient per (zkHost, collection) for everything in the JVM, so a test plan with
+ * hundreds of sampler threads opens one ZooKeeper session and keeps one copy of the cluster
+ * state per collection, rather than one per thread. Clients to the same zkHost also share one
+ * HttpClient, so there's one connection pool per cluster, sized for load tests.
+ *
+ * Every acquire has to be matched by a release; the client is closed when the last user
+ * releases it, and the HttpClient when the last client to its cluster is closed. Clients
+ * from here are shared, so don't close them or change their default collection.
+ */
+public class CloudSolrClients {
+
+  private static final Log log = LogFactory.getLog(CloudSolrClients.class);
+
+  static final int MAX_CONNECTIONS = 500;
+  static final int MAX_CONNECTIONS_PER_HOST = 100;
+
+  private static final class Shared {
+    final String key;
+    final String zkHost;
+    final CloudSolrClient client;
+    int refs = 0;
+
+    Shared(String key, String zkHost, CloudSolrClient client) {
+      this.key = key;
+      this.zkHost = zkHost;
+      this.client = client;
+    }
+  }
+
+  private static final class SharedHttpClient {
+    final HttpClient httpClient;
+    int clients = 0;
+
+    SharedHttpClient(HttpClient httpClient) {
+      this.httpClient = httpClient;
+    }
+  }
+
+  private static final Map<String, Shared> byKey = new HashMap<String, Shared>();
+  private static final Map<CloudSolrClient, Shared> byClient = new IdentityHashMap<CloudSolrClient, Shared>();
+  private static final Map<String, SharedHttpClient> httpClients = new HashMap<String, SharedHttpClient>();
+
+  private CloudSolrClients() {}
+
+  /**
+   * Returns the shared client for the collection, connecting it first if this is the first
+   * acquire; call release when done with it.
+   */
+  public static synchronized CloudSolrClient acquire(String zkHost, String collection) {
+    zkHost = zkHost.trim();
+    String key = zkHost + "|" + (collection != null ? collection : "");
+    Shared shared = byKey.get(key);
+    if (shared == null) {
+      SharedHttpClient http = httpClients.get(zkHost);
+      if (http == null) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, MAX_CONNECTIONS);
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, MAX_CONNECTIONS_PER_HOST);
+        params.set(HttpClientUtil.PROP_FOLLOW_REDIRECTS, false);
+        http = new SharedHttpClient(HttpClientUtil.createClient(params));
+        httpClients.put(zkHost, http);
+      }
+
+      log.info("Connecting to SolrCloud using zkHost: " + zkHost);
+      CloudSolrClient client = new CloudSolrClient(zkHost, http.httpClient);
+      if (collection != null)
+        client.setDefaultCollection(collection);
+      try {
+        client.connect();
+      } catch (RuntimeException exc) {
+        try {
+          client.close();
+        } catch (Exception ignore) {
+        }
+        if (http.clients == 0) {
+          httpClients.remove(zkHost);
+          HttpClientUtil.close(http.httpClient);
+        }
+        throw exc;
+      }
+      log.info("Connected to SolrCloud; collection=" + collection);
+
+      ++http.clients;
+      shared = new Shared(key, zkHost, client);
+      byKey.put(key, shared);
+      byClient.put(client, shared);
+    }
+    ++shared.refs;
+    return shared.client;
+  }
+
+  /**
+   * Gives back a client from acquire, closing it if nothing else is using it.
+   */
+  public static synchronized void release(CloudSolrClient client) {
+    Shared shared = byClient.get(client);
+    if (shared == null)
+      throw new IllegalArgumentException("CloudSolrClient wasn't acquired from CloudSolrClients, or was already released");
+    if (--shared.refs > 0)
+      return;
+
+    byKey.remove(shared.key);
+    byClient.remove(client);
+    try {
+      client.close();
+    } catch (Exception exc) {
+      log.warn("Failed to close CloudSolrClient for " + shared.key + " due to: " + exc);
+    }
+    log.info("Closed CloudSolrClient for " + shared.key);
+
+    SharedHttpClient http = httpClients.get(shared.zkHost);
+    if (http != null && --http.clients <= 0) {
+      httpClients.remove(shared.zkHost);
+      HttpClientUtil.close(http.httpClient);
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package com.lucidworks;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Sends commits on a schedule from a thread of its own while samplers index, and records what
+ * each one costs: how long the commit took, whether it opened a searcher, and how fast docs
+ * were being sent while it ran compared with before it started.
+ *
+ * Given as a comma-separated list of:
+ * <ul>
+ * <li>soft:MS - soft commit every MS ms</li>
+ * <li>hard:MS[:nosearcher] - hard commit every MS ms, with openSearcher=false if nosearcher</li>
+ * <li>docs:N - hard commit after every N docs sent (also with openSearcher=false if hard is nosearcher)</li>
+ * <li>within:MS - commitWithin=MS on every update request</li>
+ * </ul>
+ * e.g. soft:1000,hard:60000:nosearcher
+ */
+public class CommitScheduler {
+
+  private static final Log log = LogFactory.getLog(CommitScheduler.class);
+
+  final SolrClient solrClient;
+  long softEveryMs = 0L;
+  long hardEveryMs = 0L;
+  boolean hardOpensSearcher = true;
+  long docsEvery = 0L;
+  int commitWithinMs = -1;
+
+  private final AtomicLong docsSent = new AtomicLong(0L);
+  private long nextDocsCommit;
+  private Thread thread;
+  private volatile boolean running = false;
+
+  // for measuring the send rate before each commit
+  private long lastCommitEndMs;
+  private long lastCommitEndDocs = 0L;
+
+  private final Timer softCommits;
+  private final Timer hardCommits;
+  private final Counter searchersOpened;
+  private final Histogram throughputDuringCommitPct;
+
+  CommitScheduler(SolrClient solrClient, MetricRegistry metrics) {
+    this.solrClient = solrClient;
+    this.softCommits = metrics.timer("commit.soft");
+    this.hardCommits = metrics.timer("commit.hard");
+    this.searchersOpened = metrics.counter("commit.searchersOpened");
+    this.throughputDuringCommitPct = metrics.histogram("commit.throughputPct");
+  }
+
+  public static CommitScheduler parse(String spec, SolrClient solrClient, MetricRegistry metrics) {
+    CommitScheduler scheduler = new CommitScheduler(solrClient, metrics);
+    for (String part : spec.split(",")) {
+      part = part.trim();
+      if (part.length() == 0)
+        continue;
+
+      String[] args = part.toLowerCase(Locale.ROOT).split(":");
+      boolean noSearcher = args.length == 3 && "hard".equals(args[0]) && "nosearcher".equals(args[2].trim());
+      if (args.length < 2 || (args.length > 2 && !noSearcher))
+        throw new IllegalArgumentException("Invalid commit policy [" + part + "] in [" + spec + "]; expected e.g. soft:1000,hard:60000:nosearcher");
+      try {
+        long value = Long.parseLong(args[1].trim());
+        if (value <= 0)
+          throw new IllegalArgumentException("Commit policy [" + part + "] in [" + spec + "] needs a value > 0");
+
+        if ("soft".equals(args[0])) {
+          scheduler.softEveryMs = value;
+        } else if ("hard".equals(args[0])) {
+          scheduler.hardEveryMs = value;
+          scheduler.hardOpensSearcher = !noSearcher;
+        } else if ("docs".equals(args[0])) {
+          scheduler.docsEvery = value;
+        } else if ("within".equals(args[0])) {
+          scheduler.commitWithinMs = (int) Math.min(Integer.MAX_VALUE, value);
+        } else {
+          throw new IllegalArgumentException("Unknown commit policy [" + args[0] + "] in [" + spec + "]; expected soft, hard, docs or within");
+        }
+      } catch (NumberFormatException nfe) {
+        throw new IllegalArgumentException("Invalid commit policy [" + part + "] in [" + spec + "]; expected e.g. soft:1000,hard:60000:nosearcher");
+      }
+    }
+    return scheduler;
+  }
+
+  /**
+   * The commitWithin to set on update requests, or -1 for none.
+   */
+  public int getCommitWithinMs() {
+    return commitWithinMs;
+  }
+
+  public synchronized void start() {
+    if (softEveryMs <= 0 && hardEveryMs <= 0 && docsEvery <= 0)
+      return; // only commitWithin, which is up to Solr
+
+    running = true;
+    nextDocsCommit = docsEvery;
+    lastCommitEndMs = System.currentTimeMillis();
+    thread = new Thread(new Runnable() {
+      public void run() {
+        runCommits();
+      }
+    }, "CommitScheduler");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Counts docs that were sent, for docs:N and for the send rate around each commit.
+   */
+  public void docsSent(int numDocs) {
+    long total = docsSent.addAndGet(numDocs);
+    if (docsEvery > 0 && total >= nextDocsCommit) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  private void runCommits() {
+    long nowMs = System.currentTimeMillis();
+    long nextSoftMs = (softEveryMs > 0) ? nowMs + softEveryMs : Long.MAX_VALUE;
+    long nextHardMs = (hardEveryMs > 0) ? nowMs + hardEveryMs : Long.MAX_VALUE;
+    while (running) {
+      try {
+        synchronized (this) {
+          long waitMs = Math.min(nextSoftMs, nextHardMs) - System.currentTimeMillis();
+          if (waitMs > 0 && !docsCommitDue())
+            wait(Math.min(waitMs, 1000L));
+        }
+        if (!running)
+          break;
+
+        nowMs = System.currentTimeMillis();
+        if (nowMs >= nextHardMs || docsCommitDue()) {
+          commit(false, hardOpensSearcher);
+          nextHardMs = (hardEveryMs > 0) ? nowMs + hardEveryMs : Long.MAX_VALUE;
+          if (docsEvery > 0)
+            nextDocsCommit = (docsSent.get() / docsEvery + 1) * docsEvery;
+          // a hard commit that opened a searcher made everything visible, so the soft commit can wait
+          if (hardOpensSearcher && softEveryMs > 0)
+            nextSoftMs = System.currentTimeMillis() + softEveryMs;
+        }
+        if (System.currentTimeMillis() >= nextSoftMs) {
+          nowMs = System.currentTimeMillis();
+          commit(true, true);
+          nextSoftMs = nowMs + softEveryMs;
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (Exception exc) {
+        // keep to the schedule; the next commit will pick up whatever this one missed
+        log.error("Scheduled commit failed due to: " + exc);
+      }
+    }
+  }
+
+  private boolean docsCommitDue() {
+    return docsEvery > 0 && docsSent.get() >= nextDocsCommit;
+  }
+
+  void commit(boolean soft, boolean openSearcher) throws Exception {
+    UpdateRequest req = new UpdateRequest();
+    req.setAction(AbstractUpdateRequest.ACTION.COMMIT, true, true, soft);
+    if (!openSearcher)
+      req.setParam("openSearcher", "false");
+
+    long startMs = System.currentTimeMillis();
+    long docsAtStart = docsSent.get();
+    Timer.Context commitCtxt = (soft ? softCommits : hardCommits).time();
+    try {
+      solrClient.request(req);
+    } finally {
+      commitCtxt.stop();
+    }
+    long endMs = System.currentTimeMillis();
+    long docsAtEnd = docsSent.get();
+    if (openSearcher)
+      searchersOpened.inc();
+
+    // docs/sec while the commit ran vs. from the end of the last commit until this one started
+    double before = rate(docsAtStart - lastCommitEndDocs, startMs - lastCommitEndMs);
+    double during = rate(docsAtEnd - docsAtStart, endMs - startMs);
+    if (before > 0d)
+      throughputDuringCommitPct.update((int) Math.round(100d * during / before));
+    lastCommitEndMs = endMs;
+    lastCommitEndDocs = docsAtEnd;
+
+    if (log.isDebugEnabled())
+      log.debug(String.format(Locale.ROOT, "%s commit%s took %d ms; sent %.0f docs/sec during it vs %.0f before",
+        soft ? "Soft" : "Hard", openSearcher ? "" : " (no new searcher)", endMs - startMs, during, before));
+  }
+
+  private static double rate(long docs, long ms) {
+    return (ms > 0) ? docs * 1000d / ms : 0d;
+  }
+
+  public void close() {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    if (thread != null) {
+      try {
+        // let a commit that's under way finish, but don't hold up shutdown for long
+        thread.join(TimeUnit.SECONDS.toMillis(30));
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      thread = null;
+    }
+    log.info(String.format(Locale.ROOT, "Sent %d soft commits (mean %.0f ms) and %d hard commits (mean %.0f ms), opening %d searchers",
+      softCommits.getCount(), softCommits.getSnapshot().getMean() / 1e6d,
+      hardCommits.getCount(), hardCommits.getSnapshot().getMean() / 1e6d, searchersOpened.getCount()));
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    if (softEveryMs > 0)
+      sb.append(",soft:").append(softEveryMs);
+    if (hardEveryMs > 0)
+      sb.append(",hard:").append(hardEveryMs).append(hardOpensSearcher ? "" : ":nosearcher");
+    if (docsEvery > 0)
+      sb.append(",docs:").append(docsEvery);
+    if (commitWithinMs > 0)
+      sb.append(",within:").append(commitWithinMs);
+    return (sb.length() > 0) ? sb.substring(1) : "";
+  }
+}
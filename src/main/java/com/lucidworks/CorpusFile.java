@@ -0,0 +1,362 @@
+package com.lucidworks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.entity.ContentProducer;
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.util.ContentStreamBase;
+
+/**
+ * A pre-generated corpus of docs, stored as blocks of batches that are already serialized in
+ * the format they'll be sent in, so replaying the corpus costs no generator or serialization
+ * CPU. The file is memory-mapped for reading; blocks are handed out to threads through an
+ * atomic cursor, so each thread reads its own region of the mapping without locking.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   header  (HEADER_SIZE bytes): magic, version, format, numDocs, numBlocks, batchSize, indexOffset
+ *   blocks  each one is [int numDocs][int length][length bytes of JSON array or javabin UpdateRequest]
+ *   index   long offset of each block
+ * </pre>
+ */
+public class CorpusFile {
+
+  public static enum Format {
+    JSON("application/json"),
+    JAVABIN("application/javabin");
+
+    final String contentType;
+
+    Format(String contentType) {
+      this.contentType = contentType;
+    }
+  }
+
+  static final long MAGIC = 0x5353544b434f5250L; // SSTKCORP
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int BLOCK_HEADER_SIZE = 8;
+
+  // blocks are mapped in chunks of up to 1GB, since a single mapping can't be bigger than 2GB
+  static final long MAX_CHUNK_SIZE = 1L << 30;
+
+  private static final ConcurrentMap<String, CorpusFile> openFiles = new ConcurrentHashMap<String, CorpusFile>();
+
+  private static final ThreadLocal<byte[]> copyBuffers = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[64 * 1024];
+    }
+  };
+
+  /**
+   * Returns the (shared) mapping of a corpus file, opening it on first use; all callers share
+   * one cursor, so each block is only replayed once per JVM.
+   */
+  public static CorpusFile open(String path) throws IOException {
+    String key = new File(path).getCanonicalPath();
+    CorpusFile corpus = openFiles.get(key);
+    if (corpus == null) {
+      synchronized (openFiles) {
+        corpus = openFiles.get(key);
+        if (corpus == null) {
+          corpus = new CorpusFile(new File(key));
+          openFiles.put(key, corpus);
+        }
+      }
+    }
+    return corpus;
+  }
+
+  private final File file;
+  private final Format format;
+  private final long numDocs;
+  private final int batchSize;
+  private final int numBlocks;
+  private final MappedByteBuffer[] chunks;
+  private final int[] blockChunk;
+  private final int[] blockStart; // offset of the block (header) within its chunk
+  private final AtomicInteger cursor = new AtomicInteger(0);
+
+  CorpusFile(File file) throws IOException {
+    this.file = file;
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() < HEADER_SIZE)
+        throw new IOException(file + " is not a corpus file; too short");
+
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getLong() != MAGIC)
+        throw new IOException(file + " is not a corpus file; bad magic");
+      int version = header.getInt();
+      if (version != VERSION)
+        throw new IOException("Unsupported corpus file version " + version + " in " + file);
+      format = Format.values()[header.getInt()];
+      numDocs = header.getLong();
+      numBlocks = header.getInt();
+      batchSize = header.getInt();
+      long indexOffset = header.getLong();
+
+      long[] offsets = new long[numBlocks + 1];
+      if (numBlocks > 0) {
+        ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, 8L * numBlocks);
+        for (int b = 0; b < numBlocks; b++)
+          offsets[b] = index.getLong();
+      }
+      offsets[numBlocks] = indexOffset;
+
+      // group consecutive blocks into chunks; a block never spans two chunks
+      blockChunk = new int[numBlocks];
+      blockStart = new int[numBlocks];
+      List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+      int b = 0;
+      while (b < numBlocks) {
+        long chunkStart = offsets[b];
+        int first = b;
+        while (b < numBlocks && (b == first || offsets[b + 1] - chunkStart <= MAX_CHUNK_SIZE)) {
+          blockChunk[b] = mapped.size();
+          blockStart[b] = (int) (offsets[b] - chunkStart);
+          ++b;
+        }
+        mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, offsets[b] - chunkStart));
+      }
+      chunks = mapped.toArray(new MappedByteBuffer[mapped.size()]);
+    } finally {
+      raf.close();
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  public long getNumDocs() {
+    return numDocs;
+  }
+
+  public int getNumBlocks() {
+    return numBlocks;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Claims the next block for the calling thread, or returns -1 once every block has been claimed.
+   */
+  public int claimBlock() {
+    int block = cursor.getAndIncrement();
+    return block < numBlocks ? block : -1;
+  }
+
+  public int getBlockDocs(int block) {
+    return chunks[blockChunk[block]].getInt(blockStart[block]);
+  }
+
+  public int getBlockLength(int block) {
+    return chunks[blockChunk[block]].getInt(blockStart[block] + 4);
+  }
+
+  /**
+   * Returns a read-only view of the serialized bytes of a block; views are independent, so
+   * threads can read different blocks at the same time.
+   */
+  public ByteBuffer getBlock(int block) {
+    ByteBuffer view = chunks[blockChunk[block]].duplicate();
+    int start = blockStart[block] + BLOCK_HEADER_SIZE;
+    view.position(start);
+    view.limit(start + getBlockLength(block));
+    return view.slice();
+  }
+
+  public void writeBlock(int block, OutputStream out) throws IOException {
+    ByteBuffer bytes = getBlock(block);
+    byte[] buf = copyBuffers.get();
+    while (bytes.hasRemaining()) {
+      int len = Math.min(buf.length, bytes.remaining());
+      bytes.get(buf, 0, len);
+      out.write(buf, 0, len);
+    }
+  }
+
+  /**
+   * Entity content for POSTing a JSON block to a Fusion pipeline.
+   */
+  public ContentProducer getContentProducer(final int block) {
+    return new ContentProducer() {
+      public void writeTo(OutputStream out) throws IOException {
+        writeBlock(block, out);
+      }
+    };
+  }
+
+  /**
+   * Content stream for sending a block to a Solr update handler.
+   */
+  public ContentStreamBase getContentStream(int block) {
+    final ByteBuffer bytes = getBlock(block);
+    ContentStreamBase stream = new ContentStreamBase() {
+      public InputStream getStream() throws IOException {
+        return new ByteBufferInputStream(bytes.duplicate());
+      }
+    };
+    stream.setContentType(format.contentType);
+    stream.setSize((long) bytes.remaining());
+    stream.setName(file.getName() + "#" + block);
+    return stream;
+  }
+
+  static class ByteBufferInputStream extends InputStream {
+    final ByteBuffer bytes;
+
+    ByteBufferInputStream(ByteBuffer bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int read() {
+      return bytes.hasRemaining() ? (bytes.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0)
+        return 0;
+      if (!bytes.hasRemaining())
+        return -1;
+      len = Math.min(len, bytes.remaining());
+      bytes.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public int available() {
+      return bytes.remaining();
+    }
+  }
+
+  /**
+   * Appends serialized batches to a new corpus file; the header and block index are written
+   * when the writer is closed.
+   */
+  public static class Writer implements Closeable {
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Format format;
+    private final int batchSize;
+    private final ExposedByteArrayOutputStream block = new ExposedByteArrayOutputStream();
+    private final JavaBinUpdateRequestCodec javabin = new JavaBinUpdateRequestCodec();
+    private long[] offsets = new long[1024];
+    private int numBlocks = 0;
+    private long numDocs = 0;
+    private long position = HEADER_SIZE;
+
+    public Writer(File file, Format format, int batchSize) throws IOException {
+      this.format = format;
+      this.batchSize = batchSize;
+      this.raf = new RandomAccessFile(file, "rw");
+      raf.setLength(0);
+      this.channel = raf.getChannel();
+    }
+
+    public void write(DocBatch batch) throws IOException {
+      if (batch.isEmpty())
+        return;
+
+      block.reset();
+      // leave room for the block header, which is filled in once the length is known
+      block.write(new byte[BLOCK_HEADER_SIZE]);
+      if (format == Format.JSON) {
+        batch.writeTo(block);
+      } else {
+        UpdateRequest req = new UpdateRequest();
+        req.add(batch.toSolrInputDocuments());
+        javabin.marshal(req, block);
+      }
+
+      ByteBuffer bytes = ByteBuffer.wrap(block.buf(), 0, block.size());
+      bytes.putInt(0, batch.size());
+      bytes.putInt(4, block.size() - BLOCK_HEADER_SIZE);
+
+      if (numBlocks == offsets.length)
+        offsets = Arrays.copyOf(offsets, numBlocks * 2);
+      offsets[numBlocks++] = position;
+      writeFully(bytes, position);
+      position += bytes.limit();
+      numDocs += batch.size();
+    }
+
+    public long getNumDocs() {
+      return numDocs;
+    }
+
+    public long getBytesWritten() {
+      return position;
+    }
+
+    public void close() throws IOException {
+      try {
+        long indexOffset = position;
+        ByteBuffer index = ByteBuffer.allocate(8 * numBlocks);
+        for (int b = 0; b < numBlocks; b++)
+          index.putLong(offsets[b]);
+        index.flip();
+        writeFully(index, indexOffset);
+        position += 8L * numBlocks;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(format.ordinal());
+        header.putLong(numDocs);
+        header.putInt(numBlocks);
+        header.putInt(batchSize);
+        header.putLong(indexOffset);
+        header.clear();
+        writeFully(header, 0);
+        channel.force(true);
+      } finally {
+        raf.close();
+      }
+    }
+
+    private void writeFully(ByteBuffer bytes, long at) throws IOException {
+      while (bytes.hasRemaining())
+        at += channel.write(bytes, at);
+    }
+  }
+
+  // gives access to the internal buffer so a block can be written without copying it
+  static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    ExposedByteArrayOutputStream() {
+      super(64 * 1024);
+    }
+
+    byte[] buf() {
+      return buf;
+    }
+  }
+}
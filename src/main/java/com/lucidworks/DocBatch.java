@@ -0,0 +1,532 @@
+package com.lucidworks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.http.entity.ContentProducer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import com.lucidworks.IndexingSampler.FieldSpec;
+
+/**
+ * Columnar batch of synthetic documents generated from a set of FieldSpecs.
+ *
+ * Each field gets its own primitive array sized to the batch capacity, so filling a batch
+ * doesn't box numbers, build Strings, or create Dates; string and text fields are stored
+ * as indexes into the shared WordArena, and are copied out as UTF-8 bytes when written as JSON.
+ * JSON is written straight to the output stream, without going through Maps or a JsonGenerator.
+ * A batch is meant to be filled, sent, cleared and then re-used, either as a list of (re-used)
+ * SolrInputDocuments or by streaming it as JSON to an HTTP entity.
+ *
+ * If a ChildDocSpec is given, each doc gets a block of nested child docs, which are generated
+ * into a child batch with its own columns; the parent rows keep the range of child rows that
+ * belong to them.
+ *
+ * A batch is not thread-safe, but it can be handed off from a generating thread to a
+ * sending thread through a BlockingQueue.
+ */
+public class DocBatch implements ContentProducer {
+
+  static final String INDEXED_AT_FIELD = "indexed_at_tdt";
+
+  private static final byte[] ID_FIELD = Utf8JsonWriter.fieldNameBytes("id", true);
+  private static final byte[] INDEXED_AT = Utf8JsonWriter.fieldNameBytes(INDEXED_AT_FIELD, false);
+  private static final byte[] PARENT_TYPE = Utf8JsonWriter.fieldBytes(ChildDocSpec.DOC_TYPE_FIELD, ChildDocSpec.PARENT);
+  private static final byte[] CHILD_TYPE = Utf8JsonWriter.fieldBytes(ChildDocSpec.DOC_TYPE_FIELD, ChildDocSpec.CHILD);
+  private static final byte[] CHILD_DOCS = Utf8JsonWriter.fieldNameBytes("_childDocuments_", false);
+
+  static enum ColumnType {
+    INT, LONG, FLOAT, DOUBLE, DATE, BOOLEAN, STRING, MULTI_STRING, TEXT
+  }
+
+  /**
+   * Values for a single field across all docs in the batch.
+   */
+  static final class Column {
+    final FieldSpec spec;
+    final ColumnType type;
+    boolean[] present;
+    final byte[] jsonName; // ,"name":
+
+    int[] ints;       // INT values, or word indexes for STRING
+    long[] longs;     // LONG values, or millis for DATE
+    float[] floats;
+    double[] doubles;
+    boolean[] booleans;
+
+    // MULTI_STRING and TEXT values are word indexes; the words for doc d are in
+    // words[offsets[d] .. offsets[d+1])
+    int[] offsets;
+    int[] words;
+    int numWords;
+
+    Column(FieldSpec spec, int capacity) {
+      this.spec = spec;
+      this.type = spec.values.type;
+      this.present = new boolean[capacity];
+      this.jsonName = Utf8JsonWriter.fieldNameBytes(spec.name, false);
+
+      switch (type) {
+        case INT:
+        case STRING:
+          ints = new int[capacity];
+          break;
+        case LONG:
+        case DATE:
+          longs = new long[capacity];
+          break;
+        case FLOAT:
+          floats = new float[capacity];
+          break;
+        case DOUBLE:
+          doubles = new double[capacity];
+          break;
+        case BOOLEAN:
+          booleans = new boolean[capacity];
+          break;
+        case MULTI_STRING:
+        case TEXT:
+          offsets = new int[capacity + 1];
+          words = new int[capacity * Math.max(spec.numWords, 8)];
+          break;
+      }
+    }
+
+    void fill(int doc, Random rand) {
+      spec.values.fill(this, doc, rand);
+    }
+
+    void setNull(int doc) {
+      present[doc] = false;
+      if (offsets != null)
+        offsets[doc + 1] = offsets[doc] = numWords;
+    }
+
+    void addWord(int wordIndex) {
+      if (numWords == words.length)
+        words = Arrays.copyOf(words, words.length * 2);
+      words[numWords++] = wordIndex;
+    }
+
+    void grow(int capacity) {
+      present = Arrays.copyOf(present, capacity);
+      if (ints != null)
+        ints = Arrays.copyOf(ints, capacity);
+      if (longs != null)
+        longs = Arrays.copyOf(longs, capacity);
+      if (floats != null)
+        floats = Arrays.copyOf(floats, capacity);
+      if (doubles != null)
+        doubles = Arrays.copyOf(doubles, capacity);
+      if (booleans != null)
+        booleans = Arrays.copyOf(booleans, capacity);
+      if (offsets != null)
+        offsets = Arrays.copyOf(offsets, capacity + 1);
+    }
+  }
+
+  final Column[] columns;
+  int capacity;
+  long[] ordinals;
+  String idBase = "";
+  int size = 0;
+  // when an open-loop run meant to send this batch (System.nanoTime), or 0 if not rate-controlled
+  long intendedStartNanos = 0;
+  // the shard (see ShardRouter) all of the docs in this batch belong to, or -1 to let CloudSolrClient route them
+  int shard = -1;
+  // only docs [sendFrom, sendTo) are written or converted, or all of them if sendTo is -1; narrowed
+  // while bisecting a batch that was rejected, to find the doc it was rejected for
+  private int sendFrom = 0;
+  private int sendTo = -1;
+
+  // nested docs: children of doc d are rows [childStart[d] .. childStart[d+1]) of the child batch
+  final ChildDocSpec childSpec;
+  final DocBatch children;
+  final int[] childStart;
+  // in a child batch, ordinals are those of the parent and childNums number the children of each parent
+  final boolean isChildBatch;
+  int[] childNums;
+
+  // lazily built SolrInputDocument view of each row, re-used across batches
+  private SolrInputDocument[] solrDocs;
+  private SolrInputField[][] solrFields;
+  private Object[][] solrHolders;
+  private final List<SolrInputDocument> solrDocList = new AbstractList<SolrInputDocument>() {
+    @Override
+    public SolrInputDocument get(int index) {
+      if (index >= size)
+        throw new IndexOutOfBoundsException(index + " >= " + size);
+      return solrDocs[index];
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  };
+
+  // scratch space used when serializing
+  private final StringBuilder text = new StringBuilder(256);
+  private Utf8JsonWriter json;
+
+  public DocBatch(FieldSpec[] fields, int capacity) {
+    this(fields, null, capacity);
+  }
+
+  public DocBatch(FieldSpec[] fields, ChildDocSpec childSpec, int capacity) {
+    this(fields, childSpec, capacity, false);
+  }
+
+  private DocBatch(FieldSpec[] fields, ChildDocSpec childSpec, int capacity, boolean isChildBatch) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("Batch capacity must be > 0, not " + capacity);
+
+    this.capacity = capacity;
+    this.ordinals = new long[capacity];
+    this.columns = new Column[fields.length];
+    for (int f = 0; f < fields.length; f++)
+      columns[f] = new Column(fields[f], capacity);
+
+    this.isChildBatch = isChildBatch;
+    if (isChildBatch)
+      childNums = new int[capacity];
+
+    this.childSpec = childSpec;
+    if (childSpec != null) {
+      // sized for the average fan-out; the child batch grows if a batch has more
+      int expected = Math.max(1, capacity * (childSpec.min + childSpec.max + 1) / 2);
+      children = new DocBatch(childSpec.fields, null, expected, true);
+      childStart = new int[capacity + 1];
+    } else {
+      children = null;
+      childStart = null;
+    }
+  }
+
+  /**
+   * Doc IDs in this batch are idBase + the ordinal passed to addDoc; child docs get the id of
+   * their parent + _cN.
+   */
+  public void setIdBase(String idBase) {
+    this.idBase = idBase;
+    if (children != null)
+      children.setIdBase(idBase);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public boolean isFull() {
+    return size >= capacity;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    size = 0;
+    intendedStartNanos = 0;
+    resetSendRange();
+    for (Column col : columns)
+      col.numWords = 0;
+    if (children != null)
+      children.clear();
+  }
+
+  /**
+   * Limits what's sent (by writeTo and toSolrInputDocuments) to docs [from, to), with their
+   * children; the batch itself is unchanged.
+   */
+  public void setSendRange(int from, int to) {
+    if (from < 0 || to > size || from >= to)
+      throw new IndexOutOfBoundsException("Invalid send range [" + from + ", " + to + ") for a batch of " + size);
+    sendFrom = from;
+    sendTo = to;
+  }
+
+  public void resetSendRange() {
+    sendFrom = 0;
+    sendTo = -1;
+  }
+
+  private int sendEnd() {
+    return (sendTo != -1) ? sendTo : size;
+  }
+
+  /**
+   * Number of child docs across all docs in this batch.
+   */
+  public int numChildren() {
+    return (children != null) ? children.size : 0;
+  }
+
+  /**
+   * Generate the next doc directly into the columns of this batch.
+   */
+  public void addDoc(long ordinal, Random rand) {
+    if (size >= capacity)
+      throw new IllegalStateException("Batch is full! capacity=" + capacity);
+
+    int doc = size++;
+    ordinals[doc] = ordinal;
+    for (Column col : columns)
+      col.fill(doc, rand);
+
+    if (childSpec != null) {
+      childStart[doc] = children.size;
+      int numChildren = childSpec.nextNumChildren(rand);
+      for (int c = 0; c < numChildren; c++)
+        children.addChild(ordinal, c, rand);
+      childStart[doc + 1] = children.size;
+    }
+  }
+
+  private void addChild(long parentOrdinal, int childNum, Random rand) {
+    if (size == capacity)
+      grow(capacity * 2);
+
+    int doc = size++;
+    ordinals[doc] = parentOrdinal;
+    childNums[doc] = childNum;
+    for (Column col : columns)
+      col.fill(doc, rand);
+  }
+
+  private void grow(int newCapacity) {
+    ordinals = Arrays.copyOf(ordinals, newCapacity);
+    childNums = Arrays.copyOf(childNums, newCapacity);
+    for (Column col : columns)
+      col.grow(newCapacity);
+    if (solrDocs != null) {
+      solrDocs = Arrays.copyOf(solrDocs, newCapacity);
+      solrFields = Arrays.copyOf(solrFields, newCapacity);
+      solrHolders = Arrays.copyOf(solrHolders, newCapacity);
+    }
+    capacity = newCapacity;
+  }
+
+  public String getId(int doc) {
+    String id = idBase + ordinals[doc];
+    return isChildBatch ? ChildDocSpec.childId(id, childNums[doc]) : id;
+  }
+
+  /**
+   * Returns the docs in this batch as SolrInputDocuments; the document and field objects
+   * are re-used across batches, so the list is only valid until the batch is refilled.
+   */
+  public List<SolrInputDocument> toSolrInputDocuments() {
+    if (solrDocs == null) {
+      solrDocs = new SolrInputDocument[capacity];
+      solrFields = new SolrInputField[capacity][];
+      solrHolders = new Object[capacity][];
+    }
+
+    Date indexedAt = new Date();
+    List<SolrInputDocument> childDocs = (children != null) ? children.toSolrInputDocuments() : null;
+    int end = sendEnd();
+    for (int d = sendFrom; d < end; d++) {
+      SolrInputDocument doc = solrDocs[d];
+      if (doc == null) {
+        doc = new SolrInputDocument();
+        solrDocs[d] = doc;
+        solrFields[d] = new SolrInputField[columns.length];
+        solrHolders[d] = new Object[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+          solrFields[d][c] = new SolrInputField(columns[c].spec.name);
+          if (columns[c].type == ColumnType.DATE) {
+            solrHolders[d][c] = new Date(0);
+          } else if (columns[c].type == ColumnType.MULTI_STRING) {
+            solrHolders[d][c] = new ArrayList<Object>();
+          }
+        }
+      }
+
+      doc.setField("id", getId(d));
+      for (int c = 0; c < columns.length; c++) {
+        Column col = columns[c];
+        SolrInputField field = solrFields[d][c];
+        if (!col.present[d]) {
+          doc.remove(field.getName());
+          continue;
+        }
+
+        field.setValue(toSolrValue(col, d, solrHolders[d][c]), 1.0f);
+        if (doc.get(field.getName()) != field)
+          doc.put(field.getName(), field);
+      }
+      doc.setField(INDEXED_AT_FIELD, indexedAt);
+
+      if (isChildBatch) {
+        doc.setField(ChildDocSpec.DOC_TYPE_FIELD, ChildDocSpec.CHILD);
+      } else if (childDocs != null) {
+        doc.setField(ChildDocSpec.DOC_TYPE_FIELD, ChildDocSpec.PARENT);
+        List<SolrInputDocument> docChildren = doc.getChildDocuments();
+        if (docChildren != null)
+          docChildren.clear();
+        for (int c = childStart[d]; c < childStart[d + 1]; c++)
+          doc.addChildDocument(childDocs.get(c));
+      }
+    }
+
+    return (sendFrom == 0 && end == size) ? solrDocList : solrDocList.subList(sendFrom, end);
+  }
+
+  private Object toSolrValue(Column col, int d, Object holder) {
+    switch (col.type) {
+      case INT:
+        return col.ints[d];
+      case LONG:
+        return col.longs[d];
+      case FLOAT:
+        return col.floats[d];
+      case DOUBLE:
+        return col.doubles[d];
+      case BOOLEAN:
+        return col.booleans[d];
+      case DATE:
+        Date dt = (Date) holder;
+        dt.setTime(col.longs[d]);
+        return dt;
+      case STRING:
+        return IndexingSampler.word(col.ints[d]);
+      case MULTI_STRING:
+        @SuppressWarnings("unchecked") // MULTI_STRING holders are created as ArrayList<Object>
+        List<Object> vals = (List<Object>) holder;
+        vals.clear();
+        for (int w = col.offsets[d]; w < col.offsets[d + 1]; w++)
+          vals.add(IndexingSampler.word(col.words[w]));
+        return vals;
+      case TEXT:
+        text.setLength(0);
+        for (int w = col.offsets[d]; w < col.offsets[d + 1]; w++) {
+          if (w > col.offsets[d]) text.append(' ');
+          text.append(IndexingSampler.word(col.words[w]));
+        }
+        return text.toString();
+      default:
+        throw new IllegalStateException("Unsupported column type " + col.type);
+    }
+  }
+
+  /**
+   * Streams this batch as a JSON array of docs, such as for the request body of a POST
+   * to a Fusion index pipeline.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    if (json == null)
+      json = new Utf8JsonWriter(16 * 1024);
+
+    json.setOutput(out);
+    WordArena words = IndexingSampler.words();
+    long indexedAt = System.currentTimeMillis();
+
+    json.writeByte('[');
+    int end = sendEnd();
+    for (int d = sendFrom; d < end; d++) {
+      if (d > sendFrom)
+        json.writeByte(',');
+      writeDoc(json, words, d, indexedAt);
+    }
+    json.writeByte(']');
+    json.flush();
+  }
+
+  private void writeDoc(Utf8JsonWriter json, WordArena words, int d, long indexedAt) throws IOException {
+    json.writeByte('{');
+    json.writeRaw(ID_FIELD);
+    json.writeByte('"');
+    json.writeUnquoted(idBase);
+    json.writeLong(ordinals[d]);
+    if (isChildBatch) {
+      json.writeByte('_');
+      json.writeByte('c');
+      json.writeInt(childNums[d]);
+    }
+    json.writeByte('"');
+
+    for (Column col : columns) {
+      if (!col.present[d])
+        continue;
+
+      json.writeRaw(col.jsonName);
+      switch (col.type) {
+        case INT:
+          json.writeInt(col.ints[d]);
+          break;
+        case LONG:
+          json.writeLong(col.longs[d]);
+          break;
+        case FLOAT:
+          json.writeFloat(col.floats[d]);
+          break;
+        case DOUBLE:
+          json.writeDouble(col.doubles[d]);
+          break;
+        case BOOLEAN:
+          json.writeBoolean(col.booleans[d]);
+          break;
+        case DATE:
+          json.writeDate(col.longs[d]);
+          break;
+        case STRING:
+          json.writeByte('"');
+          json.writeWord(words, col.ints[d]);
+          json.writeByte('"');
+          break;
+        case MULTI_STRING:
+          json.writeByte('[');
+          for (int w = col.offsets[d]; w < col.offsets[d + 1]; w++) {
+            if (w > col.offsets[d])
+              json.writeByte(',');
+            json.writeByte('"');
+            json.writeWord(words, col.words[w]);
+            json.writeByte('"');
+          }
+          json.writeByte(']');
+          break;
+        case TEXT:
+          json.writeByte('"');
+          for (int w = col.offsets[d]; w < col.offsets[d + 1]; w++) {
+            if (w > col.offsets[d])
+              json.writeByte(' ');
+            json.writeWord(words, col.words[w]);
+          }
+          json.writeByte('"');
+          break;
+        default:
+          throw new IllegalStateException("Unsupported column type " + col.type);
+      }
+    }
+
+    json.writeRaw(INDEXED_AT);
+    json.writeDate(indexedAt);
+
+    if (isChildBatch) {
+      json.writeRaw(CHILD_TYPE);
+    } else if (children != null) {
+      json.writeRaw(PARENT_TYPE);
+      json.writeRaw(CHILD_DOCS);
+      json.writeByte('[');
+      for (int c = childStart[d]; c < childStart[d + 1]; c++) {
+        if (c > childStart[d])
+          json.writeByte(',');
+        children.writeDoc(json, words, c, indexedAt);
+      }
+      json.writeByte(']');
+    }
+    json.writeByte('}');
+  }
+}
@@ -0,0 +1,364 @@
+package com.lucidworks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.lucidworks.IndexingSampler.FieldSpec;
+
+/**
+ * Field layout for generated docs, read from a JSON file instead of being hard-coded, e.g.:
+ * <pre>
+ * {
+ *   "targetBytesPerDoc": 4096,
+ *   "fields": [
+ *     { "name": "integer1_i", "cardinality": 100000, "pctNull": 10 },
+ *     { "name": "attr{n}_s", "count": 50, "cardinality": 2000, "distribution": "zipf", "exponent": 1.2 },
+ *     { "name": "tags_ss", "cardinality": 5000, "minValues": 1, "maxValues": 10, "pctNull": 20 },
+ *     { "name": "body_en", "cardinality": 30000, "distribution": "zipf", "minWords": 20, "maxWords": 200 },
+ *     { "name": "float1_f", "spec": "f:1:2:u:10" }
+ *   ],
+ *   "children": {
+ *     "fanOut": "0:10:z1.2",
+ *     "fields": [ { "name": "sku_s", "cardinality": 50000 }, { "name": "price_d", "cardinality": 5000 } ]
+ *   }
+ * }
+ * </pre>
+ * The type of each field comes from its dynamic field suffix, like the built-in fields. A field
+ * with a count is repeated that many times, with {n} in the name replaced by 1..count. Instead
+ * of the individual settings, a field can give a colspec (type:avgsz:card:u|z[exp]:pctNull),
+ * which is the format the built-in fields use.
+ *
+ * Fields compile to regular FieldSpecs, so a profile is generated by the same code path as the
+ * built-in fields. If targetBytesPerDoc is set, the number of words in text fields and values
+ * in multi-valued fields is scaled so that docs serialize to about that many bytes of JSON.
+ * The optional children section adds nested child docs to each doc (see ChildDocSpec for the
+ * fan-out format); the size target includes the children.
+ */
+public class DocProfile {
+
+  private static final Log log = LogFactory.getLog(DocProfile.class);
+
+  private static final Set<String> FIELD_KEYS = new HashSet<String>(Arrays.asList(
+    "name", "count", "spec", "cardinality", "distribution", "exponent", "pctNull",
+    "minValues", "maxValues", "minWords", "maxWords"));
+
+  // bytes of JSON to serialize per sample when measuring the doc size
+  private static final long SAMPLE_BYTES = 8L * 1024 * 1024;
+
+  private final String source;
+  private final List<FieldSpec> fields;
+  private final int targetBytesPerDoc;
+  private ChildDocSpec childDocs;
+
+  DocProfile(String source, List<FieldSpec> fields, ChildDocSpec childDocs, int targetBytesPerDoc) {
+    this.source = source;
+    this.fields = fields;
+    this.childDocs = childDocs;
+    this.targetBytesPerDoc = targetBytesPerDoc;
+  }
+
+  /**
+   * Loads a profile from a file or, if there's no such file, from a classpath resource.
+   */
+  public static DocProfile load(String location) throws IOException {
+    InputStream in;
+    File file = new File(location);
+    if (file.isFile()) {
+      in = new FileInputStream(file);
+    } else {
+      in = DocProfile.class.getClassLoader().getResourceAsStream(location);
+      if (in == null)
+        throw new IllegalArgumentException("Doc profile " + location + " not found as a file or on the classpath!");
+    }
+
+    JsonNode root;
+    try {
+      root = new ObjectMapper().readTree(in);
+    } finally {
+      try {
+        in.close();
+      } catch (Exception ignore) {
+      }
+    }
+    return parse(location, root);
+  }
+
+  static DocProfile parse(String source, JsonNode root) {
+    if (root == null || !root.isObject())
+      throw new IllegalArgumentException("Doc profile " + source + " must be a JSON object");
+
+    List<FieldSpec> fields = parseFields(source, root.get("fields"));
+
+    ChildDocSpec childDocs = null;
+    JsonNode children = root.get("children");
+    if (children != null) {
+      if (!children.isObject() || children.get("fanOut") == null)
+        throw new IllegalArgumentException("children in doc profile " + source + " must be an object with a fanOut");
+      List<FieldSpec> childFields = parseFields(source, children.get("fields"));
+      childDocs = ChildDocSpec.parse(children.get("fanOut").getValueAsText(),
+        childFields.toArray(new FieldSpec[childFields.size()]));
+    }
+
+    int targetBytesPerDoc = intValue(source, root, "targetBytesPerDoc", 0);
+    return new DocProfile(source, fields, childDocs, targetBytesPerDoc);
+  }
+
+  static List<FieldSpec> parseFields(String source, JsonNode fieldsNode) {
+    if (fieldsNode == null || !fieldsNode.isArray() || fieldsNode.size() == 0)
+      throw new IllegalArgumentException("Doc profile " + source + " must have a non-empty fields array");
+
+    List<FieldSpec> fields = new ArrayList<FieldSpec>();
+    Set<String> names = new HashSet<String>();
+    for (JsonNode fieldNode : fieldsNode) {
+      for (FieldSpec spec : parseField(source, fieldNode)) {
+        if (!names.add(spec.name))
+          throw new IllegalArgumentException("Field " + spec.name + " is defined more than once in doc profile " + source);
+        fields.add(spec);
+      }
+    }
+    return fields;
+  }
+
+  static List<FieldSpec> parseField(String source, JsonNode node) {
+    if (!node.isObject())
+      throw new IllegalArgumentException("Each field in doc profile " + source + " must be a JSON object, not " + node);
+
+    Iterator<String> keys = node.getFieldNames();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      if (!FIELD_KEYS.contains(key))
+        throw new IllegalArgumentException("Unknown setting '" + key + "' in doc profile " + source + ": " + node);
+    }
+
+    JsonNode nameNode = node.get("name");
+    if (nameNode == null || !nameNode.isTextual() || nameNode.getTextValue().trim().length() == 0)
+      throw new IllegalArgumentException("Field without a name in doc profile " + source + ": " + node);
+    String name = nameNode.getTextValue().trim();
+
+    int count = intValue(source, node, "count", 1);
+    if (count < 1)
+      throw new IllegalArgumentException("count must be at least 1 for field " + name + " in doc profile " + source);
+    if (count > 1 && !name.contains("{n}"))
+      throw new IllegalArgumentException("Field " + name + " has a count, so its name must contain {n}");
+
+    String colspec;
+    JsonNode specNode = node.get("spec");
+    if (specNode != null) {
+      colspec = specNode.getTextValue();
+    } else {
+      String distribution = textValue(node, "distribution", "uniform");
+      String dist;
+      if ("uniform".equals(distribution)) {
+        dist = "u";
+      } else if ("zipf".equals(distribution)) {
+        JsonNode exponent = node.get("exponent");
+        dist = (exponent != null) ? "z" + exponent.getDoubleValue() : "z";
+      } else {
+        throw new IllegalArgumentException("Unknown distribution '" + distribution + "' for field " + name +
+          "; expected uniform or zipf");
+      }
+      int cardinality = intValue(source, node, "cardinality", defaultCardinality(name));
+      int pctNull = intValue(source, node, "pctNull", 0);
+      colspec = colspecType(name) + ":1:" + cardinality + ":" + dist + ":" + pctNull;
+    }
+
+    int minWords = intValue(source, node, "minWords", 1);
+    int maxWords = intValue(source, node, "maxWords", Math.max(minWords, 20));
+    int minValues = intValue(source, node, "minValues", 1);
+    int maxValues = intValue(source, node, "maxValues", Math.max(minValues, 20));
+    if (minWords < 1 || maxWords < minWords)
+      throw new IllegalArgumentException("Field " + name + " needs 1 <= minWords <= maxWords");
+    if (minValues < 1 || maxValues < minValues)
+      throw new IllegalArgumentException("Field " + name + " needs 1 <= minValues <= maxValues");
+
+    List<FieldSpec> specs = new ArrayList<FieldSpec>(count);
+    for (int n = 1; n <= count; n++) {
+      String fieldName = (count > 1) ? name.replace("{n}", String.valueOf(n)) : name;
+      FieldSpec spec;
+      try {
+        spec = new FieldSpec(fieldName, colspec, maxWords);
+      } catch (IllegalArgumentException iae) {
+        throw new IllegalArgumentException("Invalid field " + fieldName + " in doc profile " + source + ": " +
+          iae.getMessage(), iae);
+      }
+      spec.minWords = minWords;
+      spec.minValues = minValues;
+      spec.maxValues = maxValues;
+      specs.add(spec);
+    }
+    return specs;
+  }
+
+  // the colspec type for a field, based on the same suffixes IndexingSampler.compileValueGenerator uses
+  static char colspecType(String name) {
+    String suffix = name.substring(name.lastIndexOf('_') + 1);
+    if ("i".equals(suffix) || "b".equals(suffix)) {
+      return 'i';
+    } else if ("l".equals(suffix) || "tdt".equals(suffix)) {
+      return 'l';
+    } else if ("f".equals(suffix)) {
+      return 'f';
+    } else if ("d".equals(suffix)) {
+      return 'd';
+    } else if ("s".equals(suffix) || "ss".equals(suffix) || "en".equals(suffix)) {
+      return 's';
+    } else {
+      throw new IllegalArgumentException("Unsupported dynamic field suffix '" + suffix + "' for field " + name + "!");
+    }
+  }
+
+  static int defaultCardinality(String name) {
+    if (name.endsWith("_tdt"))
+      return 31536000; // dates within a year, in seconds
+    if (name.endsWith("_b"))
+      return 1;
+    return 1000;
+  }
+
+  static int intValue(String source, JsonNode node, String key, int defaultValue) {
+    JsonNode value = node.get(key);
+    if (value == null)
+      return defaultValue;
+    if (!value.isInt())
+      throw new IllegalArgumentException(key + " must be an integer in doc profile " + source + ", not " + value);
+    return value.getIntValue();
+  }
+
+  static String textValue(JsonNode node, String key, String defaultValue) {
+    JsonNode value = node.get(key);
+    return (value != null) ? value.getTextValue() : defaultValue;
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  public FieldSpec[] getFields() {
+    return fields.toArray(new FieldSpec[fields.size()]);
+  }
+
+  public int getTargetBytesPerDoc() {
+    return targetBytesPerDoc;
+  }
+
+  public ChildDocSpec getChildDocs() {
+    return childDocs;
+  }
+
+  public void setChildDocs(ChildDocSpec childDocs) {
+    this.childDocs = childDocs;
+  }
+
+  /**
+   * Scales the number of words in text fields and values in multi-valued fields so that docs
+   * serialize to about targetBytes of JSON, returning the measured bytes per doc afterwards.
+   * The doc size is roughly linear in the scale, so it's measured at two scales and then
+   * interpolated. Needs the word list to be loaded.
+   */
+  public static int fitToTargetBytes(FieldSpec[] fields, ChildDocSpec childDocs, int targetBytes) throws IOException {
+    List<FieldSpec> scalable = new ArrayList<FieldSpec>();
+    List<FieldSpec> allFields = new ArrayList<FieldSpec>(Arrays.asList(fields));
+    if (childDocs != null)
+      allFields.addAll(Arrays.asList(childDocs.getFields()));
+    for (FieldSpec spec : allFields) {
+      if (spec.values.type == DocBatch.ColumnType.TEXT || spec.values.type == DocBatch.ColumnType.MULTI_STRING)
+        scalable.add(spec);
+    }
+    if (scalable.isEmpty())
+      throw new IllegalArgumentException("Fitting docs to " + targetBytes +
+        " bytes needs at least one text (_en) or multi-valued (_ss) field to scale");
+
+    int[][] base = new int[scalable.size()][];
+    for (int i = 0; i < base.length; i++) {
+      FieldSpec spec = scalable.get(i);
+      base[i] = (spec.values.type == DocBatch.ColumnType.TEXT)
+        ? new int[]{spec.minWords, spec.numWords} : new int[]{spec.minValues, spec.maxValues};
+    }
+
+    int sampleDocs = (int) Math.max(20, Math.min(2000, SAMPLE_BYTES / Math.max(targetBytes, 1)));
+    double atOne = measureBytesPerDoc(fields, childDocs, sampleDocs);
+    scale(scalable, base, 2d);
+    double atTwo = measureBytesPerDoc(fields, childDocs, sampleDocs);
+
+    double perScale = atTwo - atOne;
+    if (perScale <= 0)
+      throw new IllegalArgumentException("Can't fit docs to " + targetBytes + " bytes; doubling the text (_en) and " +
+        "multi-valued (_ss) fields didn't make docs any bigger, so the profile has nothing that can be scaled toward the target size");
+    double fixed = atOne - perScale;
+    double factor = (targetBytes - fixed) / perScale;
+    scale(scalable, base, factor);
+
+    int bytesPerDoc = (int) Math.round(measureBytesPerDoc(fields, childDocs, sampleDocs));
+    if (Math.abs(bytesPerDoc - targetBytes) > targetBytes / 10) {
+      log.warn("Could only get docs to " + bytesPerDoc + " bytes, not the target of " + targetBytes +
+        "; fields that aren't scaled take about " + Math.round(fixed) + " bytes per doc");
+    }
+    return bytesPerDoc;
+  }
+
+  static void scale(List<FieldSpec> scalable, int[][] base, double factor) {
+    for (int i = 0; i < base.length; i++) {
+      FieldSpec spec = scalable.get(i);
+      int max = Math.max(1, (int) Math.round(base[i][1] * factor));
+      int min = Math.max(1, Math.min(max, (int) Math.round(base[i][0] * factor)));
+      if (spec.values.type == DocBatch.ColumnType.TEXT) {
+        spec.minWords = min;
+        spec.numWords = max;
+      } else {
+        spec.minValues = min;
+        spec.maxValues = max;
+      }
+    }
+  }
+
+  static double measureBytesPerDoc(FieldSpec[] fields, ChildDocSpec childDocs, int numDocs) throws IOException {
+    DocBatch batch = new DocBatch(fields, childDocs, 100);
+    batch.setIdBase("id_");
+    // same sample every time, so only the change in settings moves the measured size
+    DocRandom rand = new DocRandom();
+    ByteCounter counter = new ByteCounter();
+    for (int d = 0; d < numDocs; d++) {
+      rand.setDoc(5150L, d);
+      batch.addDoc(d, rand);
+      if (batch.isFull() || d == numDocs - 1) {
+        batch.writeTo(counter);
+        batch.clear();
+      }
+    }
+    return (double) counter.count / numDocs;
+  }
+
+  static class ByteCounter extends OutputStream {
+    long count = 0;
+
+    @Override
+    public void write(int b) {
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  public String toString() {
+    return "DocProfile(" + source + ", " + fields.size() + " fields" +
+      (childDocs != null ? ", children=" + childDocs : "") +
+      (targetBytesPerDoc > 0 ? ", targetBytesPerDoc=" + targetBytesPerDoc : "") + ")";
+  }
+}
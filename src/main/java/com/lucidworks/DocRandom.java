@@ -0,0 +1,91 @@
+package com.lucidworks;
+
+import java.util.Random;
+
+/**
+ * Counter-based Random for reproducible data generation: after setDoc(seed, ordinal), the
+ * sequence of values depends only on (seed, ordinal), so any doc can be generated (or
+ * re-generated) independently of which thread, JVM or Pig task produces it, and in any order.
+ *
+ * Each doc's stream is a SplitMix64 sequence starting from a mix of the seed and ordinal.
+ * java.util.SplittableRandom does the same, but it's Java 8 only and isn't a Random, which
+ * is what the generators take. Like Random, an instance is not meant to be shared across
+ * threads; unlike Random it isn't synchronized.
+ */
+public class DocRandom extends Random {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  private long state;
+
+  public DocRandom() {
+    super(0L);
+  }
+
+  public DocRandom(long seed, long ordinal) {
+    this();
+    setDoc(seed, ordinal);
+  }
+
+  /**
+   * Positions this Random at the start of the stream for a doc.
+   */
+  public void setDoc(long seed, long ordinal) {
+    state = mix64(seed ^ mix64(ordinal + GOLDEN_GAMMA));
+  }
+
+  @Override
+  public void setSeed(long seed) {
+    // called by the Random constructor
+    state = seed;
+  }
+
+  private long nextSeed() {
+    state += GOLDEN_GAMMA;
+    return mix64(state);
+  }
+
+  @Override
+  protected int next(int bits) {
+    return (int) (nextSeed() >>> (64 - bits));
+  }
+
+  @Override
+  public long nextLong() {
+    return nextSeed();
+  }
+
+  @Override
+  public double nextDouble() {
+    return (nextSeed() >>> 11) * 0x1.0p-53;
+  }
+
+  @Override
+  public float nextFloat() {
+    return (nextSeed() >>> 40) * 0x1.0p-24f;
+  }
+
+  @Override
+  public boolean nextBoolean() {
+    return nextSeed() < 0;
+  }
+
+  /**
+   * Derives a seed for a named stream, such as the docs generated for one Pig key.
+   */
+  public static long seedFor(long seed, CharSequence key) {
+    long h = seed;
+    for (int i = 0; i < key.length(); i++)
+      h = mix64(h + GOLDEN_GAMMA + key.charAt(i));
+    return h;
+  }
+
+  // Stafford's variant 13 of the MurmurHash3 finalizer, as used by SplitMix64
+  static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
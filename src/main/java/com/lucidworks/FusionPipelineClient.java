@@ -12,6 +12,8 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.entity.ContentProducer;
 import org.apache.http.entity.ContentType;
@@ -20,6 +22,10 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.*;
 import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.entity.NByteArrayEntity;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.apache.solr.client.solrj.SolrClient;
@@ -45,6 +51,11 @@ import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -90,6 +101,29 @@ public class FusionPipelineClient {
 
   static long maxNanosOfInactivity = TimeUnit.NANOSECONDS.convert(599, TimeUnit.SECONDS);
 
+  static final String JSON_CONTENT_TYPE = "application/json";
+
+  // for postBatchToPipelineAsync; created on first use
+  int maxInFlight = 16;
+  Semaphore inFlight;
+  CloseableHttpAsyncClient asyncClient;
+  ScheduledExecutorService retryScheduler;
+
+  // gzips request bodies on the way out if set
+  RequestCompression requestCompression = null;
+
+  /**
+   * Gets called back from postBatchToPipelineAsync once a batch has been acked, or has failed
+   * after all re-tries. It's called on one of the async client's I/O threads (or the thread that
+   * schedules re-tries), so it must not block, and callbacks for different batches can run at
+   * the same time, so anything they touch has to be thread-safe. The batch's in-flight slot is
+   * freed before the callback runs, and the future completes after it returns.
+   */
+  public interface BatchCallback {
+    void completed(int numDocs);
+    void failed(Exception exc);
+  }
+
   public FusionPipelineClient(String endpointUrl) throws MalformedURLException {
     this(endpointUrl, null, null, null);
   }
@@ -332,8 +366,21 @@ public class FusionPipelineClient {
   }
 
   public void postBatchToPipeline(List docs) throws Exception {
-    int numDocs = docs.size();
+    postBatchToPipeline(new JacksonContentProducer(jsonObjectMapper, docs), docs.size());
+  }
 
+  /**
+   * Sends a batch of docs that knows how to write itself as a JSON array to the request body,
+   * such as a {@link DocBatch}; the producer may be written more than once if the request is re-tried.
+   */
+  public void postBatchToPipeline(ContentProducer docs, int numDocs) throws Exception {
+    postBatchToPipeline(docs, numDocs, JSON_CONTENT_TYPE);
+  }
+
+  /**
+   * Sends a batch of docs in some other format the pipeline can parse, given by contentType.
+   */
+  public void postBatchToPipeline(ContentProducer docs, int numDocs, String contentType) throws Exception {
     int requestId = requestCounter.incrementAndGet();
     ArrayList<String> mutable = getAvailableEndpoints();
     if (mutable.size() > 1) {
@@ -357,7 +404,7 @@ public class FusionPipelineClient {
           log.debug("POSTing batch of "+numDocs+" input docs to "+endpoint+" as request "+requestId);
 
         Exception retryAfterException =
-          postJsonToPipelineWithRetry(endpoint, docs, mutable, lastExc, requestId);
+          postJsonToPipelineWithRetry(endpoint, docs, numDocs, contentType, mutable, lastExc, requestId);
         if (retryAfterException == null) {
           lastExc = null;
           break; // request succeeded ...
@@ -377,19 +424,276 @@ public class FusionPipelineClient {
       if (log.isDebugEnabled())
         log.debug("POSTing batch of "+numDocs+" input docs to "+endpoint+" as request "+requestId);
 
-      Exception exc = postJsonToPipelineWithRetry(endpoint, docs, mutable, null, requestId);
+      Exception exc = postJsonToPipelineWithRetry(endpoint, docs, numDocs, contentType, mutable, null, requestId);
       if (exc != null)
         throw exc;
     }
   }
 
-  protected Exception postJsonToPipelineWithRetry(String endpoint, List docs, ArrayList<String> mutable, Exception lastExc, int requestId)
+  /**
+   * Limits how many batches postBatchToPipelineAsync has in flight at once; must be called
+   * before the first batch is posted.
+   */
+  public synchronized void setMaxInFlight(int maxInFlight) {
+    if (asyncClient != null)
+      throw new IllegalStateException("Can't change the in-flight limit after posting async batches");
+    if (maxInFlight < 1)
+      throw new IllegalArgumentException("maxInFlight must be at least 1, not " + maxInFlight);
+    this.maxInFlight = maxInFlight;
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * Gzips the body of every request to the pipeline as it's streamed out; the Fusion API (or a
+   * proxy in front of it) has to accept Content-Encoding: gzip. Pass null to turn it off.
+   */
+  public void setRequestCompression(RequestCompression requestCompression) {
+    this.requestCompression = requestCompression;
+  }
+
+  public Future<Integer> postBatchToPipelineAsync(List docs, BatchCallback callback) throws Exception {
+    return postBatchToPipelineAsync(new JacksonContentProducer(jsonObjectMapper, docs), docs.size(), JSON_CONTENT_TYPE, callback);
+  }
+
+  public Future<Integer> postBatchToPipelineAsync(ContentProducer docs, int numDocs) throws Exception {
+    return postBatchToPipelineAsync(docs, numDocs, JSON_CONTENT_TYPE, null);
+  }
+
+  /**
+   * Posts a batch on the NIO client and returns a future for the number of docs sent, without
+   * tying up a thread while the request is in flight, so one thread can keep up to maxInFlight
+   * batches going. This blocks the caller while that many batches are in flight, which is what
+   * keeps a fast producer from running away from Fusion.
+   *
+   * The body is written (and gzipped, if compression is on) into a buffer before this returns,
+   * so the producer can be changed afterwards; re-tries re-send the buffer. A failed request is
+   * re-tried the same way postBatchToPipeline does it, but from completion callbacks: another
+   * endpoint is tried if there is one, else the same one again after a second, and a 401
+   * re-establishes the session and re-sends. Cancelling the future doesn't abort the request.
+   */
+  public Future<Integer> postBatchToPipelineAsync(ContentProducer docs, int numDocs, String contentType,
+                                                  BatchCallback callback) throws Exception {
+    CloseableHttpAsyncClient client = getAsyncClient();
+
+    CorpusFile.ExposedByteArrayOutputStream body = new CorpusFile.ExposedByteArrayOutputStream();
+    RequestCompression compression = requestCompression;
+    ((compression != null) ? compression.compress(docs) : docs).writeTo(body);
+
+    AsyncPost post = new AsyncPost(client, requestCounter.incrementAndGet(), body, numDocs, contentType,
+      compression != null, getAvailableEndpoints(), callback);
+    inFlight.acquire();
+    post.send();
+    return post.future;
+  }
+
+  private synchronized CloseableHttpAsyncClient getAsyncClient() {
+    if (asyncClient == null) {
+      inFlight = new Semaphore(maxInFlight);
+
+      HttpAsyncClientBuilder builder = HttpAsyncClients.custom();
+      builder.setDefaultRequestConfig(globalConfig).setDefaultCookieStore(cookieStore);
+      builder.setMaxConnPerRoute(Math.max(100, maxInFlight));
+      builder.setMaxConnTotal(Math.max(500, maxInFlight));
+      if (fusionUser != null && fusionRealm == null)
+        builder.addInterceptorFirst(new PreEmptiveBasicAuthenticator(fusionUser, fusionPass));
+      asyncClient = builder.build();
+      asyncClient.start();
+
+      // re-tries wait and re-establishing a session blocks, neither of which can be done on an I/O thread
+      retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "FusionPipelineClient-retry");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return asyncClient;
+  }
+
+  // one batch posted by postBatchToPipelineAsync, along with where it is in its re-tries
+  private class AsyncPost implements FutureCallback<HttpResponse> {
+    final CloseableHttpAsyncClient client;
+    final int requestId;
+    final CorpusFile.ExposedByteArrayOutputStream body;
+    final int numDocs;
+    final String contentType;
+    final boolean compressed;
+    final ArrayList<String> mutable;
+    final BatchCallback callback;
+    final BasicFuture<Integer> future = new BasicFuture<Integer>(null);
+
+    String endpoint;
+    FusionSession fusionSession;
+    boolean sessionReset = false;
+    boolean retried = false;
+    Exception lastExc = null;
+
+    AsyncPost(CloseableHttpAsyncClient client, int requestId, CorpusFile.ExposedByteArrayOutputStream body, int numDocs,
+              String contentType, boolean compressed, ArrayList<String> mutable, BatchCallback callback) {
+      this.client = client;
+      this.requestId = requestId;
+      this.body = body;
+      this.numDocs = numDocs;
+      this.contentType = contentType;
+      this.compressed = compressed;
+      this.mutable = mutable;
+      this.callback = callback;
+      this.endpoint = getLbEndpoint(mutable);
+    }
+
+    void send() {
+      try {
+        fusionSession = activeSession(endpoint, requestId);
+
+        if (log.isDebugEnabled())
+          log.debug("POSTing batch of "+numDocs+" input docs to "+endpoint+" as async request "+requestId);
+
+        HttpPost postRequest = new HttpPost(endpoint);
+        NByteArrayEntity entity = new NByteArrayEntity(body.buf(), 0, body.size());
+        entity.setContentType(contentType);
+        if (compressed)
+          entity.setContentEncoding(RequestCompression.CONTENT_ENCODING);
+        else if (JSON_CONTENT_TYPE.equals(contentType))
+          entity.setContentEncoding(StandardCharsets.UTF_8.name());
+        postRequest.setEntity(entity);
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore(cookieStore);
+        client.execute(postRequest, context, this);
+      } catch (Exception exc) {
+        failed(exc);
+      }
+    }
+
+    public void completed(HttpResponse response) {
+      HttpEntity entity = response.getEntity();
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode == 200 || statusCode == 204) {
+        consumeQuietly(entity);
+        if (fusionSession != null && fusionSession.docsSentMeter != null)
+          fusionSession.docsSentMeter.mark(numDocs);
+        if (lastExc != null || sessionReset)
+          log.info("Re-try request "+requestId+" to "+endpoint+" succeeded");
+        done(null);
+      } else if (statusCode == 401 && !sessionReset) {
+        // unauth'd - session probably expired? re-establish it and re-send
+        consumeQuietly(entity);
+        log.warn("Unauthorized error (401) when trying to send request " + requestId +
+          " to Fusion at " + endpoint + ", will re-try to establish session");
+        sessionReset = true;
+        retryScheduler.execute(new Runnable() {
+          public void run() {
+            FusionSession session = null;
+            try {
+              session = resetSession(endpoint);
+            } catch (Exception exc) {
+              log.error("Failed to re-establish session with Fusion at " + endpoint + " due to: " + exc);
+            }
+            if (session == null) {
+              failed(new IllegalStateException("After re-establishing session when processing request "+
+                requestId+", endpoint "+endpoint+" is no longer active! Try another endpoint."));
+            } else {
+              log.info("Going to re-try request "+requestId+" after session re-established with "+endpoint);
+              send();
+            }
+          }
+        });
+      } else {
+        try {
+          raiseFusionServerException(endpoint, entity, statusCode, response, requestId);
+        } catch (Exception exc) {
+          failed(exc);
+        }
+      }
+    }
+
+    public void failed(Exception exc) {
+      log.warn("Failed to send request "+requestId+" to '"+endpoint+"' due to: "+exc);
+      lastExc = exc;
+      if (mutable.size() > 1) {
+        // try another endpoint, and don't come back to the one having an error
+        mutable.remove(endpoint);
+        endpoint = getLbEndpoint(mutable);
+        sessionReset = false;
+        if (log.isDebugEnabled())
+          log.debug("Will re-try failed request " + requestId + " on next endpoint in the list");
+        retryScheduler.execute(new Runnable() {
+          public void run() {
+            send();
+          }
+        });
+      } else if (!retried) {
+        retried = true;
+        sessionReset = false;
+        log.warn("No more endpoints available to try ... will retry to send request "+ requestId+" to "+endpoint+" after waiting 1 sec");
+        retryScheduler.schedule(new Runnable() {
+          public void run() {
+            send();
+          }
+        }, 1, TimeUnit.SECONDS);
+      } else {
+        log.error("Failing request " + requestId + " due to: " + exc);
+        done(exc);
+      }
+    }
+
+    public void cancelled() {
+      done(new IllegalStateException("Request " + requestId + " to " + endpoint + " was cancelled"));
+    }
+
+    private void done(Exception exc) {
+      inFlight.release();
+      if (callback != null) {
+        try {
+          if (exc == null)
+            callback.completed(numDocs);
+          else
+            callback.failed(exc);
+        } catch (RuntimeException callbackExc) {
+          log.error("Callback for request " + requestId + " failed due to: " + callbackExc, callbackExc);
+        }
+      }
+      if (exc == null)
+        future.completed(numDocs);
+      else
+        future.failed(exc);
+    }
+  }
+
+  private static void consumeQuietly(HttpEntity entity) {
+    try {
+      EntityUtils.consume(entity);
+    } catch (Exception ignore) {
+      log.warn("Failed to consume entity due to: "+ignore);
+    }
+  }
+
+  // the endpoint's session, re-established first if it has likely expired (or soon will)
+  protected synchronized FusionSession activeSession(String endpoint, int requestId) throws Exception {
+    FusionSession fusionSession = sessions.get(endpoint);
+    if (fusionSession == null || (System.nanoTime() - fusionSession.sessionEstablishedAt) > maxNanosOfInactivity) {
+      log.info("Fusion session is likely expired (or soon will be) for endpoint "+endpoint+", " +
+        "pre-emptively re-setting this session before processing request "+requestId);
+      fusionSession = resetSession(endpoint);
+      if (fusionSession == null)
+        throw new IllegalStateException("Failed to re-connect to "+endpoint+
+          " after session loss when processing request "+requestId);
+    }
+    return fusionSession;
+  }
+
+  protected Exception postJsonToPipelineWithRetry(String endpoint, ContentProducer docs, int numDocs, String contentType,
+                                                  ArrayList<String> mutable, Exception lastExc, int requestId)
     throws Exception
   {
     Exception retryAfterException = null;
 
     try {
-      postJsonToPipeline(endpoint, docs, requestId);
+      postJsonToPipeline(endpoint, docs, numDocs, requestId, contentType);
       if (lastExc != null)
         log.info("Re-try request "+requestId+" to "+endpoint+" succeeded after seeing a "+lastExc.getMessage());
     } catch (Exception exc) {
@@ -410,7 +714,7 @@ public class FusionPipelineClient {
           Thread.interrupted();
         }
         // note we want the exception to propagate from here up the stack since we re-tried and it didn't work
-        postJsonToPipeline(endpoint, docs, requestId);
+        postJsonToPipeline(endpoint, docs, numDocs, requestId, contentType);
         log.info("Re-try request " + requestId + " to " + endpoint + " succeeded");
         retryAfterException = null; // return success condition
       }
@@ -441,32 +745,30 @@ public class FusionPipelineClient {
   }
 
   public void postJsonToPipeline(String endpoint, List docs, int requestId) throws Exception {
+    postJsonToPipeline(endpoint, new JacksonContentProducer(jsonObjectMapper, docs), docs.size(), requestId);
+  }
 
-    FusionSession fusionSession = null;
+  public void postJsonToPipeline(String endpoint, ContentProducer docs, int numDocs, int requestId) throws Exception {
+    postJsonToPipeline(endpoint, docs, numDocs, requestId, JSON_CONTENT_TYPE);
+  }
 
-    long currTime = System.nanoTime();
-    synchronized (this) {
-      fusionSession = sessions.get(endpoint);
+  public void postJsonToPipeline(String endpoint, ContentProducer docs, int numDocs, int requestId, String contentType) throws Exception {
 
-      // ensure last request within the session timeout period, else reset the session
-      if (fusionSession == null || (currTime - fusionSession.sessionEstablishedAt) > maxNanosOfInactivity) {
-        log.info("Fusion session is likely expired (or soon will be) for endpoint "+endpoint+", " +
-          "pre-emptively re-setting this session before processing request "+requestId);
-        fusionSession = resetSession(endpoint);
-        if (fusionSession == null)
-          throw new IllegalStateException("Failed to re-connect to "+endpoint+
-            " after session loss when processing request "+requestId);
-      }
-    }
+    // ensure last request within the session timeout period, else reset the session
+    FusionSession fusionSession = activeSession(endpoint, requestId);
 
     HttpEntity entity = null;
     try {
       HttpPost postRequest = new HttpPost(endpoint);
 
       // stream the json directly to the HTTP output
-      EntityTemplate et = new EntityTemplate(new JacksonContentProducer(jsonObjectMapper, docs));
-      et.setContentType("application/json");
-      et.setContentEncoding(StandardCharsets.UTF_8.name());
+      RequestCompression compression = requestCompression;
+      EntityTemplate et = new EntityTemplate((compression != null) ? compression.compress(docs) : docs);
+      et.setContentType(contentType);
+      if (compression != null)
+        et.setContentEncoding(RequestCompression.CONTENT_ENCODING);
+      else if (JSON_CONTENT_TYPE.equals(contentType))
+        et.setContentEncoding(StandardCharsets.UTF_8.name());
       postRequest.setEntity(et); // new BufferedHttpEntity(et));
 
       HttpClientContext context = HttpClientContext.create();
@@ -510,7 +812,7 @@ public class FusionPipelineClient {
       } else {
         // OK!
         if (fusionSession != null && fusionSession.docsSentMeter != null)
-          fusionSession.docsSentMeter.mark(docs.size());
+          fusionSession.docsSentMeter.mark(numDocs);
       }
     } finally {
 
@@ -588,7 +890,38 @@ public class FusionPipelineClient {
     return body.toString();
   }
 
-  public synchronized void shutdown() {
+  public void shutdown() {
+    // let async batches that are already in flight finish, re-tries included; this can't hold
+    // the lock while it waits, since re-tries need it to re-establish sessions
+    Semaphore asyncInFlight;
+    synchronized (this) {
+      asyncInFlight = (asyncClient != null) ? inFlight : null;
+    }
+    if (asyncInFlight != null) {
+      try {
+        if (!asyncInFlight.tryAcquire(maxInFlight, 60, TimeUnit.SECONDS))
+          log.warn("Timed out waiting for async batches to finish");
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      shutdownClients();
+    }
+  }
+
+  private void shutdownClients() {
+    if (asyncClient != null) {
+      retryScheduler.shutdownNow();
+      retryScheduler = null;
+      try {
+        asyncClient.close();
+      } catch (IOException e) {
+        log.warn("Failed to close async httpClient due to: " + e);
+      }
+      asyncClient = null;
+    }
+
     if (sessions != null) {
       sessions.clear();
       sessions = null;
@@ -0,0 +1,130 @@
+package com.lucidworks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The set of doc ordinals that have been indexed (and not deleted), kept as a bitset over
+ * [base .. base+span), so it takes one bit per id and can track hundreds of millions of ids.
+ * Ordinals only need to be roughly dense, which they are since ids are idBase + ordinal.
+ *
+ * Picks favor recently added ids (by ordinal) using a Zipf-like distribution over the rank
+ * from the newest, which doesn't need a table, so it works for a pool that keeps growing.
+ *
+ * Not thread-safe.
+ */
+public final class IdPool {
+
+  private long base = -1;
+  private long span = 0;
+  private long live = 0;
+  private long[] bits = new long[1024];
+
+  public long size() {
+    return live;
+  }
+
+  public boolean isEmpty() {
+    return live == 0;
+  }
+
+  /**
+   * Adds an ordinal; ordinals below the first one added aren't tracked.
+   */
+  public void add(long ordinal) {
+    if (base == -1)
+      base = ordinal;
+
+    long bit = ordinal - base;
+    if (bit < 0)
+      return;
+
+    int word = (int) (bit >>> 6);
+    if (word >= bits.length) {
+      long newLength = Math.max((long) word + 1, (long) bits.length * 2);
+      if (newLength > Integer.MAX_VALUE - 8)
+        throw new IllegalStateException("Too many ids in pool; ordinal " + ordinal + " is too far from " + base);
+      bits = Arrays.copyOf(bits, (int) newLength);
+    }
+
+    long mask = 1L << bit;
+    if ((bits[word] & mask) == 0) {
+      bits[word] |= mask;
+      ++live;
+    }
+    if (bit >= span)
+      span = bit + 1;
+  }
+
+  public boolean remove(long ordinal) {
+    long bit = ordinal - base;
+    if (base == -1 || bit < 0 || bit >= span)
+      return false;
+
+    int word = (int) (bit >>> 6);
+    long mask = 1L << bit;
+    if ((bits[word] & mask) == 0)
+      return false;
+    bits[word] &= ~mask;
+    --live;
+    return true;
+  }
+
+  public boolean contains(long ordinal) {
+    long bit = ordinal - base;
+    return base != -1 && bit >= 0 && bit < span && (bits[(int) (bit >>> 6)] & (1L << bit)) != 0;
+  }
+
+  /**
+   * Picks a live ordinal, where the newest is the most likely and the probability falls off
+   * with rank^-exponent; returns -1 if the pool is empty.
+   */
+  public long pickRecent(Random rand, double exponent) {
+    if (live == 0)
+      return -1;
+    return nearestLive(span - 1 - zipfRank(rand, span, exponent));
+  }
+
+  /**
+   * Picks a live ordinal uniformly (close enough, if there are few deletes); -1 if empty.
+   */
+  public long pickUniform(Random rand) {
+    if (live == 0)
+      return -1;
+    return nearestLive((long) (rand.nextDouble() * span));
+  }
+
+  // the live ordinal at or below bit, or else the first one above it
+  private long nearestLive(long bit) {
+    int word = (int) (bit >>> 6);
+    long w = bits[word] & (-1L >>> (63 - (bit & 63)));
+    while (w == 0 && word > 0)
+      w = bits[--word];
+    if (w != 0)
+      return base + ((long) word << 6) + 63 - Long.numberOfLeadingZeros(w);
+
+    word = (int) (bit >>> 6);
+    w = bits[word] & (-1L << (bit & 63));
+    while (w == 0)
+      w = bits[++word];
+    return base + ((long) word << 6) + Long.numberOfTrailingZeros(w);
+  }
+
+  /**
+   * Draws a rank in [0..n) with density proportional to (rank+1)^-exponent, by inverting the
+   * CDF of the continuous distribution; unlike ZipfDistribution it doesn't need a table, so
+   * n can be anything.
+   */
+  static long zipfRank(Random rand, long n, double exponent) {
+    double u = rand.nextDouble();
+    double x;
+    if (Math.abs(exponent - 1d) < 1e-9) {
+      x = Math.exp(u * Math.log(n + 1d)) - 1d;
+    } else {
+      double oneMinusS = 1d - exponent;
+      x = Math.pow(u * (Math.pow(n + 1d, oneMinusS) - 1d) + 1d, 1d / oneMinusS) - 1d;
+    }
+    long rank = (long) x;
+    return (rank < 0) ? 0 : (rank >= n ? n - 1 : rank);
+  }
+}
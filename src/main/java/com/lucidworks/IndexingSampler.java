@@ -1,39 +1,67 @@
 package com.lucidworks;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.net.ConnectException;
-import java.net.SocketException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-
-import org.apache.http.NoHttpResponseException;
-import org.apache.http.conn.ConnectTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.util.EntityUtils;
 import org.apache.jmeter.protocol.java.sampler.AbstractJavaSamplerClient;
 import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.samplers.SampleResult;
 import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.apache.jmeter.threads.AbstractThreadGroup;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
-import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkCoreNodeProps;
+import org.apache.solr.common.util.ContentStreamBase;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 
 import org.apache.solr.common.params.ModifiableSolrParams;
-import sdsu.algorithms.data.Zipf;
 
 public class IndexingSampler extends AbstractJavaSamplerClient implements Serializable {
   private static final long serialVersionUID = 1L;
@@ -50,17 +78,96 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
   // none, a final hard commit is sent.
   private static AtomicInteger refCounter = new AtomicInteger(0);
 
-  private static List<String> englishWords = null;
+  private static WordArena englishWords = null;
+
+  // profiles compiled from DOC_PROFILE / TARGET_BYTES_PER_DOC / CHILD_DOCS, shared by all samplers using the same settings
+  private static final Map<String, DocProfile> profiles = new HashMap<String, DocProfile>();
+
+  // with a VISIBILITY_PROBE, one prober for all samplers, so the lookups don't grow with the
+  // number of threads
+  private static VisibilityProbe visibilityProbe = null;
+  private static CloudSolrClient probeClient = null;
+
+  // with a COMMIT_POLICY, one scheduler for all samplers, so commits don't multiply with the
+  // number of threads
+  private static CommitScheduler commitScheduler = null;
+  private static CloudSolrClient commitClient = null;
+
+  // one per RETRY_POLICY, so all samplers with the same policy share its retry budget
+  private static final Map<String, RetryPolicy> retryPolicies = new HashMap<String, RetryPolicy>();
 
   protected CloudSolrClient cloudSolrClient;
   //protected Random rand;
   protected FieldSpec[] fields;
+  protected ChildDocSpec childDocs;
   protected boolean commitAtEnd = true;
+  protected boolean reproducible = false;
+  protected int numThreads = 1; // threads generating REPRODUCIBLE docs, so each loop of each thread gets its own ordinals
+  protected int loop = 0; // runTest calls so far
+  protected long randomSeed = 5150;
   protected FusionPipelineClient indexPipelineClient;
+  protected CorpusFile corpus;
+  protected RateSchedule targetRate; // null for closed-loop
+  protected ShardRouter shardRouter; // null unless ROUTE_TO_LEADERS
+  protected UpdateFormat updateFormat; // null to let the client pick (javabin for SolrCloud, JSON for Fusion)
+  protected AdaptiveBatchController batchController; // null to use a fixed BATCH_SIZE
+  protected boolean asyncPipeline = false; // true if FUSION_MAX_IN_FLIGHT posts batches on the client's async transport
+  protected RequestCompression requestCompression; // null to send request bodies as-is
+  protected RetryPolicy retryPolicy;
+  protected File spillDir; // null unless SPILL_DIR
+  protected long spillMaxBytes;
+  protected int maxBatchSubResults; // 0 unless BATCH_SUB_RESULTS
+  protected volatile BatchResults batchResults; // requests sent during the current runTest, if recording them
+
+  // WORKLOAD_MIX state; the pool and next ordinal carry over from one loop to the next
+  protected WorkloadMix workloadMix;
+  protected double updateIdSkew = 1.0d;
+  protected String inPlaceField = "popularity_l";
+  protected IdPool idPool;
+  protected long nextOrdinal;
+  protected Random mixRand;
 
   private static final MetricRegistry metrics = new MetricRegistry();
   private static final Timer sendBatchToSolrTimer = metrics.timer("sendBatchToSolr");
   private static final Timer constructDocsTimer = metrics.timer("constructDocsTimer");
+  // with a TARGET_RATE, sendBatchToSolr is measured from the intended send time and this is the time spent in the request
+  private static final Timer sendBatchServiceTimer = metrics.timer("sendBatchToSolr.service");
+  // time generator workers spend waiting on senders and vice-versa when running with GENERATOR_THREADS / SENDER_THREADS
+  private static final Counter generatorsBlockedMicros = metrics.counter("generatorsBlockedMicros");
+  private static final Counter sendersBlockedMicros = metrics.counter("sendersBlockedMicros");
+  private static final Counter behindScheduleMicros = metrics.counter("behindScheduleMicros");
+  // with an UPDATE_FORMAT, batches are encoded before sending, so the encoding, the size of the
+  // request and the round-trip to the server (sending, parsing and indexing) are measured apart
+  private static final Timer[] encodeTimers = new Timer[UpdateFormat.values().length];
+  private static final Histogram[] requestBytes = new Histogram[UpdateFormat.values().length];
+  private static final Timer[] roundTripTimers = new Timer[UpdateFormat.values().length];
+  static {
+    for (UpdateFormat format : UpdateFormat.values()) {
+      encodeTimers[format.ordinal()] = metrics.timer("encodeBatch." + format);
+      requestBytes[format.ordinal()] = metrics.histogram("requestBytes." + format);
+      roundTripTimers[format.ordinal()] = metrics.timer("roundTrip." + format);
+    }
+  }
+  // with ADAPTIVE_BATCH, the batch size and in-flight limit in effect for each batch sent
+  private static final Histogram adaptiveBatchSizes = metrics.histogram("adaptive.batchSize");
+  private static final Histogram adaptiveInFlight = metrics.histogram("adaptive.inFlight");
+  // with a SPILL_DIR, batches written to disk because the queue was full, and those sent from there
+  private static final Counter spilledBatches = metrics.counter("spill.batches");
+  private static final Counter spilledBytes = metrics.counter("spill.bytes");
+  private static final Counter drainedBatches = metrics.counter("spill.drained");
+  private static final ThreadLocal<CorpusFile.ExposedByteArrayOutputStream> encodeBuffers =
+    new ThreadLocal<CorpusFile.ExposedByteArrayOutputStream>() {
+      @Override
+      protected CorpusFile.ExposedByteArrayOutputStream initialValue() {
+        return new CorpusFile.ExposedByteArrayOutputStream();
+      }
+    };
+  // one timer per kind of write when running a WORKLOAD_MIX
+  private static final Timer[] mixTimers = new Timer[WorkloadMix.Op.values().length];
+  static {
+    for (WorkloadMix.Op op : WorkloadMix.Op.values())
+      mixTimers[op.ordinal()] = metrics.timer("mix." + op.key);
+  }
   private static ConsoleReporter reporter = null;
 
   private static long dateBaseMs = 1368045398000l;
@@ -84,15 +191,13 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
     }
   };
 
-  private static ThreadLocal<Zipf> zipf = new ThreadLocal<Zipf>() {
-    @Override
-    protected Zipf initialValue() {
-      return new Zipf(30000);
-    }
-  };
-
   public IndexingSampler() {
-    fields = new FieldSpec[]{
+    fields = defaultFields();
+    initializeWords("100K_words_en.txt");
+  }
+
+  static FieldSpec[] defaultFields() {
+    return new FieldSpec[]{
       new FieldSpec("integer1_i", "i:1:100000:u:10"),
       new FieldSpec("integer2_i", "i:1:10000:u:50"),
       new FieldSpec("long1_l", "l:1:10000000:u:10"),
@@ -112,8 +217,6 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
       new FieldSpec("text2_en", "s:20:100000:z:0", 30),
       new FieldSpec("text3_en", "s:8:30000:z:0", 80)
     };
-
-    initializeWords("100K_words_en.txt");
   }
 
   protected synchronized void initializeWords(String wordListResource) {
@@ -133,6 +236,18 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
     return fields;
   }
 
+  public ChildDocSpec getChildDocs() {
+    return childDocs;
+  }
+
+  static String word(int index) {
+    return englishWords.word(index);
+  }
+
+  static WordArena words() {
+    return englishWords;
+  }
+
   @Override
   public Arguments getDefaultParameters() {
     Arguments defaultParameters = new Arguments();
@@ -141,14 +256,37 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
     defaultParameters.addArgument("BATCH_SIZE", "100");
     defaultParameters.addArgument("NUM_DOCS_PER_LOOP", "10000");
     defaultParameters.addArgument("THREAD_ID", "${__threadNum}");
+    defaultParameters.addArgument("NUM_THREADS", ""); // blank for the thread group's size
     defaultParameters.addArgument("ID_PREFIX", "id-");
     defaultParameters.addArgument("RANDOM_SEED", "5150");
+    defaultParameters.addArgument("REPRODUCIBLE", "false");
     defaultParameters.addArgument("WORD_LIST", "100K_words_en.txt");
     defaultParameters.addArgument("COMMIT_AT_END", "true");
     defaultParameters.addArgument("FUSION_INDEX_PIPELINE",
       "http://localhost:8765/lucid/api/v1/index-pipelines/conn_logging/collections/${collection}/index");
     defaultParameters.addArgument("ENDPOINT_TYPE", "fusion");
     defaultParameters.addArgument("QUEUE_SIZE", "5000");
+    defaultParameters.addArgument("GENERATOR_THREADS", "1");
+    defaultParameters.addArgument("SENDER_THREADS", "1");
+    defaultParameters.addArgument("CORPUS_FILE", "");
+    defaultParameters.addArgument("TARGET_RATE", "");
+    defaultParameters.addArgument("ROUTE_TO_LEADERS", "false");
+    defaultParameters.addArgument("UPDATE_FORMAT", "");
+    defaultParameters.addArgument("ADAPTIVE_BATCH", "");
+    defaultParameters.addArgument("FUSION_MAX_IN_FLIGHT", "0");
+    defaultParameters.addArgument("REQUEST_COMPRESSION", "");
+    defaultParameters.addArgument("RETRY_POLICY", RetryPolicy.DEFAULT_SPEC);
+    defaultParameters.addArgument("SPILL_DIR", "");
+    defaultParameters.addArgument("SPILL_MAX_MB", "1024");
+    defaultParameters.addArgument("VISIBILITY_PROBE", "");
+    defaultParameters.addArgument("COMMIT_POLICY", "");
+    defaultParameters.addArgument("BATCH_SUB_RESULTS", "0");
+    defaultParameters.addArgument("DOC_PROFILE", "");
+    defaultParameters.addArgument("TARGET_BYTES_PER_DOC", "");
+    defaultParameters.addArgument("CHILD_DOCS", "");
+    defaultParameters.addArgument("WORKLOAD_MIX", "");
+    defaultParameters.addArgument("UPDATE_ID_SKEW", "1.0");
+    defaultParameters.addArgument("INPLACE_FIELD", "popularity_l");
     return defaultParameters;
   }
 
@@ -164,6 +302,10 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
       if (param != null)
         params.put(paramName, param);
     }
+    String numThreadsParam = params.get("NUM_THREADS");
+    AbstractThreadGroup threadGroup = JMeterContextService.getContext().getThreadGroup();
+    if ((numThreadsParam == null || numThreadsParam.trim().length() == 0) && threadGroup != null)
+      params.put("NUM_THREADS", String.valueOf(threadGroup.getNumThreads()));
     setup(params);
 
     synchronized (IndexingSampler.class) {
@@ -182,6 +324,13 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
 
   public void setup(Map<String, String> params) {
     commitAtEnd = "true".equals(params.get("COMMIT_AT_END"));
+    reproducible = "true".equals(params.get("REPRODUCIBLE"));
+    String numThreadsParam = params.get("NUM_THREADS");
+    if (numThreadsParam != null && numThreadsParam.trim().length() > 0)
+      numThreads = Integer.parseInt(numThreadsParam.trim());
+    String randomSeedParam = params.get("RANDOM_SEED");
+    if (randomSeedParam != null && randomSeedParam.trim().length() > 0)
+      randomSeed = Long.parseLong(randomSeedParam.trim());
 
     // setup for data generation
     String wordListResource = params.get("WORD_LIST");
@@ -189,6 +338,18 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
       wordListResource = "100K_words_en.txt";
     initializeWords(wordListResource);
 
+    String docProfile = params.get("DOC_PROFILE");
+    String targetBytesParam = params.get("TARGET_BYTES_PER_DOC");
+    int targetBytes = (targetBytesParam != null && targetBytesParam.trim().length() > 0)
+      ? Integer.parseInt(targetBytesParam.trim()) : 0;
+    String childFanOut = params.get("CHILD_DOCS");
+    if (docProfile != null && docProfile.trim().length() == 0)
+      docProfile = null;
+    if (childFanOut != null && childFanOut.trim().length() == 0)
+      childFanOut = null;
+    if (docProfile != null || targetBytes > 0 || childFanOut != null)
+      useProfile(docProfile != null ? docProfile.trim() : null, targetBytes, childFanOut);
+
     String type = params.get("ENDPOINT_TYPE");
     String collection = params.get("COLLECTION");
     if ("solrcloud".equals(type)) {
@@ -196,13 +357,10 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
       if (zkHost == null || zkHost.trim().length() == 0)
         throw new IllegalArgumentException("ZK_HOST is required when using ENDPOINT_TYPE=" + type);
 
-      log.info("Connecting to SolrCloud using zkHost: " + zkHost);
-      cloudSolrClient = new CloudSolrClient(zkHost);
-      cloudSolrClient.setDefaultCollection(collection);
-      cloudSolrClient.connect();
-      log.info("Connected to SolrCloud; collection=" + collection);
-      HttpClientUtil.setMaxConnections(cloudSolrClient.getLbClient().getHttpClient(), 500);
-      HttpClientUtil.setMaxConnectionsPerHost(cloudSolrClient.getLbClient().getHttpClient(), 100);
+      cloudSolrClient = CloudSolrClients.acquire(zkHost, collection);
+
+      if ("true".equals(params.get("ROUTE_TO_LEADERS")))
+        shardRouter = new ShardRouter(cloudSolrClient, collection);
     } else if ("fusion".equals(type)) {
       String fusionIndexPipelineEndpoint = params.get("FUSION_INDEX_PIPELINE");
       if (fusionIndexPipelineEndpoint == null || fusionIndexPipelineEndpoint.trim().length() == 0)
@@ -215,43 +373,204 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
       } catch (Exception exc) {
         throw new RuntimeException(exc);
       }
+
+      // post batches on the client's async transport with up to this many in flight, rather than one per sender thread
+      int maxInFlight = intParam(params, "FUSION_MAX_IN_FLIGHT", 0);
+      if (maxInFlight > 0) {
+        indexPipelineClient.setMaxInFlight(maxInFlight);
+        asyncPipeline = true;
+      }
     } else if ("datagenonly".equals(type)) {
       // ok
     } else {
       throw new IllegalArgumentException(type + " not supported!");
     }
 
+    // replay pre-generated docs from a corpus file instead of generating them
+    String corpusFile = params.get("CORPUS_FILE");
+    if (corpusFile != null && corpusFile.trim().length() > 0) {
+      try {
+        corpus = CorpusFile.open(corpusFile.trim());
+      } catch (Exception exc) {
+        throw new RuntimeException("Failed to open CORPUS_FILE " + corpusFile + " due to: " + exc, exc);
+      }
+      if (indexPipelineClient != null && corpus.getFormat() != CorpusFile.Format.JSON)
+        throw new IllegalArgumentException("ENDPOINT_TYPE=" + type + " requires a JSON corpus file, not " + corpus.getFormat());
+      log.info("Replaying " + corpus.getNumDocs() + " docs in " + corpus.getNumBlocks() + " " +
+        corpus.getFormat() + " blocks from " + corpus.getFile());
+    }
+
+    String format = params.get("UPDATE_FORMAT");
+    if (format != null && format.trim().length() > 0) {
+      updateFormat = UpdateFormat.forName(format);
+      log.info("Sending batches as " + updateFormat);
+    }
+
+    String compression = params.get("REQUEST_COMPRESSION");
+    if (compression != null && compression.trim().length() > 0) {
+      requestCompression = RequestCompression.parse(compression, metrics);
+      if (indexPipelineClient != null)
+        indexPipelineClient.setRequestCompression(requestCompression);
+      log.info("Compressing request bodies with " + requestCompression);
+    }
+
+    String retry = params.get("RETRY_POLICY");
+    if (retry == null || retry.trim().length() == 0)
+      retry = RetryPolicy.DEFAULT_SPEC;
+    synchronized (retryPolicies) {
+      retryPolicy = retryPolicies.get(retry.trim());
+      if (retryPolicy == null) {
+        retryPolicy = RetryPolicy.parse(retry, metrics);
+        retryPolicies.put(retry.trim(), retryPolicy);
+      }
+    }
+
+    String rate = params.get("TARGET_RATE");
+    if (rate != null && rate.trim().length() > 0) {
+      if (corpus != null)
+        throw new IllegalArgumentException("TARGET_RATE can't be used with a CORPUS_FILE");
+      targetRate = RateSchedule.parse(rate);
+      log.info("Sending docs open-loop at a target rate of " + targetRate);
+    }
+
+    String adaptive = params.get("ADAPTIVE_BATCH");
+    if (adaptive != null && adaptive.trim().length() > 0) {
+      if (corpus != null || targetRate != null || asyncPipeline)
+        throw new IllegalArgumentException("ADAPTIVE_BATCH can't be used with a CORPUS_FILE, TARGET_RATE or FUSION_MAX_IN_FLIGHT");
+      int startBatchSize = intParam(params, "BATCH_SIZE", 100);
+      int numSenders = intParam(params, "SENDER_THREADS", 1);
+      batchController = AdaptiveBatchController.parse(adaptive, startBatchSize, numSenders);
+      batchController.setMetrics(adaptiveBatchSizes, adaptiveInFlight);
+      log.info("Adapting the batch size and batches in flight to the send latency: " + batchController);
+    }
+
+    maxBatchSubResults = intParam(params, "BATCH_SUB_RESULTS", 0);
+    if (maxBatchSubResults > 0)
+      log.info("Recording up to " + maxBatchSubResults + " requests per sample as JMeter sub-results");
+
+    String spill = params.get("SPILL_DIR");
+    if (spill != null && spill.trim().length() > 0) {
+      if (corpus != null || batchController != null || asyncPipeline)
+        throw new IllegalArgumentException("SPILL_DIR can't be used with a CORPUS_FILE, ADAPTIVE_BATCH or FUSION_MAX_IN_FLIGHT");
+      spillDir = new File(spill.trim());
+      spillMaxBytes = intParam(params, "SPILL_MAX_MB", 1024) * 1024L * 1024L;
+      log.info("Spilling batches to " + spillDir.getAbsolutePath() + " (up to " + (spillMaxBytes >> 20) + " MB) when senders fall behind");
+    }
+
+    String probe = params.get("VISIBILITY_PROBE");
+    if (probe != null && probe.trim().length() > 0) {
+      if (cloudSolrClient == null)
+        throw new IllegalArgumentException("VISIBILITY_PROBE requires ENDPOINT_TYPE=solrcloud");
+      synchronized (IndexingSampler.class) {
+        if (visibilityProbe == null) {
+          probeClient = CloudSolrClients.acquire(params.get("ZK_HOST"), collection);
+          visibilityProbe = VisibilityProbe.parse(probe, probeClient, metrics);
+          visibilityProbe.start();
+          log.info("Probing how long it takes for added docs to become visible: " + visibilityProbe);
+        }
+      }
+    }
+
+    String commitPolicy = params.get("COMMIT_POLICY");
+    if (commitPolicy != null && commitPolicy.trim().length() > 0) {
+      if (cloudSolrClient == null)
+        throw new IllegalArgumentException("COMMIT_POLICY requires ENDPOINT_TYPE=solrcloud");
+      synchronized (IndexingSampler.class) {
+        if (commitScheduler == null) {
+          commitClient = CloudSolrClients.acquire(params.get("ZK_HOST"), collection);
+          commitScheduler = CommitScheduler.parse(commitPolicy, commitClient, metrics);
+          commitScheduler.start();
+          log.info("Committing with policy: " + commitScheduler);
+        }
+      }
+    }
+
+    String mix = params.get("WORKLOAD_MIX");
+    if (mix != null && mix.trim().length() > 0) {
+      if (cloudSolrClient == null)
+        throw new IllegalArgumentException("WORKLOAD_MIX requires ENDPOINT_TYPE=solrcloud");
+      if (corpus != null || targetRate != null || batchController != null || requestCompression != null || spillDir != null)
+        throw new IllegalArgumentException("WORKLOAD_MIX can't be used with a CORPUS_FILE, TARGET_RATE, ADAPTIVE_BATCH, REQUEST_COMPRESSION or SPILL_DIR");
+      workloadMix = new WorkloadMix(mix);
+      if (childDocs != null && (workloadMix.includes(WorkloadMix.Op.ATOMIC) ||
+        workloadMix.includes(WorkloadMix.Op.INPLACE) || workloadMix.includes(WorkloadMix.Op.DELETE)))
+        throw new IllegalArgumentException("With CHILD_DOCS, WORKLOAD_MIX can only use add, overwrite and dbq, " +
+          "since updating or deleting a parent by id would break up its block");
+
+      String skew = params.get("UPDATE_ID_SKEW");
+      if (skew != null && skew.trim().length() > 0)
+        updateIdSkew = Double.parseDouble(skew.trim());
+      String field = params.get("INPLACE_FIELD");
+      if (field != null && field.trim().length() > 0)
+        inPlaceField = field.trim();
+      log.info("Sending a mixed write workload: " + workloadMix);
+    }
+
     refCounter.incrementAndGet();
   }
 
-  protected List<String> loadWords(String classpathRes) throws Exception {
-    InputStream stream = getClass().getClassLoader().getResourceAsStream(classpathRes);
-    if (stream == null)
-      throw new IllegalArgumentException(classpathRes + " not found on classpath!");
+  private static int intParam(Map<String, String> params, String name, int defaultValue) {
+    String value = params.get(name);
+    return (value != null && value.trim().length() > 0) ? Integer.parseInt(value.trim()) : defaultValue;
+  }
 
-    List<String> words = null;
-    BufferedReader br = null;
-    String line = null;
-    try {
-      br = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
-      words = new ArrayList<String>();
-      while ((line = br.readLine()) != null) {
-        String word = line.trim();
-        if (word.length() > 0)
-          words.add(word);
-      }
-    } finally {
-      if (br != null) {
+  /**
+   * Replaces the built-in fields with the fields from a doc profile (if not null) and, if
+   * targetBytesPerDoc is greater than 0 (or the profile sets it), scales the text and
+   * multi-valued fields to produce docs of about that size. If childFanOut is set (see
+   * ChildDocSpec), each doc gets nested children with the profile's child fields, or the
+   * built-in ones if the profile doesn't define children.
+   */
+  public void useProfile(String docProfile, int targetBytesPerDoc, String childFanOut) {
+    String key = docProfile + "@" + targetBytesPerDoc + "@" + childFanOut;
+    synchronized (profiles) {
+      DocProfile profile = profiles.get(key);
+      if (profile == null) {
         try {
-          br.close();
-        } catch (Exception ignore) {
+          if (docProfile != null) {
+            profile = DocProfile.load(docProfile);
+            log.info("Loaded " + profile);
+          } else {
+            profile = new DocProfile("built-in fields", Arrays.asList(defaultFields()), null, 0);
+          }
+
+          if (childFanOut != null) {
+            FieldSpec[] childFields = (profile.getChildDocs() != null)
+              ? profile.getChildDocs().getFields() : ChildDocSpec.defaultFields();
+            profile.setChildDocs(ChildDocSpec.parse(childFanOut, childFields));
+          }
+
+          int target = (targetBytesPerDoc > 0) ? targetBytesPerDoc : profile.getTargetBytesPerDoc();
+          if (target > 0) {
+            int bytesPerDoc = DocProfile.fitToTargetBytes(profile.getFields(), profile.getChildDocs(), target);
+            log.info("Scaled text and multi-valued fields to produce docs of ~" + bytesPerDoc +
+              " bytes (target " + target + ")");
+          }
+        } catch (Exception exc) {
+          if (exc instanceof RuntimeException)
+            throw (RuntimeException) exc;
+          else
+            throw new RuntimeException("Failed to load doc profile " + docProfile + " due to: " + exc, exc);
         }
+        if (profile.getChildDocs() != null)
+          log.info("Generating nested child docs: " + profile.getChildDocs());
+        profiles.put(key, profile);
       }
+      fields = profile.getFields();
+      childDocs = profile.getChildDocs();
     }
+  }
 
-    Collections.shuffle(words, rands.get());
+  /**
+   * Returns an empty batch for the fields (and child docs) this sampler generates.
+   */
+  public DocBatch newBatch(int batchSize) {
+    return new DocBatch(fields, childDocs, batchSize);
+  }
 
-    return words;
+  protected WordArena loadWords(String classpathRes) throws Exception {
+    // fixed seed so the word for each index is the same in every JVM
+    return WordArena.load(classpathRes, new Random(5150));
   }
 
   @Override
@@ -261,6 +580,16 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
     if (refs <= 0) {
       joinKeyAI.set(0);
 
+      synchronized (IndexingSampler.class) {
+        // stopped before the final commit, so the two don't overlap
+        if (commitScheduler != null) {
+          commitScheduler.close();
+          commitScheduler = null;
+          CloudSolrClients.release(commitClient);
+          commitClient = null;
+        }
+      }
+
       if (commitAtEnd && cloudSolrClient != null) {
         log.info("Sending final commit to SolrCloud.");
         try {
@@ -270,19 +599,35 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
         }
       }
 
+      synchronized (IndexingSampler.class) {
+        if (visibilityProbe != null) {
+          visibilityProbe.close();
+          visibilityProbe = null;
+          CloudSolrClients.release(probeClient);
+          probeClient = null;
+        }
+      }
+
       if (reporter != null) {
         reporter.report();
         reporter.stop();
       }
     }
 
+    if (shardRouter != null) {
+      shardRouter.close();
+      shardRouter = null;
+    }
+
     if (cloudSolrClient != null) {
-      try {
-        cloudSolrClient.shutdown();
-      } catch (Exception ignore) {
-      }
+      CloudSolrClients.release(cloudSolrClient);
       cloudSolrClient = null;
-      log.info("Shutdown CloudSolrClient.");
+    }
+
+    if (indexPipelineClient != null) {
+      // waits for any async batches still in flight, then stops the async client's threads
+      indexPipelineClient.shutdown();
+      indexPipelineClient = null;
     }
 
     super.teardownTest(context);
@@ -300,11 +645,19 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
     if (numDocsPerThread < batchSize)
       numDocsPerThread = batchSize; // min is batchSize
     int queueSize = context.getIntParameter("QUEUE_SIZE", 5000);
+    int numGenerators = context.getIntParameter("GENERATOR_THREADS", 1);
+    int numSenders = context.getIntParameter("SENDER_THREADS", 1);
+    batchResults = (maxBatchSubResults > 0) ? new BatchResults(maxBatchSubResults) : null;
 
     int totalDocs = 0;
     try {
-      if (cloudSolrClient != null) {
-        totalDocs = indexSolrDocument(idPrefix, threadId, numDocsPerThread, queueSize, batchSize);
+      if (corpus != null) {
+        totalDocs = replayCorpus(threadId, numDocsPerThread, numSenders);
+      } else if (workloadMix != null) {
+        totalDocs = indexMixed(idPrefix, threadId, numDocsPerThread, batchSize);
+      } else if (cloudSolrClient != null || numGenerators > 1 || numSenders > 1 || targetRate != null || batchController != null ||
+        asyncPipeline || spillDir != null) {
+        totalDocs = indexParallel(idPrefix, threadId, numDocsPerThread, queueSize, batchSize, numGenerators, numSenders);
       } else {
         totalDocs = indexToPipeline(idPrefix, threadId, numDocsPerThread, batchSize);
       }
@@ -316,8 +669,13 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
       result.setSuccessful(false);
       result.setErrorCount(1);
     }
+    ++loop;
 
     result.sampleEnd();
+    if (batchResults != null) {
+      batchResults.addTo(result);
+      batchResults = null;
+    }
     return result;
   }
 
@@ -327,9 +685,33 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
   public SolrInputDocument buildSolrInputDocument(String docId, Random rand) {
     SolrInputDocument inDoc = new SolrInputDocument();
     inDoc.setField("id", docId);
+    addFields(inDoc, fields, rand);
+
+    Date indexedAt = new Date();
+    inDoc.setField("indexed_at_tdt", indexedAt);
+    //inDoc.setField("joinkey_s", joinKeyAI.incrementAndGet());
+
+    // children are generated after the parent's fields, in the same order as DocBatch.addDoc
+    if (childDocs != null) {
+      inDoc.setField(ChildDocSpec.DOC_TYPE_FIELD, ChildDocSpec.PARENT);
+      int numChildren = childDocs.nextNumChildren(rand);
+      for (int c = 0; c < numChildren; c++) {
+        SolrInputDocument child = new SolrInputDocument();
+        child.setField("id", ChildDocSpec.childId(docId, c));
+        addFields(child, childDocs.getFields(), rand);
+        child.setField("indexed_at_tdt", indexedAt);
+        child.setField(ChildDocSpec.DOC_TYPE_FIELD, ChildDocSpec.CHILD);
+        inDoc.addChildDocument(child);
+      }
+    }
+
+    return inDoc;
+  }
+
+  private static void addFields(SolrInputDocument inDoc, FieldSpec[] fields, Random rand) {
     for (FieldSpec f : fields) {
       if (f.name.endsWith("_ss")) {
-        int numVals = rand.nextInt(20) + 1;
+        int numVals = f.nextNumValues(rand);
         for (int n = 0; n < numVals; n++) {
           Object val = f.next(rand);
           if (val != null) {
@@ -343,18 +725,59 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
         }
       }
     }
+  }
 
-    inDoc.setField("indexed_at_tdt", new Date());
-    //inDoc.setField("joinkey_s", joinKeyAI.incrementAndGet());
+  /**
+   * Re-builds doc N of a REPRODUCIBLE run, such as to verify what was indexed; apart from
+   * indexed_at_tdt, it has the same values as the doc the sampler sent.
+   */
+  public SolrInputDocument buildSolrInputDocument(String idPrefix, long ordinal) {
+    return buildSolrInputDocument(idPrefix + "_" + ordinal, new DocRandom(randomSeed, ordinal));
+  }
 
-    return inDoc;
+  /**
+   * In REPRODUCIBLE mode, loop L (0-based) of thread N (1-based) generates the numDocs ordinals
+   * starting at (L*NUM_THREADS + N-1)*numDocs, and the ids don't include the thread, so the
+   * same docs get generated no matter how many threads they're split across, and every loop
+   * indexes new docs.
+   */
+  protected long firstOrdinal(String threadId, int numDocsPerThread) {
+    if (!reproducible)
+      return 0;
+
+    int threadNum;
+    try {
+      threadNum = Integer.parseInt(threadId.trim());
+    } catch (NumberFormatException nfe) {
+      throw new IllegalArgumentException("THREAD_ID must be a number when REPRODUCIBLE=true, not " + threadId);
+    }
+    if (threadNum < 1 || threadNum > numThreads)
+      throw new IllegalArgumentException("THREAD_ID " + threadNum + " isn't between 1 and NUM_THREADS (" + numThreads +
+        "), so its docs would overlap another thread's when REPRODUCIBLE=true");
+    return ((long) loop * numThreads + threadNum - 1) * numDocsPerThread;
+  }
+
+  protected String idBase(String idPrefix, String threadId) {
+    return reproducible ? idPrefix + "_" : idPrefix + "_" + threadId + "_";
+  }
+
+  protected Random docRandom() {
+    return reproducible ? new DocRandom() : rands.get();
+  }
+
+  // in REPRODUCIBLE mode, positions the per-doc Random so the doc only depends on the seed and its ordinal
+  protected void startDoc(Random rand, long ordinal) {
+    if (reproducible)
+      ((DocRandom) rand).setDoc(randomSeed, ordinal);
   }
 
   protected int indexToPipeline(String idPrefix, String threadId, int numDocsPerThread, int batchSize) throws Exception {
     int totalDocs = 0;
-    List batch = new ArrayList();
+    DocBatch batch = newBatch(batchSize);
+    batch.setIdBase(idBase(idPrefix, threadId));
 
-    Random rand = rands.get();
+    Random rand = docRandom();
+    long firstOrdinal = firstOrdinal(threadId, numDocsPerThread);
     Timer.Context constructBatchTimerCtxt = null;
     for (int d = 0; d < numDocsPerThread; d++) {
 
@@ -362,15 +785,15 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
         constructBatchTimerCtxt = constructDocsTimer.time();
       }
 
-      String docId = String.format("%s_%s_%d", idPrefix, threadId, d);
-      Map<String,Object> nextDoc = buildJsonInputDocument(docId, rand);
-      batch.add(nextDoc);
+      long ordinal = firstOrdinal + d;
+      startDoc(rand, ordinal);
+      batch.addDoc(ordinal, rand);
 
-      if (batch.size() >= batchSize) {
+      if (batch.isFull()) {
         constructBatchTimerCtxt.stop();
         constructBatchTimerCtxt = null; // reset
 
-        totalDocs += sendJsonBatch(batch, 10, 3);
+        totalDocs += sendJsonBatch(batch);
         if (totalDocs % 1000 == 0) {
           log.info("Thread " + threadId + " has sent " + totalDocs
             + " docs so far.");
@@ -379,21 +802,42 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
     }
 
     // last batch
-    if (batch.size() > 0) {
-      totalDocs += sendJsonBatch(batch, 10, 3);
+    if (!batch.isEmpty()) {
+      totalDocs += sendJsonBatch(batch);
     }
 
     return totalDocs;
   }
 
   public Map<String,Object> buildJsonInputDocument(String docId, Random rand) {
-
     SimpleDateFormat df = sdf.get();
+    String indexedAt = df.format(new Date());
+    Map<String,Object> doc = buildJsonFields(fields, rand, df);
+    doc.put("id", docId);
+    doc.put("indexed_at_tdt", indexedAt);
+
+    if (childDocs != null) {
+      doc.put(ChildDocSpec.DOC_TYPE_FIELD, ChildDocSpec.PARENT);
+      int numChildren = childDocs.nextNumChildren(rand);
+      List<Map<String,Object>> children = new ArrayList<Map<String,Object>>(numChildren);
+      for (int c = 0; c < numChildren; c++) {
+        Map<String,Object> child = buildJsonFields(childDocs.getFields(), rand, df);
+        child.put("id", ChildDocSpec.childId(docId, c));
+        child.put("indexed_at_tdt", indexedAt);
+        child.put(ChildDocSpec.DOC_TYPE_FIELD, ChildDocSpec.CHILD);
+        children.add(child);
+      }
+      doc.put("_childDocuments_", children);
+    }
+
+    return doc;
+  }
 
+  private static Map<String,Object> buildJsonFields(FieldSpec[] fields, Random rand, SimpleDateFormat df) {
     Map<String,Object> doc = new HashMap<String,Object>();
     for (FieldSpec f : fields) {
       if (f.name.endsWith("_ss")) {
-        int numVals = rand.nextInt(20) + 1;
+        int numVals = f.nextNumValues(rand);
         List vals = new ArrayList();
         for (int n = 0; n < numVals; n++) {
           Object val = f.next(rand);
@@ -414,243 +858,1117 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
       }
     }
 
-    doc.put("indexed_at_tdt", df.format(new Date()));
-
     return doc;
   }
 
-  // This class sends batches to Solr while the outer (main thread) generates documents
-  class SendToSolrThread extends Thread {
-
-    IndexingSampler sampler;
-    int batchSize;
-    BlockingQueue<SolrInputDocument> queue;
-    int sent = 0;
+  /**
+   * Sends blocks from the CORPUS_FILE until this thread has sent at least numDocsToSend docs or
+   * the corpus runs out; with more than one sender, each sender claims blocks on its own.
+   */
+  protected int replayCorpus(String threadId, final int numDocsToSend, int numSenders) throws Exception {
+    final AtomicInteger claimed = new AtomicInteger(0);
+    Callable<Integer> replay = new Callable<Integer>() {
+      public Integer call() throws Exception {
+        int sent = 0;
+        int block;
+        while (claimed.get() < numDocsToSend && (block = corpus.claimBlock()) != -1) {
+          claimed.addAndGet(corpus.getBlockDocs(block));
+          sent += sendCorpusBlock(block);
+        }
+        return sent;
+      }
+    };
 
-    SendToSolrThread(String threadId, IndexingSampler sampler, BlockingQueue<SolrInputDocument> queue, int batchSize) {
-      super("SentToSolrThread-" + threadId);
-      this.setPriority(Thread.MAX_PRIORITY);
-      this.queue = queue;
-      this.sampler = sampler;
-      this.batchSize = batchSize;
+    int totalDocs = 0;
+    if (numSenders <= 1) {
+      totalDocs = replay.call();
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(numSenders);
+      try {
+        List<Future<Integer>> senders = new ArrayList<Future<Integer>>();
+        for (int s = 0; s < numSenders; s++)
+          senders.add(executor.submit(replay));
+        for (Future<Integer> sender : senders)
+          totalDocs += sender.get();
+      } finally {
+        executor.shutdownNow();
+      }
     }
 
-    public int sent() {
-      return sent;
-    }
+    if (totalDocs < numDocsToSend)
+      log.info("Thread " + threadId + " reached the end of corpus file " + corpus.getFile());
 
-    @Override
-    public void run() {
-      log.info(getName() + " is running.");
-      List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(batchSize);
-      SolrInputDocument doc = null;
-      try {
-        doc = queue.poll();
-        while (doc != null) {
-          batch.add(doc);
-
-          if (batch.size() >= batchSize)
-            sent += sampler.sendBatch(batch, 10, 3);
-
-          doc = queue.poll();
-          if (doc == null) {
-            // safety measure to allow more docs to come-in
-            Thread.sleep(500);
-            doc = queue.poll();
+    return totalDocs;
+  }
+
+  protected int sendCorpusBlock(final int block) throws Exception {
+    final int numDocs = corpus.getBlockDocs(block);
+    final long[] bytes = new long[1];
+    long startMs = System.currentTimeMillis();
+    final Timer.Context sendTimerCtxt = sendBatchToSolrTimer.time();
+    try {
+      // blocks are sent as they are in the file, so they can be re-tried but not split up
+      retryPolicy.execute(new RetryPolicy.Send() {
+        public void send() throws Exception {
+          if (cloudSolrClient != null && requestCompression != null) {
+            bytes[0] += postCompressed(cloudSolrClient, corpus.getContentProducer(block), corpus.getFormat().contentType);
+          } else if (cloudSolrClient != null) {
+            ContentStreamUpdateRequest updateRequest = new ContentStreamUpdateRequest("/update");
+            updateRequest.addContentStream(corpus.getContentStream(block));
+            setCommitWithin(updateRequest);
+            cloudSolrClient.request(updateRequest);
+            bytes[0] += corpus.getBlockLength(block);
+          } else {
+            indexPipelineClient.postBatchToPipeline(corpus.getContentProducer(block), numDocs);
+            bytes[0] += corpus.getBlockLength(block);
           }
         }
+      }, "corpus block " + block);
+    } catch (Exception exc) {
+      recordBatch("corpus block", startMs, numDocs, bytes[0], exc);
+      throw exc;
+    } finally {
+      sendTimerCtxt.stop();
+    }
 
-        // last batch
-        if (batch.size() > 0)
-          sent += sendBatch(batch, 10, 3);
+    recordBatch("corpus block", startMs, numDocs, bytes[0], null);
+    if (cloudSolrClient != null)
+      docsSent(numDocs);
+    return numDocs;
+  }
 
-      } catch (Exception e) {
-        if (e instanceof RuntimeException) {
-          throw (RuntimeException) e;
-        } else {
-          throw new RuntimeException(e);
-        }
-      }
+  /**
+   * Sends numOps writes of the kinds in the WORKLOAD_MIX, in rounds of batchSize ops; each
+   * round sends one request per kind of write, timed with that kind's metric. Updates and
+   * deletes pick ids from the ones this sampler has indexed (and not deleted) so far, with
+   * overwrites and updates favoring recently added docs (see UPDATE_ID_SKEW).
+   */
+  protected int indexMixed(String idPrefix, String threadId, int numOps, int batchSize) throws Exception {
+    log.info(String.format("Starting mixed write workload with: threadId=%s, batchSize=%d, numOps=%d, mix=%s",
+      threadId, batchSize, numOps, workloadMix));
+
+    String idBase = idBase(idPrefix, threadId);
+    if (idPool == null || reproducible) {
+      // no more than numOps adds per loop, so REPRODUCIBLE loops start from their own range of ordinals
+      nextOrdinal = firstOrdinal(threadId, numOps);
+    }
+    if (idPool == null) {
+      idPool = new IdPool();
+      mixRand = new Random(DocRandom.seedFor(randomSeed, idBase));
     }
 
-    public void blockUntilFinished() {
-      while (!queue.isEmpty()) {
-        try {
-          Thread.sleep(1000);
-        } catch (InterruptedException e) {
-          Thread.interrupted();
-          break;
+    WorkloadMix.Op[] ops = WorkloadMix.Op.values();
+    int[] opCounts = new int[ops.length];
+    DocBatch adds = newBatch(batchSize);
+    DocBatch overwrites = newBatch(batchSize);
+    adds.setIdBase(idBase);
+    overwrites.setIdBase(idBase);
+    List<SolrInputDocument> atomicUpdates = new ArrayList<SolrInputDocument>();
+    List<SolrInputDocument> inPlaceUpdates = new ArrayList<SolrInputDocument>();
+    List<String> deleteIds = new ArrayList<String>();
+    List<String> deleteQueries = new ArrayList<String>();
+    String deleteQueryField = (childDocs != null) ? "_root_" : "id";
+
+    Random rand = docRandom();
+    int sent = 0;
+    while (sent < numOps) {
+      int roundOps = Math.min(batchSize, numOps - sent);
+      for (int i = 0; i < roundOps; i++) {
+        WorkloadMix.Op op = workloadMix.next(mixRand);
+        long ordinal = -1;
+        if (op.needsExistingId()) {
+          ordinal = (op == WorkloadMix.Op.DELETE || op == WorkloadMix.Op.DELETE_BY_QUERY)
+            ? idPool.pickUniform(mixRand) : idPool.pickRecent(mixRand, updateIdSkew);
+          if (ordinal == -1)
+            op = WorkloadMix.Op.ADD; // nothing indexed yet
+        }
+        ++opCounts[op.ordinal()];
+
+        switch (op) {
+          case ADD:
+            ordinal = nextOrdinal++;
+            startDoc(rand, ordinal);
+            adds.addDoc(ordinal, rand);
+            break;
+          case OVERWRITE:
+            // new content for the same id, so no startDoc
+            overwrites.addDoc(ordinal, rand);
+            break;
+          case ATOMIC:
+            atomicUpdates.add(buildAtomicUpdate(idBase + ordinal, rand));
+            break;
+          case INPLACE:
+            SolrInputDocument inc = new SolrInputDocument();
+            inc.setField("id", idBase + ordinal);
+            inc.setField(inPlaceField, Collections.singletonMap("inc", 1));
+            inPlaceUpdates.add(inc);
+            break;
+          case DELETE:
+            idPool.remove(ordinal);
+            deleteIds.add(idBase + ordinal);
+            break;
+          case DELETE_BY_QUERY:
+            idPool.remove(ordinal);
+            deleteQueries.add(deleteQueryField + ":\"" + idBase + ordinal + "\"");
+            break;
         }
       }
-    }
-  }
 
-  protected int indexSolrDocument(String idPrefix, String threadId, int numDocsToSend, int queueSize, int batchSize) throws Exception {
-    log.info(String.format("Starting indexing sampler test with: threadId=%s, batchSize=%d, numDocsToSend=%d, queueSize=%d",
-      threadId, batchSize, numDocsToSend, queueSize));
+      if (!adds.isEmpty()) {
+        UpdateRequest req = new UpdateRequest();
+        req.add(adds.toSolrInputDocuments());
+        sendUpdateRequest(req, WorkloadMix.Op.ADD);
+        for (int d = 0; d < adds.size(); d++)
+          idPool.add(adds.ordinals[d]);
+        adds.clear();
+      }
+      if (!overwrites.isEmpty()) {
+        UpdateRequest req = new UpdateRequest();
+        req.add(overwrites.toSolrInputDocuments());
+        sendUpdateRequest(req, WorkloadMix.Op.OVERWRITE);
+        overwrites.clear();
+      }
+      if (!atomicUpdates.isEmpty()) {
+        UpdateRequest req = new UpdateRequest();
+        req.add(atomicUpdates);
+        sendUpdateRequest(req, WorkloadMix.Op.ATOMIC);
+        atomicUpdates.clear();
+      }
+      if (!inPlaceUpdates.isEmpty()) {
+        UpdateRequest req = new UpdateRequest();
+        req.add(inPlaceUpdates);
+        sendUpdateRequest(req, WorkloadMix.Op.INPLACE);
+        inPlaceUpdates.clear();
+      }
+      if (!deleteIds.isEmpty()) {
+        UpdateRequest req = new UpdateRequest();
+        req.deleteById(deleteIds);
+        sendUpdateRequest(req, WorkloadMix.Op.DELETE);
+        deleteIds.clear();
+      }
+      if (!deleteQueries.isEmpty()) {
+        UpdateRequest req = new UpdateRequest();
+        for (String q : deleteQueries)
+          req.deleteByQuery(q);
+        sendUpdateRequest(req, WorkloadMix.Op.DELETE_BY_QUERY);
+        deleteQueries.clear();
+      }
 
-    // safe-guard to ensure the Send thread doesn't block forever waiting for more docs ...
-    if (queueSize > numDocsToSend)
-      queueSize = numDocsToSend;
+      sent += roundOps;
+    }
 
-    // at about 90% full, we'll put the create threads to sleep
-    int highWaterMark = Math.round(queueSize * 0.65f);
-    int lowWaterMark = Math.min(Math.round(queueSize * 0.2f), batchSize * 3);
-    int nBatches = batchSize * 8;
+    StringBuilder counts = new StringBuilder();
+    for (WorkloadMix.Op op : ops) {
+      if (opCounts[op.ordinal()] > 0)
+        counts.append(' ').append(op.key).append('=').append(opCounts[op.ordinal()]);
+    }
+    log.info("Thread " + threadId + " sent " + sent + " writes:" + counts + "; " + idPool.size() + " ids in the pool");
 
-    // start constructing and queuing up docs, but don't start sending until the queue has some docs buffered up
-    BlockingQueue<SolrInputDocument> queue = new LinkedBlockingQueue<SolrInputDocument>(queueSize);
-    SendToSolrThread sendThread = null;
-    int totalDocs = 0;
-    Random rand = rands.get();
-    for (int d = 0; d < numDocsToSend; d++) {
-      String docId = String.format("%s_%s_%d", idPrefix, threadId, d);
-      queue.offer(buildSolrInputDocument(docId, rand));
+    return sent;
+  }
 
-      if (++totalDocs % nBatches == 0) {
-        log.info("Thread " + threadId + " has queued " + totalDocs +
-          " docs and sent " + (sendThread != null ? sendThread.sent() : 0) +
-          "; queue.size=" + queue.size());
-      }
+  /**
+   * Sets a new value for one randomly chosen field (or adds a value to a multi-valued field),
+   * increments the first int or long field, and sets indexed_at_tdt.
+   */
+  protected SolrInputDocument buildAtomicUpdate(String docId, Random rand) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.setField("id", docId);
 
-      if (queue.size() > highWaterMark) {
-        if (sendThread != null) {
-          // queue is pretty full ... let this thread sleep a little to allow the sender to get caught up
-          while (queue.size() > lowWaterMark) {
-            try {
-              Thread.sleep(500);
-            } catch (InterruptedException ie) {
-            }
-          }
-        } else {
-          // queue is almost full, start sending documents
-          sendThread = new SendToSolrThread(threadId, this, queue, batchSize);
-          sendThread.start();
-        }
-      }
-    }
+    FieldSpec setField = fields[rand.nextInt(fields.length)];
+    Object value = setField.nextNoNull(rand);
+    String setOp = (setField.values.type == DocBatch.ColumnType.MULTI_STRING) ? "add" : "set";
+    doc.setField(setField.name, Collections.singletonMap(setOp, value));
 
-    if (sendThread != null) {
-      log.info("Constructed " + numDocsToSend + " docs; waiting for queue to empty, current size is: " + queue.size());
-      sendThread.blockUntilFinished();
-      log.info("Queue drained ... thread " + threadId + " is done sending " + totalDocs + " docs");
+    for (FieldSpec f : fields) {
+      if (f != setField && (f.values.type == DocBatch.ColumnType.INT || f.values.type == DocBatch.ColumnType.LONG)) {
+        doc.setField(f.name, Collections.singletonMap("inc", 1));
+        break;
+      }
     }
 
-    return totalDocs;
+    doc.setField("indexed_at_tdt", Collections.singletonMap("set", new Date()));
+    return doc;
   }
 
-  protected int sendJsonBatch(List batch, int waitBeforeRetry, int maxRetries) throws Exception {
-    int sent = 0;
-    final Timer.Context sendTimerCtxt = sendBatchToSolrTimer.time();
+  protected void sendUpdateRequest(final UpdateRequest updateRequest, WorkloadMix.Op op) throws Exception {
+    setCommitWithin(updateRequest);
+    List<SolrInputDocument> docs = updateRequest.getDocuments();
+    int numDocs = (docs != null) ? docs.size() : 1;
+    long startMs = System.currentTimeMillis();
+    final Timer.Context sendTimerCtxt = mixTimers[op.ordinal()].time();
     try {
-      indexPipelineClient.postBatchToPipeline(batch);
-      sent = batch.size();
-    } catch (Exception exc) {
-
-      Throwable rootCause = SolrException.getRootCause(exc);
-      boolean wasCommError =
-        (rootCause instanceof ConnectException ||
-          rootCause instanceof ConnectTimeoutException ||
-          rootCause instanceof NoHttpResponseException ||
-          rootCause instanceof SocketException);
-
-      if (wasCommError) {
-        if (--maxRetries > 0) {
-          log.warn("ERROR: " + rootCause + " ... Sleeping for "
-            + waitBeforeRetry + " seconds before re-try ...");
-          Thread.sleep(waitBeforeRetry * 1000L);
-          sent = sendJsonBatch(batch, waitBeforeRetry, maxRetries);
-        } else {
-          log.error("No more retries available! Add batch failed due to: " + rootCause);
-          throw exc;
+      retryPolicy.execute(new RetryPolicy.Send() {
+        public void send() throws Exception {
+          cloudSolrClient.request(updateRequest);
         }
-      } else {
-        throw exc;
-      }
+      }, op.key + " request");
+    } catch (Exception exc) {
+      recordBatch(op.key, startMs, numDocs, 0L, exc);
+      throw exc;
     } finally {
       sendTimerCtxt.stop();
     }
 
-    batch.clear();
-    return sent;
+    recordBatch(op.key, startMs, numDocs, 0L, null);
+    docsSent(numDocs);
   }
 
-  protected int sendBatch(List<SolrInputDocument> batch, int waitBeforeRetry, int maxRetries) throws Exception {
-    int sent = 0;
-    final Timer.Context sendTimerCtxt = sendBatchToSolrTimer.time();
-    try {
-      UpdateRequest updateRequest = new UpdateRequest();
-      ModifiableSolrParams params = updateRequest.getParams();
-      if (params == null) {
-        params = new ModifiableSolrParams();
-        updateRequest.setParams(params);
-      }
+  // sets commitWithin from the COMMIT_POLICY, if it has one, on an update to Solr
+  private static void setCommitWithin(AbstractUpdateRequest updateRequest) {
+    CommitScheduler scheduler = commitScheduler;
+    if (scheduler != null && scheduler.getCommitWithinMs() > 0)
+      updateRequest.setCommitWithin(scheduler.getCommitWithinMs());
+  }
 
-      if (batch.size() == 1) {
-        updateRequest.add(batch.get(0));
-      } else {
-        updateRequest.add(batch);
-      }
+  // records a request as a sub-result of the current sample, if BATCH_SUB_RESULTS is on
+  private void recordBatch(String label, long startMs, int numDocs, long bytes, Throwable error) {
+    BatchResults results = batchResults;
+    if (results != null)
+      results.record(label, startMs, numDocs, bytes, error);
+  }
 
-      cloudSolrClient.request(updateRequest);
-      sent = batch.size();
-    } catch (Exception exc) {
+  // counts docs sent to Solr towards the COMMIT_POLICY, if there is one
+  private static void docsSent(int numDocs) {
+    CommitScheduler scheduler = commitScheduler;
+    if (scheduler != null)
+      scheduler.docsSent(numDocs);
+  }
 
-      Throwable rootCause = SolrException.getRootCause(exc);
-      boolean wasCommError =
-        (rootCause instanceof ConnectException ||
-          rootCause instanceof ConnectTimeoutException ||
-          rootCause instanceof NoHttpResponseException ||
-          rootCause instanceof SocketException);
-
-      if (wasCommError) {
-        if (--maxRetries > 0) {
-          log.warn("ERROR: " + rootCause + " ... Sleeping for "
-            + waitBeforeRetry + " seconds before re-try ...");
-          Thread.sleep(waitBeforeRetry * 1000L);
-          sent = sendBatch(batch, waitBeforeRetry, maxRetries);
-        } else {
-          log.error("No more retries available! Add batch failed due to: " + rootCause);
-          throw exc;
+  // spilled batches are kept encoded, after a header of numDocs, shard, format and intendedStartNanos
+  static final int SPILL_HEADER_BYTES = 17;
+
+  // tells a SenderWorker there are no more batches coming
+  private static final DocBatch END_OF_DOCS = new DocBatch(new FieldSpec[0], 1);
+
+  // wakes a SenderWorker that's waiting on the queue to look in the spill
+  private static final DocBatch SPILLED = new DocBatch(new FieldSpec[0], 1);
+
+  // wakes a SenderWorker that's waiting on the queue to re-send a failed async batch
+  private static final DocBatch FAILED = new DocBatch(new FieldSpec[0], 1);
+
+  /**
+   * Generates docs with a pool of generator threads and sends them with a separate pool of
+   * sender threads, all sharing this sampler's client, so one JMeter thread (and one ZK session)
+   * can keep a large cluster busy. Batches are handed off through a bounded queue and recycled
+   * through a fixed-size pool, so memory use doesn't grow if the senders fall behind; the pool
+   * size is also the limit on batches in flight. Workers block on the queue and the pool rather
+   * than polling, and this doesn't return until every sender has had its last batch acked.
+   *
+   * With a TARGET_RATE, generators hold each batch until the schedule says it's due, which
+   * makes the run open-loop: send latency is measured from that time, so batches that wait
+   * for a free sender (or for a pooled batch) count against Solr rather than being left out.
+   *
+   * With ROUTE_TO_LEADERS, each generator fills a batch per shard and senders post each one
+   * to its shard's leader. With ADAPTIVE_BATCH, batches are filled up to the controller's
+   * current size and senders only send as many at once as it allows.
+   *
+   * With a SPILL_DIR, generators don't wait on a full queue; batches that don't fit go to a
+   * SpillQueue on disk, and senders drain it in order once they've caught up. Anything left in it
+   * (say, because the JVM died) is sent by the next run with the same THREAD_ID.
+   */
+  protected int indexParallel(String idPrefix, String threadId, int numDocsToSend, int queueSize, int batchSize,
+                              int numGenerators, int numSenders) throws Exception {
+    log.info(String.format("Starting parallel indexing sampler test with: threadId=%s, batchSize=%d, numDocsToSend=%d, " +
+      "queueSize=%d, generators=%d, senders=%d", threadId, batchSize, numDocsToSend, queueSize, numGenerators, numSenders));
+
+    // no point in buffering more batches than there are to send
+    int numBatches = (numDocsToSend + batchSize - 1) / batchSize;
+    int queueBatches = Math.max(1, Math.min(queueSize / batchSize, numBatches));
+    // a deep queue would hold batches of an old size, so the controller would be reacting to stale latencies
+    if (batchController != null)
+      queueBatches = Math.min(queueBatches, 2 * numSenders);
+    BlockingQueue<DocBatch> queue = new ArrayBlockingQueue<DocBatch>(queueBatches);
+
+    // enough batches for a full queue plus one being worked on by each thread
+    // with routing, each generator has a batch open for every shard, plus one for docs the router can't place
+    int openPerGenerator = (shardRouter != null) ? shardRouter.numShards() + 1 : 1;
+    int poolSize = queueBatches + numGenerators * openPerGenerator + numSenders;
+    // async senders hand off their batch and go back for another, so the ones in flight need batches too
+    if (asyncPipeline)
+      poolSize += indexPipelineClient.getMaxInFlight();
+    BlockingQueue<DocBatch> pool = new ArrayBlockingQueue<DocBatch>(poolSize);
+    String idBase = idBase(idPrefix, threadId);
+    int batchCapacity = (batchController != null) ? batchController.getMaxBatchSize() : batchSize;
+    for (int b = 0; b < poolSize; b++) {
+      DocBatch batch = newBatch(batchCapacity);
+      batch.setIdBase(idBase);
+      pool.add(batch);
+    }
+
+    // one spill per sampler thread, so each thread picks up its own batches after a restart
+    SpillQueue spill = null;
+    if (spillDir != null)
+      spill = new SpillQueue(new File(spillDir, threadId.replaceAll("[^A-Za-z0-9_.-]", "_")), SpillQueue.DEFAULT_SEGMENT_BYTES, spillMaxBytes);
+
+    ParallelRun run = new ParallelRun(threadId, idBase, queue, pool, firstOrdinal(threadId, numDocsToSend), numDocsToSend, batchSize,
+      targetRate, batchController, spill);
+    ExecutorService executor = Executors.newFixedThreadPool(numGenerators + numSenders);
+    CompletionService<Integer> workers = new ExecutorCompletionService<Integer>(executor);
+    Set<Future<Integer>> senders = new HashSet<Future<Integer>>();
+    int totalDocs = 0;
+    long startMs = System.currentTimeMillis();
+    run.startNanos = System.nanoTime();
+    try {
+      for (int s = 0; s < numSenders; s++)
+        senders.add(workers.submit(new SenderWorker(run)));
+      for (int g = 0; g < numGenerators; g++)
+        workers.submit(new GeneratorWorker(run));
+
+      int generatorsRunning = numGenerators;
+      int sendersRunning = numSenders;
+      while (generatorsRunning + sendersRunning > 0) {
+        Future<Integer> done = workers.take();
+        // get re-throws any error from a worker, and the finally block stops the others
+        int numDocs = done.get();
+        if (senders.contains(done)) {
+          totalDocs += numDocs;
+          --sendersRunning;
+        } else if (--generatorsRunning == 0) {
+          for (int s = 0; s < numSenders; s++)
+            queue.put(END_OF_DOCS);
         }
       }
     } finally {
-      sendTimerCtxt.stop();
+      executor.shutdownNow();
+      if (spill != null) {
+        if (!spill.isEmpty())
+          log.warn("Thread " + threadId + " left " + spill.size() + " spilled batches in " + spill.getDir() + " to send next time");
+        spill.close();
+      }
     }
 
-    batch.clear();
-    return sent;
+    log.info(String.format("Thread %s sent %d docs in %d ms; generators were blocked for %d ms and senders for %d ms",
+      threadId, totalDocs, System.currentTimeMillis() - startMs,
+      TimeUnit.NANOSECONDS.toMillis(run.generatorsBlockedNanos.get()),
+      TimeUnit.NANOSECONDS.toMillis(run.sendersBlockedNanos.get())));
+    if (targetRate != null) {
+      long elapsedMs = Math.max(1L, System.currentTimeMillis() - startMs);
+      log.info(String.format("Thread %s sent %.0f docs/sec with a target of %s; %d of %d batches were " +
+          "generated late, by %d ms in all", threadId, totalDocs * 1000d / elapsedMs, targetRate,
+        run.lateBatches.get(), run.numBatches, TimeUnit.NANOSECONDS.toMillis(run.behindScheduleNanos.get())));
+    }
+    if (batchController != null)
+      log.info("Thread " + threadId + " finished with " + batchController);
+
+    return totalDocs;
   }
 
-  //
-  // Borrowed from the Pig DataGenerator
-  //
+  /**
+   * State shared by the generator and sender workers in one call to indexParallel.
+   */
+  static class ParallelRun {
+    final String threadId;
+    final String idBase;
+    final BlockingQueue<DocBatch> queue;
+    final BlockingQueue<DocBatch> pool;
+    final long firstOrdinal;
+    final int numDocs;
+    final int batchSize;
+    final int numBatches;
+    final AtomicInteger nextDoc = new AtomicInteger(0);
+    final AtomicLong generatorsBlockedNanos = new AtomicLong(0);
+    final AtomicLong sendersBlockedNanos = new AtomicLong(0);
+    final AtomicInteger sentDocs = new AtomicInteger(0);
+    final int logEvery;
+    final RateSchedule schedule;
+    final AdaptiveBatchController controller;
+    final SpillQueue spill;
+    // async batches the client gave up on, for a sender to re-send
+    final Queue<DocBatch> failed = new ConcurrentLinkedQueue<DocBatch>();
+    volatile long startNanos;
+    final AtomicInteger lateBatches = new AtomicInteger(0);
+    final AtomicLong behindScheduleNanos = new AtomicLong(0);
+
+    ParallelRun(String threadId, String idBase, BlockingQueue<DocBatch> queue, BlockingQueue<DocBatch> pool, long firstOrdinal,
+                int numDocs, int batchSize, RateSchedule schedule, AdaptiveBatchController controller, SpillQueue spill) {
+      this.threadId = threadId;
+      this.idBase = idBase;
+      this.queue = queue;
+      this.pool = pool;
+      this.firstOrdinal = firstOrdinal;
+      this.numDocs = numDocs;
+      this.batchSize = batchSize;
+      this.numBatches = (numDocs + batchSize - 1) / batchSize;
+      this.logEvery = batchSize * 8;
+      this.schedule = schedule;
+      this.controller = controller;
+      this.spill = spill;
+    }
 
-  public static enum Datatype {
-    INT, LONG, FLOAT, DOUBLE, STRING
-  }
+    int nextBatchSize() {
+      return (controller != null) ? controller.batchSize() : batchSize;
+    }
 
-  ;
+    void sent(int batchDocs) {
+      int total = sentDocs.addAndGet(batchDocs);
+      if (total / logEvery != (total - batchDocs) / logEvery)
+        log.info("Thread " + threadId + " has sent " + total + " of " + numDocs + " docs; queue.size=" + queue.size());
+    }
 
-  static enum DistributionType {
-    UNIFORM, ZIPF
+    /**
+     * Waits until the batch-th batch is due and returns the time it was due; if it's already
+     * late (usually because all of the pooled batches are in flight), that's tallied up.
+     */
+    long waitUntilDue(int batch) throws InterruptedException {
+      long dueNanos = startNanos + schedule.offsetNanos(batch, batchSize);
+      long waitNanos = dueNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } else if (waitNanos < -1000000L) {
+        lateBatches.incrementAndGet();
+        behindScheduleNanos.addAndGet(-waitNanos);
+        behindScheduleMicros.inc(-waitNanos / 1000L);
+      }
+      return dueNanos;
+    }
+
+    void generatorBlocked(long startNanos) {
+      long nanos = System.nanoTime() - startNanos;
+      generatorsBlockedNanos.addAndGet(nanos);
+      generatorsBlockedMicros.inc(nanos / 1000L);
+    }
+
+    void senderBlocked(long startNanos) {
+      long nanos = System.nanoTime() - startNanos;
+      sendersBlockedNanos.addAndGet(nanos);
+      sendersBlockedMicros.inc(nanos / 1000L);
+    }
   }
 
-  ;
+  // Claims batch-sized ranges of doc ordinals and fills pooled batches with them; with a
+  // TARGET_RATE, ranges are always BATCH_SIZE docs, so the start of a range gives its batch number
+  class GeneratorWorker implements Callable<Integer> {
+    final ParallelRun run;
 
-  public static class FieldSpec {
-    public String name;
-    String arg;
+    GeneratorWorker(ParallelRun run) {
+      this.run = run;
+    }
+
+    public Integer call() throws Exception {
+      if (shardRouter != null)
+        return generateByShard();
+
+      Random rand = docRandom();
+      int generated = 0;
+      int size;
+      int start;
+      while ((start = run.nextDoc.getAndAdd(size = run.nextBatchSize())) < run.numDocs) {
+        int b = start / run.batchSize;
+        long startNanos = System.nanoTime();
+        DocBatch batch = run.pool.take();
+        run.generatorBlocked(startNanos);
+
+        Timer.Context constructBatchTimerCtxt = constructDocsTimer.time();
+        int end = Math.min(start + size, run.numDocs);
+        for (int d = start; d < end; d++) {
+          long ordinal = run.firstOrdinal + d;
+          startDoc(rand, ordinal);
+          batch.addDoc(ordinal, rand);
+        }
+        constructBatchTimerCtxt.stop();
+        generated += batch.size();
+
+        queueBatch(batch, b);
+      }
+      return generated;
+    }
+
+    // same as call, but docs go into a batch for their shard, which is queued once it fills up
+    private int generateByShard() throws Exception {
+      Random rand = docRandom();
+      DocBatch[] open = new DocBatch[shardRouter.numShards() + 1];
+      int generated = 0;
+      int lastB = 0;
+      int start;
+      while ((start = run.nextDoc.getAndAdd(run.batchSize)) < run.numDocs) {
+        int b = start / run.batchSize;
+        lastB = b;
+        long constructNanos = 0;
+        int end = Math.min(start + run.batchSize, run.numDocs);
+        for (int d = start; d < end; d++) {
+          long ordinal = run.firstOrdinal + d;
+          int shard = shardRouter.shardFor(run.idBase + ordinal);
+          int slot = (shard != -1) ? shard : open.length - 1;
+          DocBatch batch = open[slot];
+          if (batch == null) {
+            long startNanos = System.nanoTime();
+            batch = run.pool.take();
+            run.generatorBlocked(startNanos);
+            batch.shard = shard;
+            open[slot] = batch;
+          }
+
+          long startNanos = System.nanoTime();
+          startDoc(rand, ordinal);
+          batch.addDoc(ordinal, rand);
+          constructNanos += System.nanoTime() - startNanos;
+          ++generated;
+
+          if (batch.size() >= run.nextBatchSize()) {
+            open[slot] = null;
+            queueBatch(batch, b);
+          }
+        }
+        constructDocsTimer.update(constructNanos, TimeUnit.NANOSECONDS);
+      }
+
+      for (DocBatch batch : open) {
+        if (batch != null)
+          queueBatch(batch, lastB);
+      }
+      return generated;
+    }
+
+    // with a spill, batches that don't fit in the queue go to disk; once there are any there, later
+    // batches go after them rather than jumping ahead through the queue
+    private void queueBatch(DocBatch batch, int b) throws Exception {
+      if (run.schedule != null)
+        batch.intendedStartNanos = run.waitUntilDue(b);
+
+      if (run.spill != null) {
+        if (run.spill.isEmpty() && run.queue.offer(batch))
+          return;
+        if (spillBatch(batch, run.spill)) {
+          batch.clear();
+          run.pool.put(batch);
+          // if the queue is full, the senders are busy and will get to the spill when it runs dry
+          run.queue.offer(SPILLED);
+          return;
+        }
+        // the spill is full, so wait for the senders after all
+      }
+
+      long startNanos = System.nanoTime();
+      run.queue.put(batch);
+      run.generatorBlocked(startNanos);
+    }
+  }
+
+  // Sends batches from the queue until it gets END_OF_DOCS, then returns the number of docs sent
+  class SenderWorker implements Callable<Integer> {
+    final ParallelRun run;
+
+    SenderWorker(ParallelRun run) {
+      this.run = run;
+    }
+
+    public Integer call() throws Exception {
+      if (asyncPipeline)
+        return sendAsync();
+
+      int sent = 0;
+      while (true) {
+        // batches in the queue went in before any that are still in the spill
+        DocBatch batch = run.queue.poll();
+        if (batch == null && run.spill != null) {
+          SpillQueue.Record record = run.spill.poll();
+          if (record != null) {
+            sent += drain(record);
+            continue;
+          }
+        }
+        if (batch == null) {
+          long startNanos = System.nanoTime();
+          batch = run.queue.take();
+          run.senderBlocked(startNanos);
+        }
+        if (batch == SPILLED)
+          continue;
+        if (batch == END_OF_DOCS) {
+          // the generators are done, but some of what they made may still be on disk
+          SpillQueue.Record record;
+          while (run.spill != null && (record = run.spill.poll()) != null)
+            sent += drain(record);
+          break;
+        }
+
+        int batchDocs;
+        if (run.controller != null) {
+          int numDocs = batch.size();
+          run.controller.acquire();
+          long sendStartNanos = System.nanoTime();
+          batchDocs = 0;
+          try {
+            batchDocs = (cloudSolrClient != null) ? sendBatch(batch) : sendJsonBatch(batch);
+          } finally {
+            run.controller.completed(numDocs, System.nanoTime() - sendStartNanos, batchDocs == numDocs);
+          }
+        } else {
+          batchDocs = (cloudSolrClient != null) ? sendBatch(batch) : sendJsonBatch(batch);
+        }
+        sent += batchDocs;
+        run.sent(batchDocs);
+        batch.clear();
+        run.pool.put(batch);
+      }
+      return sent;
+    }
+
+    private int drain(SpillQueue.Record record) throws Exception {
+      int batchDocs = sendSpilled(record);
+      run.spill.ack(record);
+      drainedBatches.inc();
+      run.sent(batchDocs);
+      return batchDocs;
+    }
+
+    // posts batches on the client's async transport without waiting for each one to be acked; the
+    // client's in-flight limit blocks this thread when Fusion falls behind, and each batch goes
+    // back to the pool once it's done; batches the client gave up on are sent again from here,
+    // through the retry policy
+    private int sendAsync() throws Exception {
+      List<Future<Integer>> pending = new LinkedList<Future<Integer>>();
+      int sent = 0;
+      while (true) {
+        DocBatch failed;
+        while ((failed = run.failed.poll()) != null)
+          sent += resend(failed);
+
+        long startNanos = System.nanoTime();
+        DocBatch batch = run.queue.take();
+        run.senderBlocked(startNanos);
+        if (batch == FAILED)
+          continue;
+        if (batch == END_OF_DOCS)
+          break;
+
+        pending.add(postJsonBatchAsync(batch, run));
+        sent += reap(pending, false);
+      }
+      // callbacks run before their future completes, so every failed batch is queued by now
+      sent += reap(pending, true);
+      DocBatch failed;
+      while ((failed = run.failed.poll()) != null)
+        sent += resend(failed);
+      return sent;
+    }
+
+    // sums up the docs in batches that were acked; failed ones were handed back in run.failed
+    private int reap(List<Future<Integer>> pending, boolean waitForAll) throws Exception {
+      int sent = 0;
+      for (Iterator<Future<Integer>> it = pending.iterator(); it.hasNext(); ) {
+        Future<Integer> future = it.next();
+        if (!waitForAll && !future.isDone())
+          continue;
+        try {
+          sent += future.get();
+        } catch (ExecutionException ee) {
+          // re-sent by resend
+        }
+        it.remove();
+      }
+      return sent;
+    }
+
+    private int resend(DocBatch batch) throws Exception {
+      int batchDocs = sendJsonBatch(batch);
+      run.sent(batchDocs);
+      batch.clear();
+      run.pool.put(batch);
+      return batchDocs;
+    }
+  }
+
+  // posts the whole batch on the client's async transport; once it's acked, the batch goes back
+  // to the pool from the callback, and if the client gives up on it (after its own failover and
+  // re-tries), it's handed to a sender to go through the retry policy and bisection
+  protected Future<Integer> postJsonBatchAsync(final DocBatch batch, final ParallelRun run) throws Exception {
+    final long startMs = System.currentTimeMillis();
+    final Timer.Context sendTimerCtxt = startSendTimer(batch.intendedStartNanos);
+    batch.setSendRange(0, batch.size());
+
+    ContentProducer body = batch;
+    String contentType = FusionPipelineClient.JSON_CONTENT_TYPE;
+    long bytes = 0L;
+    final Timer.Context roundTripCtxt;
+    if (updateFormat != null) {
+      // the client copies the body before returning, so the thread's buffer can be re-used
+      final CorpusFile.ExposedByteArrayOutputStream encoded = encodeBatch(batch);
+      body = new ContentProducer() {
+        public void writeTo(OutputStream out) throws IOException {
+          out.write(encoded.buf(), 0, encoded.size());
+        }
+      };
+      contentType = updateFormat.contentType;
+      bytes = encoded.size();
+      roundTripCtxt = roundTripTimers[updateFormat.ordinal()].time();
+    } else {
+      roundTripCtxt = null;
+    }
+
+    final long requestBytes = bytes;
+    return indexPipelineClient.postBatchToPipelineAsync(body, batch.size(), contentType, new FusionPipelineClient.BatchCallback() {
+      public void completed(int numDocs) {
+        stopTimers();
+        recordBatch("batch", startMs, numDocs, requestBytes, null);
+        run.sent(numDocs);
+        batch.clear();
+        run.pool.offer(batch);
+      }
+
+      public void failed(Exception exc) {
+        stopTimers();
+        log.warn("Async batch failed due to: " + exc + "; re-sending it through the retry policy");
+        run.failed.offer(batch);
+        // wakes a sender that's waiting on the queue; if the queue is full, none are
+        run.queue.offer(FAILED);
+      }
+
+      private void stopTimers() {
+        if (roundTripCtxt != null)
+          roundTripCtxt.stop();
+        stopSendTimer(sendTimerCtxt, batch.intendedStartNanos);
+      }
+    });
+  }
+
+  protected int sendJsonBatch(final DocBatch batch) throws Exception {
+    int sent = 0;
+    final long[] bytes = new long[1];
+    long startMs = System.currentTimeMillis();
+    final Timer.Context sendTimerCtxt = startSendTimer(batch.intendedStartNanos);
+    try {
+      sent = retryPolicy.executeBisecting(new RetryPolicy.RangeSend() {
+        public void send(int from, int to) throws Exception {
+          batch.setSendRange(from, to);
+          bytes[0] += postJsonBatch(batch, to - from);
+        }
+
+        public String docId(int doc) {
+          return batch.getId(doc);
+        }
+      }, 0, batch.size(), "add batch");
+    } catch (Exception exc) {
+      recordBatch("batch", startMs, batch.size(), bytes[0], exc);
+      throw exc;
+    } finally {
+      stopSendTimer(sendTimerCtxt, batch.intendedStartNanos);
+    }
+
+    recordBatch("batch", startMs, sent, bytes[0], null);
+    batch.clear();
+    return sent;
+  }
+
+  // posts the docs in the batch's send range to the index pipeline once; returns the size of the
+  // request body if it was encoded here, or else 0
+  private long postJsonBatch(DocBatch batch, int numDocs) throws Exception {
+    if (updateFormat != null) {
+      final CorpusFile.ExposedByteArrayOutputStream encoded = encodeBatch(batch);
+      ContentProducer body = new ContentProducer() {
+        public void writeTo(OutputStream out) throws IOException {
+          out.write(encoded.buf(), 0, encoded.size());
+        }
+      };
+      final Timer.Context roundTripCtxt = roundTripTimers[updateFormat.ordinal()].time();
+      try {
+        indexPipelineClient.postBatchToPipeline(body, numDocs, updateFormat.contentType);
+      } finally {
+        roundTripCtxt.stop();
+      }
+      return encoded.size();
+    } else {
+      indexPipelineClient.postBatchToPipeline(batch, numDocs);
+      return 0L;
+    }
+  }
+
+  protected int sendBatch(final DocBatch batch) throws Exception {
+    int sent = 0;
+    final long[] bytes = new long[1];
+    // last doc of a range that was indexed; bisection may drop the others
+    final int[] lastIndexed = new int[]{-1};
+    long startMs = System.currentTimeMillis();
+    final Timer.Context sendTimerCtxt = startSendTimer(batch.intendedStartNanos);
+    try {
+      sent = retryPolicy.executeBisecting(new RetryPolicy.RangeSend() {
+        public void send(int from, int to) throws Exception {
+          batch.setSendRange(from, to);
+          try {
+            bytes[0] += postBatch(batch);
+          } catch (Exception exc) {
+            // the leader may have gone away, so look it up again before re-trying
+            if (shardRouter != null && RetryPolicy.isCommError(exc))
+              shardRouter.invalidate();
+            throw exc;
+          }
+          lastIndexed[0] = Math.max(lastIndexed[0], to - 1);
+        }
+
+        public String docId(int doc) {
+          return batch.getId(doc);
+        }
+      }, 0, batch.size(), "add batch");
+    } catch (Exception exc) {
+      recordBatch("batch", startMs, batch.size(), bytes[0], exc);
+      throw exc;
+    } finally {
+      stopSendTimer(sendTimerCtxt, batch.intendedStartNanos);
+    }
+
+    VisibilityProbe probe = visibilityProbe;
+    if (probe != null && lastIndexed[0] != -1)
+      probe.mark(batch.getId(lastIndexed[0]));
+
+    recordBatch("batch", startMs, sent, bytes[0], null);
+    docsSent(sent);
+    batch.clear();
+    return sent;
+  }
+
+  // sends the docs in the batch's send range to Solr once; returns the size of the request body
+  // as sent, or 0 if SolrJ wrote it (javabin)
+  private long postBatch(final DocBatch batch) throws Exception {
+    SolrClient solrClient = (shardRouter != null && batch.shard != -1) ? shardRouter.leaderClient(batch.shard) : cloudSolrClient;
+    if (requestCompression != null) {
+      // encoded straight into the compressor, so the size before compression is in compression.rawBytes
+      final UpdateFormat format = (updateFormat != null) ? updateFormat : UpdateFormat.JSON;
+      ContentProducer body = new ContentProducer() {
+        public void writeTo(OutputStream out) throws IOException {
+          format.encode(batch, out);
+        }
+      };
+      final Timer.Context roundTripCtxt = roundTripTimers[format.ordinal()].time();
+      try {
+        return postCompressed(solrClient, body, format.contentType);
+      } finally {
+        roundTripCtxt.stop();
+      }
+    } else if (updateFormat != null) {
+      // not an UpdateRequest, so CloudSolrClient sends it to any node rather than splitting it by shard
+      CorpusFile.ExposedByteArrayOutputStream encoded = encodeBatch(batch);
+      ContentStreamUpdateRequest updateRequest = new ContentStreamUpdateRequest("/update");
+      updateRequest.addContentStream(toContentStream(encoded));
+      setCommitWithin(updateRequest);
+      final Timer.Context roundTripCtxt = roundTripTimers[updateFormat.ordinal()].time();
+      try {
+        solrClient.request(updateRequest);
+      } finally {
+        roundTripCtxt.stop();
+      }
+      return encoded.size();
+    } else {
+      UpdateRequest updateRequest = new UpdateRequest();
+      ModifiableSolrParams params = updateRequest.getParams();
+      if (params == null) {
+        params = new ModifiableSolrParams();
+        updateRequest.setParams(params);
+      }
+
+      setCommitWithin(updateRequest);
+      List<SolrInputDocument> docs = batch.toSolrInputDocuments();
+      if (docs.size() == 1) {
+        updateRequest.add(docs.get(0));
+      } else {
+        updateRequest.add(docs);
+      }
+      solrClient.request(updateRequest);
+      return 0L;
+    }
+  }
+
+  /**
+   * Encodes the batch in the UPDATE_FORMAT into a buffer owned by this thread, timing the
+   * encoding and recording the size of the request body.
+   */
+  protected CorpusFile.ExposedByteArrayOutputStream encodeBatch(DocBatch batch) throws IOException {
+    CorpusFile.ExposedByteArrayOutputStream encoded = encodeBuffers.get();
+    encoded.reset();
+    final Timer.Context encodeCtxt = encodeTimers[updateFormat.ordinal()].time();
+    try {
+      updateFormat.encode(batch, encoded);
+    } finally {
+      encodeCtxt.stop();
+    }
+    requestBytes[updateFormat.ordinal()].update(encoded.size());
+    return encoded;
+  }
+
+  /**
+   * Writes the batch to the spill, in the UPDATE_FORMAT (or JSON), so it can be sent as is later;
+   * returns false if the spill is full.
+   */
+  protected boolean spillBatch(DocBatch batch, SpillQueue spill) throws IOException {
+    UpdateFormat format = (updateFormat != null) ? updateFormat : UpdateFormat.JSON;
+    CorpusFile.ExposedByteArrayOutputStream encoded = encodeBuffers.get();
+    encoded.reset();
+    DataOutputStream header = new DataOutputStream(encoded);
+    header.writeInt(batch.size());
+    header.writeInt(batch.shard);
+    header.writeByte(format.ordinal());
+    header.writeLong(batch.intendedStartNanos);
+    header.flush();
+    format.encode(batch, encoded);
+
+    if (!spill.append(encoded.buf(), 0, encoded.size()))
+      return false;
+    spilledBatches.inc();
+    spilledBytes.inc(encoded.size());
+    return true;
+  }
+
+  /**
+   * Sends a batch from the spill, the same way sendBatch or sendJsonBatch would have sent it,
+   * except that a batch that's rejected can't be split up.
+   */
+  protected int sendSpilled(SpillQueue.Record record) throws Exception {
+    final byte[] data = record.getData();
+    DataInputStream header = new DataInputStream(new ByteArrayInputStream(data, 0, SPILL_HEADER_BYTES));
+    final int numDocs = header.readInt();
+    final int shard = header.readInt();
+    final UpdateFormat format = UpdateFormat.values()[header.readByte()];
+    // a nanoTime from before a restart doesn't mean anything now
+    long intendedStartNanos = record.isRecovered() ? 0L : header.readLong();
+    final ContentProducer body = new ContentProducer() {
+      public void writeTo(OutputStream out) throws IOException {
+        out.write(data, SPILL_HEADER_BYTES, data.length - SPILL_HEADER_BYTES);
+      }
+    };
+
+    final long[] bytes = new long[1];
+    long startMs = System.currentTimeMillis();
+    final Timer.Context sendTimerCtxt = startSendTimer(intendedStartNanos);
+    try {
+      retryPolicy.execute(new RetryPolicy.Send() {
+        public void send() throws Exception {
+          if (cloudSolrClient == null) {
+            indexPipelineClient.postBatchToPipeline(body, numDocs, format.contentType);
+            bytes[0] += data.length - SPILL_HEADER_BYTES;
+            return;
+          }
+
+          // the shards may have changed since the batch was spilled
+          boolean routed = shardRouter != null && shard != -1 && shard < shardRouter.numShards();
+          SolrClient solrClient = routed ? shardRouter.leaderClient(shard) : cloudSolrClient;
+          if (requestCompression != null) {
+            bytes[0] += postCompressed(solrClient, body, format.contentType);
+          } else {
+            ContentStreamUpdateRequest updateRequest = new ContentStreamUpdateRequest("/update");
+            updateRequest.addContentStream(toContentStream(data, SPILL_HEADER_BYTES, data.length - SPILL_HEADER_BYTES, format.contentType));
+            setCommitWithin(updateRequest);
+            solrClient.request(updateRequest);
+            bytes[0] += data.length - SPILL_HEADER_BYTES;
+          }
+        }
+      }, "spilled batch");
+    } catch (Exception exc) {
+      recordBatch("spilled batch", startMs, numDocs, bytes[0], exc);
+      throw exc;
+    } finally {
+      stopSendTimer(sendTimerCtxt, intendedStartNanos);
+    }
+    recordBatch("spilled batch", startMs, numDocs, bytes[0], null);
+    if (cloudSolrClient != null)
+      docsSent(numDocs);
+    return numDocs;
+  }
+
+  /**
+   * Posts a gzipped body to /update on a shard leader, if solrClient is one, or else on a random
+   * active replica of the collection, and returns the number of compressed bytes sent. SolrJ
+   * can't compress requests, so this goes through the CloudSolrClient's HttpClient directly.
+   */
+  protected long postCompressed(SolrClient solrClient, ContentProducer body, String contentType) throws Exception {
+    String baseUrl;
+    if (solrClient instanceof HttpSolrClient) {
+      baseUrl = ((HttpSolrClient) solrClient).getBaseURL();
+    } else {
+      ClusterState clusterState = cloudSolrClient.getZkStateReader().getClusterState();
+      List<String> coreUrls = new ArrayList<String>();
+      for (Slice slice : clusterState.getCollection(cloudSolrClient.getDefaultCollection()).getActiveSlices()) {
+        for (Replica replica : slice.getReplicas()) {
+          if (clusterState.liveNodesContain(replica.getNodeName()))
+            coreUrls.add(new ZkCoreNodeProps(replica).getCoreUrl());
+        }
+      }
+      if (coreUrls.isEmpty())
+        throw new SolrServerException("No live replicas of " + cloudSolrClient.getDefaultCollection() + " to send to");
+      baseUrl = coreUrls.get(ThreadLocalRandom.current().nextInt(coreUrls.size()));
+    }
+    if (baseUrl.endsWith("/"))
+      baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+
+    CommitScheduler scheduler = commitScheduler;
+    int commitWithinMs = (scheduler != null) ? scheduler.getCommitWithinMs() : -1;
+    HttpPost post = new HttpPost(baseUrl + "/update" + (commitWithinMs > 0 ? "?commitWithin=" + commitWithinMs : ""));
+    final ContentProducer compressed = requestCompression.compress(body);
+    final RequestCompression.TimedOutputStream[] counted = new RequestCompression.TimedOutputStream[1];
+    EntityTemplate entity = new EntityTemplate(new ContentProducer() {
+      public void writeTo(OutputStream out) throws IOException {
+        counted[0] = new RequestCompression.TimedOutputStream(out);
+        compressed.writeTo(counted[0]);
+      }
+    });
+    entity.setContentType(contentType);
+    entity.setContentEncoding(RequestCompression.CONTENT_ENCODING);
+    post.setEntity(entity);
+
+    HttpResponse response = cloudSolrClient.getLbClient().getHttpClient().execute(post);
+    HttpEntity responseEntity = response.getEntity();
+    int status = response.getStatusLine().getStatusCode();
+    String responseBody = (responseEntity != null) ? EntityUtils.toString(responseEntity) : "";
+    if (status != 200)
+      throw new SolrException(SolrException.ErrorCode.getErrorCode(status),
+        "Compressed update to " + post.getURI() + " failed with status " + status + ": " + responseBody);
+    return (counted[0] != null) ? counted[0].bytes : 0L;
+  }
+
+  private ContentStreamBase toContentStream(CorpusFile.ExposedByteArrayOutputStream encoded) {
+    return toContentStream(encoded.buf(), 0, encoded.size(), updateFormat.contentType);
+  }
+
+  private static ContentStreamBase toContentStream(final byte[] buf, final int off, final int len, String contentType) {
+    ContentStreamBase stream = new ContentStreamBase() {
+      public InputStream getStream() throws IOException {
+        return new ByteArrayInputStream(buf, off, len);
+      }
+    };
+    stream.setContentType(contentType);
+    stream.setSize((long) len);
+    return stream;
+  }
+
+  private Timer.Context startSendTimer(long intendedStartNanos) {
+    return (intendedStartNanos != 0) ? sendBatchServiceTimer.time() : sendBatchToSolrTimer.time();
+  }
+
+  private void stopSendTimer(Timer.Context sendTimerCtxt, long intendedStartNanos) {
+    sendTimerCtxt.stop();
+    if (intendedStartNanos != 0)
+      sendBatchToSolrTimer.update(System.nanoTime() - intendedStartNanos, TimeUnit.NANOSECONDS);
+  }
+
+  //
+  // Borrowed from the Pig DataGenerator
+  //
+
+  public static enum Datatype {
+    INT, LONG, FLOAT, DOUBLE, STRING
+  }
+
+  ;
+
+  static enum DistributionType {
+    UNIFORM, ZIPF
+  }
+
+  ;
+
+  public static class FieldSpec {
+    public String name;
+    String arg;
     public Datatype datatype;
     DistributionType distype;
     int avgsz;
     int card;
     RandomGenerator gen;
     int pctNull;
-    Map<Integer, Object> map;
-    boolean hasMapFile = false;
-    int numWords;
-    List<String> words;
+    int numWords; // max words in a text value
+    int minWords = 1;
+    int minValues = 1; // values per doc in a multi-valued field
+    int maxValues = 20;
+    ValueGenerator values;
 
     FieldSpec(String fieldName, String arg) {
       this(fieldName, arg, -1);
@@ -696,7 +2014,16 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
           break;
 
         case 'z':
-          gen = new ZipfRandomGenerator(avgsz, card);
+          // optional skew exponent follows the z, e.g. z1.2; the default is 1
+          double exponent = ZipfDistribution.DEFAULT_EXPONENT;
+          if (parts[3].length() > 1) {
+            try {
+              exponent = Double.parseDouble(parts[3].substring(1));
+            } catch (NumberFormatException nfe) {
+              throw new IllegalArgumentException("Invalid Zipf exponent in colspec [" + arg + "]");
+            }
+          }
+          gen = new ZipfRandomGenerator(avgsz, card, exponent);
           distype = DistributionType.ZIPF;
           break;
 
@@ -704,42 +2031,26 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
           throw new IllegalArgumentException("Don't know generator type " + parts[3].charAt(0));
       }
 
+      gen.valueSeed = DocRandom.seedFor(0L, fieldName);
+
       pctNull = Integer.valueOf(parts[4]);
       if (pctNull < 0 || pctNull > 100)
         throw new IllegalArgumentException("Percentage null must be between 0-100, you gave" + pctNull);
 
-      map = new HashMap<Integer, Object>();
+      values = compileValueGenerator(this);
     }
 
     public Object next(Random rand) {
+      return nextIsNull(rand) ? null : nextNoNull(rand);
+    }
+
+    public boolean nextIsNull(Random rand) {
       int pct = rand.nextInt(100) + 1;
-      return (pct > pctNull) ? nextNoNull(rand) : null;
+      return pct <= pctNull;
     }
 
     public Object nextNoNull(Random rand) {
-
-      this.words = englishWords; // hacky but i'm tired
-
-      String suffix = name.split("_")[1];
-      if ("en".equals(suffix)) {
-        return nextText(rand);
-      } else if ("tdt".equals(suffix)) {
-        return nextDate(rand);
-      } else if ("s".equals(suffix) || "ss".equals(suffix)) {
-        return nextString(rand);
-      } else if ("b".equals(suffix)) {
-        return nextBoolean(rand);
-      } else if ("l".equals(suffix)) {
-        return nextLong(rand);
-      } else if ("i".equals(suffix)) {
-        return nextInt(rand);
-      } else if ("f".equals(suffix)) {
-        return nextFloat(rand);
-      } else if ("d".equals(suffix)) {
-        return nextDouble(rand);
-      } else {
-        throw new IllegalArgumentException("Unsupported dynamic field suffix '" + suffix + "'!");
-      }
+      return values.next(rand);
     }
 
     public Boolean nextBoolean(Random rand) {
@@ -747,7 +2058,7 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
     }
 
     public String nextText(Random rand) {
-      int numWordsInText = rand.nextInt(numWords) + 1;
+      int numWordsInText = nextNumWords(rand);
       StringBuilder sb = new StringBuilder();
       for (int w = 0; w < numWordsInText; w++) {
         if (w > 0) sb.append(" ");
@@ -756,29 +2067,254 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
       return sb.toString();
     }
 
+    public int nextNumWords(Random rand) {
+      return rand.nextInt(numWords - minWords + 1) + minWords;
+    }
+
+    public int nextNumValues(Random rand) {
+      return rand.nextInt(maxValues - minValues + 1) + minValues;
+    }
+
     public Date nextDate(Random rand) {
-      return new Date(dateBaseMs + nextLong(rand) * 1000);
+      return new Date(nextDateMs(rand));
+    }
+
+    public long nextDateMs(Random rand) {
+      return dateBaseMs + nextLong(rand) * 1000;
     }
 
     public int nextInt(Random rand) {
-      return gen.nextInt(map, rand);
+      return gen.nextInt(rand);
     }
 
     public long nextLong(Random rand) {
-      return gen.nextLong(map, rand);
+      return gen.nextLong(rand);
     }
 
     public double nextDouble(Random rand) {
-      return gen.nextDouble(map, rand);
+      return gen.nextDouble(rand);
     }
 
     public float nextFloat(Random rand) {
-      return gen.nextFloat(map, rand);
+      return gen.nextFloat(rand);
     }
 
     public String nextString(Random rand) {
       return gen.nextString(rand);
     }
+
+    public int nextWordIndex(Random rand) {
+      return gen.nextWordIndex(rand);
+    }
+  }
+
+  /**
+   * Picks the value generator for a field from its dynamic field suffix; this is done once when
+   * the FieldSpec is built so generating a value doesn't need to look at the field name.
+   */
+  static ValueGenerator compileValueGenerator(FieldSpec spec) {
+    String suffix = spec.name.substring(spec.name.lastIndexOf('_') + 1);
+    if ("en".equals(suffix)) {
+      if (spec.numWords <= 0)
+        throw new IllegalArgumentException("Text field " + spec.name + " requires numWords > 0");
+      return new TextValues(spec);
+    } else if ("tdt".equals(suffix)) {
+      return new DateValues(spec);
+    } else if ("s".equals(suffix)) {
+      return new StringValues(spec);
+    } else if ("ss".equals(suffix)) {
+      return new MultiStringValues(spec);
+    } else if ("b".equals(suffix)) {
+      return new BooleanValues(spec);
+    } else if ("l".equals(suffix)) {
+      return new LongValues(spec);
+    } else if ("i".equals(suffix)) {
+      return new IntValues(spec);
+    } else if ("f".equals(suffix)) {
+      return new FloatValues(spec);
+    } else if ("d".equals(suffix)) {
+      return new DoubleValues(spec);
+    } else {
+      throw new IllegalArgumentException("Unsupported dynamic field suffix '" + suffix + "' for field " + spec.name + "!");
+    }
+  }
+
+  /**
+   * Generates values of a single type for a FieldSpec, either boxed for callers that build
+   * documents from objects or straight into the primitive column of a DocBatch.
+   */
+  static abstract class ValueGenerator {
+    final FieldSpec spec;
+    final DocBatch.ColumnType type;
+
+    ValueGenerator(FieldSpec spec, DocBatch.ColumnType type) {
+      this.spec = spec;
+      this.type = type;
+    }
+
+    abstract Object next(Random rand);
+
+    // fills the doc's slot in the column, including deciding whether it's null
+    abstract void fill(DocBatch.Column col, int doc, Random rand);
+  }
+
+  // a field with one value per doc, which is either null or filled in with fillNoNull
+  static abstract class SingleValueGenerator extends ValueGenerator {
+    SingleValueGenerator(FieldSpec spec, DocBatch.ColumnType type) {
+      super(spec, type);
+    }
+
+    abstract void fillNoNull(DocBatch.Column col, int doc, Random rand);
+
+    void fill(DocBatch.Column col, int doc, Random rand) {
+      if (spec.nextIsNull(rand)) {
+        col.setNull(doc);
+      } else {
+        col.present[doc] = true;
+        fillNoNull(col, doc, rand);
+      }
+    }
+  }
+
+  static final class IntValues extends SingleValueGenerator {
+    IntValues(FieldSpec spec) {
+      super(spec, DocBatch.ColumnType.INT);
+    }
+
+    Object next(Random rand) {
+      return spec.nextInt(rand);
+    }
+
+    void fillNoNull(DocBatch.Column col, int doc, Random rand) {
+      col.ints[doc] = spec.nextInt(rand);
+    }
+  }
+
+  static final class LongValues extends SingleValueGenerator {
+    LongValues(FieldSpec spec) {
+      super(spec, DocBatch.ColumnType.LONG);
+    }
+
+    Object next(Random rand) {
+      return spec.nextLong(rand);
+    }
+
+    void fillNoNull(DocBatch.Column col, int doc, Random rand) {
+      col.longs[doc] = spec.nextLong(rand);
+    }
+  }
+
+  static final class FloatValues extends SingleValueGenerator {
+    FloatValues(FieldSpec spec) {
+      super(spec, DocBatch.ColumnType.FLOAT);
+      spec.gen.buildFloatTable();
+    }
+
+    Object next(Random rand) {
+      return spec.nextFloat(rand);
+    }
+
+    void fillNoNull(DocBatch.Column col, int doc, Random rand) {
+      col.floats[doc] = spec.nextFloat(rand);
+    }
+  }
+
+  static final class DoubleValues extends SingleValueGenerator {
+    DoubleValues(FieldSpec spec) {
+      super(spec, DocBatch.ColumnType.DOUBLE);
+      spec.gen.buildDoubleTable();
+    }
+
+    Object next(Random rand) {
+      return spec.nextDouble(rand);
+    }
+
+    void fillNoNull(DocBatch.Column col, int doc, Random rand) {
+      col.doubles[doc] = spec.nextDouble(rand);
+    }
+  }
+
+  static final class DateValues extends SingleValueGenerator {
+    DateValues(FieldSpec spec) {
+      super(spec, DocBatch.ColumnType.DATE);
+    }
+
+    Object next(Random rand) {
+      return new Date(spec.nextDateMs(rand));
+    }
+
+    void fillNoNull(DocBatch.Column col, int doc, Random rand) {
+      col.longs[doc] = spec.nextDateMs(rand);
+    }
+  }
+
+  static final class BooleanValues extends SingleValueGenerator {
+    BooleanValues(FieldSpec spec) {
+      super(spec, DocBatch.ColumnType.BOOLEAN);
+    }
+
+    Object next(Random rand) {
+      return rand.nextBoolean();
+    }
+
+    void fillNoNull(DocBatch.Column col, int doc, Random rand) {
+      col.booleans[doc] = rand.nextBoolean();
+    }
+  }
+
+  static final class StringValues extends SingleValueGenerator {
+    StringValues(FieldSpec spec) {
+      super(spec, DocBatch.ColumnType.STRING);
+    }
+
+    Object next(Random rand) {
+      return englishWords.word(spec.nextWordIndex(rand));
+    }
+
+    void fillNoNull(DocBatch.Column col, int doc, Random rand) {
+      col.ints[doc] = spec.nextWordIndex(rand);
+    }
+  }
+
+  // next() returns a single value; the number of values per doc is decided by the caller
+  static final class MultiStringValues extends ValueGenerator {
+    MultiStringValues(FieldSpec spec) {
+      super(spec, DocBatch.ColumnType.MULTI_STRING);
+    }
+
+    Object next(Random rand) {
+      return englishWords.word(spec.nextWordIndex(rand));
+    }
+
+    void fill(DocBatch.Column col, int doc, Random rand) {
+      // each value in a multi-valued field can be null on its own
+      col.offsets[doc] = col.numWords;
+      int numVals = spec.nextNumValues(rand);
+      for (int n = 0; n < numVals; n++) {
+        if (!spec.nextIsNull(rand))
+          col.addWord(spec.nextWordIndex(rand));
+      }
+      col.offsets[doc + 1] = col.numWords;
+      col.present[doc] = (col.numWords > col.offsets[doc]);
+    }
+  }
+
+  static final class TextValues extends SingleValueGenerator {
+    TextValues(FieldSpec spec) {
+      super(spec, DocBatch.ColumnType.TEXT);
+    }
+
+    Object next(Random rand) {
+      return spec.nextText(rand);
+    }
+
+    void fillNoNull(DocBatch.Column col, int doc, Random rand) {
+      col.offsets[doc] = col.numWords;
+      int numWordsInText = spec.nextNumWords(rand);
+      for (int w = 0; w < numWordsInText; w++)
+        col.addWord(spec.nextWordIndex(rand));
+      col.offsets[doc + 1] = col.numWords;
+    }
   }
 
   static class UniformRandomGenerator extends RandomGenerator {
@@ -789,66 +2325,64 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
       card = c;
     }
 
-    public int nextInt(Map<Integer, Object> map, Random rand) {
-      return rand.nextInt(card);
+    public int cardinality() {
+      return card;
     }
 
-    public long nextLong(Map<Integer, Object> map, Random rand) {
-      return rand.nextLong() % card;
+    public int nextKey(Random rand) {
+      return rand.nextInt(card);
     }
 
-    public float nextFloat(Map<Integer, Object> map, Random rand) {
-      int seed = rand.nextInt(card);
-      Float f = (Float) map.get(seed);
-      if (f == null) {
-        if (!hasMapFile) {
-          f = randomFloat(rand);
-          map.put(seed, f);
-        } else {
-          throw new IllegalStateException("Number " + seed + " is not found in map file");
-        }
-      }
-      return f;
+    public int nextInt(Random rand) {
+      return rand.nextInt(card);
     }
 
-    public double nextDouble(Map<Integer, Object> map, Random rand) {
-      int seed = rand.nextInt(card);
-      Double d = (Double) map.get(seed);
-      if (d == null) {
-        if (!hasMapFile) {
-          d = randomDouble(rand);
-          map.put(seed, d);
-        } else {
-          throw new IllegalStateException("Number " + seed + " is not found in map file");
-        }
-      }
-      return d;
+    public long nextLong(Random rand) {
+      return rand.nextLong() % card;
     }
 
-    public String nextString(Random rand) {
-      int seed = rand.nextInt(card);
-      while (seed >= englishWords.size())
-        seed = rand.nextInt(card);
-      return englishWords.get(seed);
+    public int nextWordIndex(Random rand) {
+      return rand.nextInt(Math.min(card, englishWords.size()));
     }
   }
 
   static abstract class RandomGenerator {
 
+    // 16MB of floats or 32MB of doubles per field
+    static final int MAX_VALUE_TABLE_SIZE = 1 << 22;
+
+    private static final ThreadLocal<DocRandom> keyRandoms = new ThreadLocal<DocRandom>() {
+      @Override
+      protected DocRandom initialValue() {
+        return new DocRandom();
+      }
+    };
+
     protected int avgsz;
-    protected boolean hasMapFile; // indicating whether a map file from
-    // rand number to the field value is
-    // pre-defined
+    protected long valueSeed;
+
+    // float and double fields map each key to a fixed random value; the values are computed up
+    // front (they're read-only after that, so threads can share them) unless the cardinality
+    // is too big for a table, in which case each lookup derives the value from the key
+    protected float[] floatValues;
+    protected double[] doubleValues;
 
-    abstract public int nextInt(Map<Integer, Object> map, Random rand);
+    abstract public int cardinality();
 
-    abstract public long nextLong(Map<Integer, Object> map, Random rand);
+    /**
+     * Draws the key of the next float or double value from this generator's distribution.
+     */
+    abstract public int nextKey(Random rand);
 
-    abstract public float nextFloat(Map<Integer, Object> map, Random rand);
+    abstract public int nextInt(Random rand);
 
-    abstract public double nextDouble(Map<Integer, Object> map, Random rand);
+    abstract public long nextLong(Random rand);
 
-    abstract public String nextString(Random rand);
+    abstract public int nextWordIndex(Random rand);
+
+    public String nextString(Random rand) {
+      return englishWords.word(nextWordIndex(rand));
+    }
 
     public String randomString(Random rand) {
       int var = (int) ((double) avgsz * 0.3);
@@ -863,6 +2397,44 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
       return sb.toString();
     }
 
+    public float nextFloat(Random rand) {
+      int key = nextKey(rand);
+      return (floatValues != null) ? floatValues[key] : randomFloat(keyRandom(key));
+    }
+
+    public double nextDouble(Random rand) {
+      int key = nextKey(rand);
+      return (doubleValues != null) ? doubleValues[key] : randomDouble(keyRandom(key));
+    }
+
+    void buildFloatTable() {
+      int card = cardinality();
+      if (floatValues != null || card > MAX_VALUE_TABLE_SIZE)
+        return;
+      float[] values = new float[card];
+      for (int key = 0; key < card; key++)
+        values[key] = randomFloat(keyRandom(key));
+      floatValues = values;
+    }
+
+    void buildDoubleTable() {
+      int card = cardinality();
+      if (doubleValues != null || card > MAX_VALUE_TABLE_SIZE)
+        return;
+      double[] values = new double[card];
+      for (int key = 0; key < card; key++)
+        values[key] = randomDouble(keyRandom(key));
+      doubleValues = values;
+    }
+
+    // the value mapped to a key is derived from the key, not from the doc that drew it first,
+    // so values don't depend on the order docs are generated in (or on which thread draws them)
+    protected Random keyRandom(int key) {
+      DocRandom rand = keyRandoms.get();
+      rand.setDoc(valueSeed, key);
+      return rand;
+    }
+
     public float randomFloat(Random rand) {
       return rand.nextFloat() * rand.nextInt();
     }
@@ -873,61 +2445,42 @@ public class IndexingSampler extends AbstractJavaSamplerClient implements Serial
   }
 
   static class ZipfRandomGenerator extends RandomGenerator {
-    //Zipf z;
+    ZipfDistribution zipf;
+    ZipfDistribution wordZipf;
+    double exponent;
 
-    public ZipfRandomGenerator(int a, int c) {
+    public ZipfRandomGenerator(int a, int c, double exponent) {
       avgsz = a;
-      //z = new Zipf(c);
+      this.exponent = exponent;
+      zipf = ZipfDistribution.get(c, exponent);
     }
 
-    // the Zipf library returns a rand number [1..cardinality], so we substract by 1
-    // to get [0..cardinality) the randome number returned by zipf library is an 
-    // integer, but converted into double
-    private double next() {
-      return zipf.get().nextElement() - 1;
+    public int cardinality() {
+      return zipf.getCardinality();
     }
 
-    public int nextInt(Map<Integer, Object> map, Random rand) {
-      return (int) next();
+    public int nextKey(Random rand) {
+      return zipf.next(rand);
     }
 
-    public long nextLong(Map<Integer, Object> map, Random rand) {
-      return (long) next();
+    public int nextInt(Random rand) {
+      return zipf.next(rand);
     }
 
-    public float nextFloat(Map<Integer, Object> map, Random rand) {
-      int seed = (int) next();
-      Float d = (Float) map.get(seed);
-      if (d == null) {
-        if (!hasMapFile) {
-          d = randomFloat(rand);
-          map.put(seed, d);
-        } else {
-          throw new IllegalStateException("Number " + seed + " is not found in map file");
-        }
-      }
-      return d;
+    public long nextLong(Random rand) {
+      return zipf.next(rand);
     }
 
-    public double nextDouble(Map<Integer, Object> map, Random rand) {
-      int seed = (int) next();
-      Double d = (Double) map.get(seed);
-      if (d == null) {
-        if (!hasMapFile) {
-          d = randomDouble(rand);
-          map.put(seed, d);
-        } else {
-          throw new IllegalStateException("Number " + seed + " is not found in map file");
-        }
+    public int nextWordIndex(Random rand) {
+      // the word list isn't loaded until after the FieldSpecs are built, so if the cardinality
+      // is bigger than the word list, switch to a distribution over the whole list on first use
+      ZipfDistribution dist = wordZipf;
+      if (dist == null) {
+        int numWords = englishWords.size();
+        dist = (zipf.getCardinality() <= numWords) ? zipf : ZipfDistribution.get(numWords, exponent);
+        wordZipf = dist;
       }
-      return d;
-    }
-
-    public String nextString(Random rand) {
-      int seed = (int) next();
-      while (seed >= englishWords.size())
-        seed = (int) next();
-      return englishWords.get(seed);
+      return dist.next(rand);
     }
   }
 }
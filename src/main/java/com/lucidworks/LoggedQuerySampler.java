@@ -17,7 +17,6 @@ import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
 import org.apache.jmeter.samplers.SampleResult;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
-import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.client.solrj.impl.XMLResponseParser;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocumentList;
@@ -295,16 +294,7 @@ public class LoggedQuerySampler extends AbstractJavaSamplerClient implements Ser
 
     synchronized (LoggedQuerySampler.class) {
       if (cloudSolrClient == null) {
-        String zkHost = params.get("ZK_HOST");
-        log.info("Connecting to SolrCloud using zkHost: " + zkHost);
-        cloudSolrClient = new CloudSolrClient(zkHost);
-        cloudSolrClient.setDefaultCollection(collection);
-        cloudSolrClient.connect();
-
-        HttpClientUtil.setMaxConnections(cloudSolrClient.getLbClient().getHttpClient(), 500);
-        HttpClientUtil.setMaxConnectionsPerHost(cloudSolrClient.getLbClient().getHttpClient(), 100);
-
-        log.info("Connected to SolrCloud; collection=" + collection);
+        cloudSolrClient = CloudSolrClients.acquire(params.get("ZK_HOST"), collection);
 
         ZkStateReader zkStateReader = cloudSolrClient.getZkStateReader();
         Set<String> liveNodes = zkStateReader.getClusterState().getLiveNodes();
@@ -499,12 +489,8 @@ public class LoggedQuerySampler extends AbstractJavaSamplerClient implements Ser
           reporter.stop();
         }
 
-        try {
-          cloudSolrClient.shutdown();
-        } catch (Exception ignore) {
-        }
+        CloudSolrClients.release(cloudSolrClient);
         cloudSolrClient = null;
-        log.info("Shutdown CloudSolrClient.");
       }
     }
 
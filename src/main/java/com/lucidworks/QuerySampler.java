@@ -10,7 +10,6 @@ import org.apache.jmeter.samplers.SampleResult;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
-import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.client.solrj.response.FieldStatsInfo;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.TermsResponse;
@@ -348,16 +347,7 @@ public class QuerySampler extends AbstractJavaSamplerClient implements Serializa
       log.info("Initializing QuerySampler using params: "+params);
 
       if (cloudSolrClient == null) {
-        String zkHost = params.get("ZK_HOST");
-        log.info("Connecting to SolrCloud using zkHost: " + zkHost);
-        String collection = params.get("COLLECTION");
-
-        cloudSolrClient = new CloudSolrClient(zkHost);
-        cloudSolrClient.setDefaultCollection(collection);
-        cloudSolrClient.connect();
-        HttpClientUtil.setMaxConnections(cloudSolrClient.getLbClient().getHttpClient(), 500);
-        HttpClientUtil.setMaxConnectionsPerHost(cloudSolrClient.getLbClient().getHttpClient(), 100);
-        log.info("Connected to SolrCloud; collection=" + collection);
+        cloudSolrClient = CloudSolrClients.acquire(params.get("ZK_HOST"), params.get("COLLECTION"));
       }
 
       String mode = params.get("MODE");
@@ -532,12 +522,8 @@ public class QuerySampler extends AbstractJavaSamplerClient implements Serializa
           reporter.stop();
         }
 
-        try {
-          cloudSolrClient.shutdown();
-        } catch (Exception ignore) {
-        }
+        CloudSolrClients.release(cloudSolrClient);
         cloudSolrClient = null;
-        log.info("Shutdown CloudSolrClient.");
 
         if (fusionPipelineClient != null) {
           fusionPipelineClient.shutdown();
@@ -0,0 +1,78 @@
+package com.lucidworks;
+
+import java.util.Locale;
+
+/**
+ * The target send rate for an open-loop indexing run, in docs or batches per second, either
+ * fixed or ramping linearly from a start rate to an end rate and then holding. Given as
+ * RATE or START:END:RAMP_SECS, with a trailing b for batches per second; e.g. 5000,
+ * 1000:20000:300 or 50b.
+ *
+ * The schedule only says when each batch should go out; senders measure latency from that
+ * intended time, not from when they got around to sending it, so a slow Solr shows up as
+ * latency instead of as a lower offered load (aka coordinated omission).
+ */
+public class RateSchedule {
+
+  final double startRate;
+  final double endRate;
+  final double rampSecs;
+  final boolean perBatch;
+
+  RateSchedule(double startRate, double endRate, double rampSecs, boolean perBatch) {
+    if (startRate < 0 || endRate <= 0 || rampSecs < 0)
+      throw new IllegalArgumentException("Rates must be > 0 (the start of a ramp can be 0) and the ramp can't be negative, not " +
+        startRate + ":" + endRate + ":" + rampSecs);
+    this.startRate = (rampSecs > 0) ? startRate : endRate;
+    this.endRate = endRate;
+    this.rampSecs = rampSecs;
+    this.perBatch = perBatch;
+  }
+
+  public static RateSchedule parse(String spec) {
+    String s = spec.trim().toLowerCase(Locale.ROOT);
+    boolean perBatch = s.endsWith("b");
+    if (perBatch)
+      s = s.substring(0, s.length() - 1);
+    String[] parts = s.split(":");
+    try {
+      if (parts.length == 1) {
+        double rate = Double.parseDouble(parts[0]);
+        return new RateSchedule(rate, rate, 0, perBatch);
+      } else if (parts.length == 3) {
+        return new RateSchedule(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+          Double.parseDouble(parts[2]), perBatch);
+      }
+    } catch (NumberFormatException nfe) {
+      // fall through
+    }
+    throw new IllegalArgumentException("Invalid target rate [" + spec + "]; expected RATE or START:END:RAMP_SECS, " +
+      "in docs/sec or with a trailing b for batches/sec");
+  }
+
+  /**
+   * Nanos after the start of the run that the batch-th batch (from 0) should be sent.
+   */
+  public long offsetNanos(int batch, int batchSize) {
+    double units = perBatch ? batch : (double) batch * batchSize;
+
+    // units sent by time t during the ramp are r0*t + (r1-r0)*t^2/(2*T)
+    double rampUnits = (startRate + endRate) * rampSecs / 2d;
+    double secs;
+    if (units <= rampUnits) {
+      double a = (endRate - startRate) / (2d * rampSecs);
+      // root of a*t^2 + r0*t - units, in a form that holds up when a is 0 or negative
+      secs = (units == 0) ? 0 : 2d * units / (startRate + Math.sqrt(startRate * startRate + 4d * a * units));
+    } else {
+      secs = rampSecs + (units - rampUnits) / endRate;
+    }
+    return (long) (secs * 1e9d);
+  }
+
+  public String toString() {
+    String unit = perBatch ? " batches/sec" : " docs/sec";
+    if (rampSecs > 0)
+      return String.format(Locale.ROOT, "%.0f to %.0f%s over %.0f secs", startRate, endRate, unit, rampSecs);
+    return String.format(Locale.ROOT, "%.0f%s", endRate, unit);
+  }
+}
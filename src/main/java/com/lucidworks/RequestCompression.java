@@ -0,0 +1,148 @@
+package com.lucidworks;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.ContentProducer;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Gzips request bodies as they're written to the connection, so a compressed batch is never
+ * held in memory, and keeps track of the bytes before and after compression and of the time
+ * spent compressing (not counting the time spent producing the body or writing to the socket).
+ * The server has to accept Content-Encoding: gzip on requests, e.g. Jetty's GzipHandler with
+ * inflation turned on, or a proxy in front of it.
+ *
+ * Given as gzip or gzip:LEVEL, where LEVEL is 1 (fastest) to 9 (smallest); the default is 6.
+ */
+public class RequestCompression {
+
+  public static final String CONTENT_ENCODING = "gzip";
+
+  static final int DEFAULT_LEVEL = 6;
+
+  final int level;
+  final Counter rawBytes;
+  final Counter compressedBytes;
+  final Timer compressTimer;
+
+  public RequestCompression(int level, MetricRegistry metrics) {
+    if (level < 1 || level > 9)
+      throw new IllegalArgumentException("gzip level must be 1 to 9, not " + level);
+    this.level = level;
+    this.rawBytes = metrics.counter("compression.rawBytes");
+    this.compressedBytes = metrics.counter("compression.compressedBytes");
+    this.compressTimer = metrics.timer("compression.cpu");
+  }
+
+  public static RequestCompression parse(String spec, MetricRegistry metrics) {
+    String s = spec.trim().toLowerCase(Locale.ROOT);
+    if ("gzip".equals(s))
+      return new RequestCompression(DEFAULT_LEVEL, metrics);
+    if (s.startsWith("gzip:")) {
+      try {
+        return new RequestCompression(Integer.parseInt(s.substring(5).trim()), metrics);
+      } catch (NumberFormatException nfe) {
+        // fall through
+      }
+    }
+    throw new IllegalArgumentException("Invalid request compression [" + spec + "]; expected gzip or gzip:LEVEL");
+  }
+
+  /**
+   * Wraps a request body so it's gzipped as it's written; can be written more than once, as
+   * long as the wrapped body can.
+   */
+  public ContentProducer compress(final ContentProducer body) {
+    return new ContentProducer() {
+      public void writeTo(OutputStream out) throws IOException {
+        TimedOutputStream compressed = new TimedOutputStream(out);
+        // the header is written when the stream is created, so that's timed too
+        long startNanos = System.nanoTime();
+        LevelGzipOutputStream gzip = new LevelGzipOutputStream(compressed, level);
+        long gzipNanos = System.nanoTime() - startNanos;
+        TimedOutputStream raw = new TimedOutputStream(gzip);
+        try {
+          body.writeTo(raw);
+
+          startNanos = System.nanoTime();
+          gzip.finish();
+          gzipNanos += System.nanoTime() - startNanos;
+        } finally {
+          // the gzip stream isn't closed (that would close the connection's stream), so free zlib's memory here
+          gzip.end();
+        }
+
+        rawBytes.inc(raw.bytes);
+        compressedBytes.inc(compressed.bytes);
+        // time in the gzip stream, less the time it spent passing compressed bytes on to the socket
+        compressTimer.update(Math.max(0L, raw.nanos + gzipNanos - compressed.nanos), TimeUnit.NANOSECONDS);
+      }
+    };
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public String toString() {
+    return "gzip:" + level;
+  }
+
+  // gzip at a given level, whose native zlib memory can be freed without closing the stream it wraps
+  static final class LevelGzipOutputStream extends GZIPOutputStream {
+    LevelGzipOutputStream(OutputStream out, int level) throws IOException {
+      super(out, 8192);
+      def.setLevel(level);
+    }
+
+    void end() {
+      def.end();
+    }
+  }
+
+  // counts the bytes written through it and the time spent in the stream it wraps; doesn't close it
+  static final class TimedOutputStream extends FilterOutputStream {
+    long bytes = 0;
+    long nanos = 0;
+
+    TimedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      long startNanos = System.nanoTime();
+      out.write(b);
+      nanos += System.nanoTime() - startNanos;
+      ++bytes;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      long startNanos = System.nanoTime();
+      out.write(b, off, len);
+      nanos += System.nanoTime() - startNanos;
+      bytes += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      long startNanos = System.nanoTime();
+      out.flush();
+      nanos += System.nanoTime() - startNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package com.lucidworks;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.solr.common.SolrException;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * How failed sends are re-tried. Comm errors (refused / reset connections, no response) are
+ * re-tried after an exponential backoff with full jitter, so senders that failed together don't
+ * come back together. Batches the server rejects as a bad request (400) are split in half and
+ * each half sent on its own, down to the single docs that can't be indexed, which are logged
+ * and dropped; a batch with one bad doc in it gets through in about 2*log2(n) sends.
+ *
+ * Retries are paid for out of a budget shared by everything using the policy: each send that
+ * succeeds adds BUDGET_RATIO of a retry (up to BUDGET_CAP) and each retry takes one away, so
+ * when a cluster is overloaded the retries stay a small fraction of the real traffic instead
+ * of multiplying it. A comm error that can't be re-tried because the budget is used up fails
+ * the send right away.
+ *
+ * Given as BASE_MS:MAX_MS:MAX_ATTEMPTS[:BUDGET_RATIO], e.g. 250:10000:5:0.1. Thread-safe.
+ */
+public class RetryPolicy {
+
+  private static final Log log = LogFactory.getLog(RetryPolicy.class);
+
+  public static final String DEFAULT_SPEC = "250:10000:5:0.1";
+
+  static final double BUDGET_CAP = 100d;
+
+  /**
+   * One attempt at sending something.
+   */
+  public interface Send {
+    void send() throws Exception;
+  }
+
+  /**
+   * One attempt at sending docs [from, to) of a batch, for bisecting.
+   */
+  public interface RangeSend {
+    void send(int from, int to) throws Exception;
+
+    String docId(int doc);
+  }
+
+  final long baseDelayMs;
+  final long maxDelayMs;
+  final int maxAttempts;
+  final double budgetRatio;
+
+  private double budget = BUDGET_CAP;
+
+  final Counter retries;
+  final Counter budgetExhausted;
+  final Counter bisections;
+  final Counter badDocs;
+
+  public RetryPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts, double budgetRatio, MetricRegistry metrics) {
+    if (baseDelayMs < 1 || maxDelayMs < baseDelayMs || maxAttempts < 1 || budgetRatio < 0d)
+      throw new IllegalArgumentException("Retry policy must have 1 <= base <= max delay, at least 1 attempt and a budget ratio >= 0, not " +
+        baseDelayMs + ":" + maxDelayMs + ":" + maxAttempts + ":" + budgetRatio);
+    this.baseDelayMs = baseDelayMs;
+    this.maxDelayMs = maxDelayMs;
+    this.maxAttempts = maxAttempts;
+    this.budgetRatio = budgetRatio;
+    this.retries = metrics.counter("retry.retries");
+    this.budgetExhausted = metrics.counter("retry.budgetExhausted");
+    this.bisections = metrics.counter("retry.bisections");
+    this.badDocs = metrics.counter("retry.badDocs");
+  }
+
+  public static RetryPolicy parse(String spec, MetricRegistry metrics) {
+    String[] parts = spec.trim().split(":");
+    if (parts.length == 3 || parts.length == 4) {
+      try {
+        return new RetryPolicy(Long.parseLong(parts[0].trim()), Long.parseLong(parts[1].trim()),
+          Integer.parseInt(parts[2].trim()), (parts.length == 4) ? Double.parseDouble(parts[3].trim()) : 0.1d, metrics);
+      } catch (NumberFormatException nfe) {
+        // fall through
+      }
+    }
+    throw new IllegalArgumentException("Invalid retry policy [" + spec + "]; expected BASE_MS:MAX_MS:MAX_ATTEMPTS[:BUDGET_RATIO], e.g. " + DEFAULT_SPEC);
+  }
+
+  public static boolean isCommError(Throwable exc) {
+    Throwable rootCause = SolrException.getRootCause(exc);
+    return (rootCause instanceof ConnectException ||
+      rootCause instanceof ConnectTimeoutException ||
+      rootCause instanceof NoHttpResponseException ||
+      rootCause instanceof SocketException);
+  }
+
+  /**
+   * True if the server rejected the request itself, such as for a doc it can't parse, so sending
+   * it again won't help.
+   */
+  public static boolean isBadRequest(Throwable exc) {
+    return (exc instanceof SolrException) && ((SolrException) exc).code() == SolrException.ErrorCode.BAD_REQUEST.code;
+  }
+
+  /**
+   * Sends, re-trying comm errors while there are attempts and budget left; any other error, or
+   * the last comm error, is thrown.
+   */
+  public void execute(Send send, String what) throws Exception {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        send.send();
+        deposit();
+        return;
+      } catch (Exception exc) {
+        if (!isCommError(exc))
+          throw exc;
+
+        Throwable rootCause = SolrException.getRootCause(exc);
+        if (attempt >= maxAttempts) {
+          log.error("No more retries available! " + what + " failed due to: " + rootCause);
+          throw exc;
+        }
+        if (!withdraw()) {
+          budgetExhausted.inc();
+          log.error("Retry budget used up, not re-trying " + what + " after: " + rootCause);
+          throw exc;
+        }
+
+        long delayMs = backoffMillis(attempt);
+        retries.inc();
+        log.warn("ERROR: " + rootCause + " ... Sleeping for " + delayMs + " ms before re-try " + attempt + " of " + what + " ...");
+        Thread.sleep(delayMs);
+      }
+    }
+  }
+
+  /**
+   * Sends docs [from, to) with execute and, if they're rejected as a bad request, sends each half
+   * the same way. Returns how many docs were indexed; docs rejected on their own are dropped.
+   */
+  public int executeBisecting(final RangeSend send, final int from, final int to, String what) throws Exception {
+    try {
+      execute(new Send() {
+        public void send() throws Exception {
+          send.send(from, to);
+        }
+      }, what);
+      return to - from;
+    } catch (Exception exc) {
+      if (!isBadRequest(exc))
+        throw exc;
+
+      if (to - from == 1) {
+        badDocs.inc();
+        log.error("Dropping doc " + send.docId(from) + " that can't be indexed due to: " + exc.getMessage());
+        return 0;
+      }
+
+      bisections.inc();
+      int mid = (from + to) >>> 1;
+      if (log.isDebugEnabled())
+        log.debug("Splitting docs [" + from + ", " + to + ") of " + what + " at " + mid + " after: " + exc.getMessage());
+      return executeBisecting(send, from, mid, what) + executeBisecting(send, mid, to, what);
+    }
+  }
+
+  // full jitter: anywhere from 0 up to the exponential delay for this attempt
+  long backoffMillis(int attempt) {
+    long ceiling = baseDelayMs;
+    for (int a = 1; a < attempt && ceiling < maxDelayMs; a++)
+      ceiling *= 2;
+    ceiling = Math.min(maxDelayMs, ceiling);
+    return 1L + (long) (ThreadLocalRandom.current().nextDouble() * ceiling);
+  }
+
+  private synchronized void deposit() {
+    budget = Math.min(BUDGET_CAP, budget + budgetRatio);
+  }
+
+  private synchronized boolean withdraw() {
+    if (budget < 1d)
+      return false;
+    budget -= 1d;
+    return true;
+  }
+
+  public String toString() {
+    return baseDelayMs + ":" + maxDelayMs + ":" + maxAttempts + ":" + budgetRatio;
+  }
+}
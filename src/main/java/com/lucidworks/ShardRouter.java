@@ -0,0 +1,153 @@
+package com.lucidworks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.ImplicitDocRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkCoreNodeProps;
+
+/**
+ * Hashes doc ids to shards with the collection's DocRouter, the same way Solr does, so docs can
+ * be batched per shard and each batch posted straight to that shard's leader. Without this,
+ * every batch holds docs for all shards and the node that gets it has to forward most of them
+ * to the other leaders.
+ *
+ * Leaders are looked up from the cluster state for each send, and the cluster state is re-read
+ * every few seconds (or right away after a failed send), so batches follow leader changes.
+ * Shards that show up after this was created (e.g. from a split) aren't routed; docs for them
+ * go through the CloudSolrClient as usual.
+ */
+public class ShardRouter {
+
+  private static final Log log = LogFactory.getLog(ShardRouter.class);
+
+  static final long REFRESH_MS = 5000L;
+
+  private final CloudSolrClient cloudSolrClient;
+  private final String collection;
+  private final String[] shardNames;
+  private final Map<String, Integer> shardIndex = new HashMap<String, Integer>();
+  private final ConcurrentHashMap<String, HttpSolrClient> leaderClients = new ConcurrentHashMap<String, HttpSolrClient>();
+
+  private volatile DocCollection docCollection;
+  private volatile ClusterState clusterState;
+  private volatile long loadedAtMs;
+
+  public ShardRouter(CloudSolrClient cloudSolrClient, String collection) {
+    this.cloudSolrClient = cloudSolrClient;
+    this.collection = collection;
+
+    DocCollection coll = load();
+    if (coll.getRouter() instanceof ImplicitDocRouter)
+      throw new IllegalArgumentException("Collection " + collection + " uses the implicit router, so docs can't be routed by id");
+
+    List<String> names = new ArrayList<String>();
+    for (Slice slice : coll.getActiveSlices())
+      names.add(slice.getName());
+    Collections.sort(names);
+    shardNames = names.toArray(new String[names.size()]);
+    for (int s = 0; s < shardNames.length; s++)
+      shardIndex.put(shardNames[s], s);
+
+    log.info("Routing docs for " + collection + " to the leaders of its " + shardNames.length + " shards");
+  }
+
+  public int numShards() {
+    return shardNames.length;
+  }
+
+  public String getShardName(int shard) {
+    return shardNames[shard];
+  }
+
+  /**
+   * The shard that owns a doc id, or -1 if it's a shard this router doesn't know about.
+   */
+  public int shardFor(String id) {
+    DocCollection coll = current();
+    DocRouter router = coll.getRouter();
+    Slice slice = router.getTargetSlice(id, null, null, null, coll);
+    Integer shard = (slice != null) ? shardIndex.get(slice.getName()) : null;
+    return (shard != null) ? shard : -1;
+  }
+
+  /**
+   * A client for the shard's current leader, or the CloudSolrClient if the shard doesn't have a
+   * live leader right now (e.g. during an election), in which case it routes the docs itself.
+   */
+  public SolrClient leaderClient(int shard) {
+    DocCollection coll = current();
+    Slice slice = coll.getSlice(shardNames[shard]);
+    Replica leader = (slice != null) ? slice.getLeader() : null;
+    if (leader == null || !clusterState.liveNodesContain(leader.getNodeName())) {
+      invalidate();
+      return cloudSolrClient;
+    }
+
+    String coreUrl = new ZkCoreNodeProps(leader).getCoreUrl();
+    HttpSolrClient client = leaderClients.get(coreUrl);
+    if (client == null) {
+      // shares the CloudSolrClient's connection pool, so closing it leaves the pool open
+      client = new HttpSolrClient(coreUrl, cloudSolrClient.getLbClient().getHttpClient());
+      HttpSolrClient existing = leaderClients.putIfAbsent(coreUrl, client);
+      if (existing != null) {
+        closeQuietly(client);
+        client = existing;
+      }
+    }
+    return client;
+  }
+
+  /**
+   * Re-reads the cluster state before the next lookup; call after a send to a leader fails.
+   */
+  public void invalidate() {
+    loadedAtMs = 0L;
+  }
+
+  public void close() {
+    for (HttpSolrClient client : leaderClients.values())
+      closeQuietly(client);
+    leaderClients.clear();
+  }
+
+  private static void closeQuietly(HttpSolrClient client) {
+    try {
+      client.close();
+    } catch (Exception ignore) {
+    }
+  }
+
+  private DocCollection current() {
+    if (System.currentTimeMillis() - loadedAtMs > REFRESH_MS) {
+      synchronized (this) {
+        if (System.currentTimeMillis() - loadedAtMs > REFRESH_MS)
+          load();
+      }
+    }
+    return docCollection;
+  }
+
+  private DocCollection load() {
+    ClusterState state = cloudSolrClient.getZkStateReader().getClusterState();
+    DocCollection coll = state.getCollection(collection);
+    clusterState = state;
+    docCollection = coll;
+    loadedAtMs = System.currentTimeMillis();
+    return coll;
+  }
+}
@@ -1,13 +1,19 @@
 package com.lucidworks;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.net.ConnectException;
-import java.net.SocketException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -15,12 +21,19 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -31,24 +44,39 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.impl.XMLResponseParser;
 import org.apache.solr.client.solrj.request.DirectXmlRequest;
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
-import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.cloud.Replica;
 import org.apache.solr.common.cloud.Slice;
 import org.apache.solr.common.cloud.ZkCoreNodeProps;
 import org.apache.solr.common.cloud.ZkStateReader;
 import org.apache.solr.common.util.NamedList;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.noggit.ObjectBuilder;
+import org.w3c.dom.Node;
+
+import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 /**
  * Command-line utility for working with SolrCloud clusters.
@@ -59,7 +87,7 @@ public class SolrCloudTools {
    * Enum of tools supported by this command-line application.
    */
   public static enum ToolType {
-    healthcheck, backup, indexer
+    healthcheck, backup, indexer, datagenbench, datagen, gzipsink
   }
 
   public interface Tool {
@@ -68,6 +96,12 @@ public class SolrCloudTools {
     void runTool(CloudSolrClient solr, CommandLine cli) throws Exception;
   }
 
+  /**
+   * Marker for tools that run locally and don't need a connection to the cluster.
+   */
+  public interface LocalTool extends Tool {
+  }
+
   public static Logger log = Logger.getLogger(SolrCloudTools.class);
 
   private static final DateFormat TIMESTAMP_FORMATTER = DateFormat
@@ -132,24 +166,21 @@ public class SolrCloudTools {
     CommandLine cli = 
         processCommandLineArgs(joinCommonAndToolOptions(tool.getOptions()), toolArgs);
 
+    if (tool instanceof LocalTool) {
+      tool.runTool(null, cli);
+      return;
+    }
+
     String collection = cli.getOptionValue("collection", DEFAULT_COLLECTION);
     String zkHost = cli.getOptionValue("zkHost", ZK_HOST);
 
     log.info("Connecting to Solr cluster: " + zkHost);
-    CloudSolrClient cloudSolrServer = null;
+    CloudSolrClient cloudSolrServer = CloudSolrClients.acquire(zkHost, collection);
     try {
-      cloudSolrServer = new CloudSolrClient(zkHost);
-      cloudSolrServer.setDefaultCollection(collection);
-      cloudSolrServer.connect();
-      
       // run the requested tool
       tool.runTool(cloudSolrServer, cli);
     } finally {
-      if (cloudSolrServer != null) {
-        try {
-          cloudSolrServer.shutdown();
-        } catch (Exception ignore) {}
-      }
+      CloudSolrClients.release(cloudSolrServer);
     }
   } // end main
   
@@ -393,7 +424,19 @@ public class SolrCloudTools {
           .hasArg()
           .isRequired(false)
           .withDescription("Send a commit after X docs; default -1 (disabled)")
-          .create("commitEvery")
+          .create("commitEvery"),
+        OptionBuilder
+          .withArgName("min:max:targetMs")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Adapt the batch size to the send latency, starting at batchSize; e.g. 10:2000:250")
+          .create("adaptiveBatch"),
+        OptionBuilder
+          .withArgName("baseMs:maxMs:attempts[:budgetRatio]")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("How failed batches are re-tried; default "+RetryPolicy.DEFAULT_SPEC)
+          .create("retryPolicy")
       };
     }
     
@@ -407,14 +450,36 @@ public class SolrCloudTools {
       int indexOffset = Integer.parseInt(cli.getOptionValue("indexOffset", "0"));
       int commitEvery = Integer.parseInt(cli.getOptionValue("commitEvery", "-1"));
       int batchSize = Integer.parseInt(cli.getOptionValue("batchSize", "100"));
+      MetricRegistry metrics = new MetricRegistry();
+      AdaptiveBatchController controller = null;
+      ConsoleReporter reporter = null;
+      if (cli.hasOption("adaptiveBatch")) {
+        // one batch at a time here, so only the size adapts
+        controller = AdaptiveBatchController.parse(cli.getOptionValue("adaptiveBatch"), batchSize, 1);
+        controller.setMetrics(metrics.histogram("adaptive.batchSize"), metrics.histogram("adaptive.inFlight"));
+        log.info("Adapting the batch size to the send latency: " + controller);
+        reporter = ConsoleReporter.forRegistry(metrics)
+          .convertRatesTo(TimeUnit.SECONDS)
+          .convertDurationsTo(TimeUnit.MILLISECONDS).build();
+        reporter.start(1, TimeUnit.MINUTES);
+      }
+      RetryPolicy retryPolicy = RetryPolicy.parse(cli.getOptionValue("retryPolicy", RetryPolicy.DEFAULT_SPEC), metrics);
       List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(batchSize);
       for (int d = 0; d < numDocs; d++) {
         String docId = String.valueOf(d + indexOffset);
         SolrInputDocument inDoc = docGenerator.buildSolrInputDocument(docId, random); // buildSolrInputDocument(docId);
         batch.add(inDoc);
 
-        if (batch.size() >= batchSize) {
-          sendBatch(cloudSolrServer, batch, 10, 3);
+        if (batch.size() >= (controller != null ? controller.batchSize() : batchSize)) {
+          if (controller != null) {
+            int numInBatch = batch.size();
+            controller.acquire();
+            long startNanos = System.nanoTime();
+            int sent = sendBatch(cloudSolrServer, retryPolicy, batch);
+            controller.completed(numInBatch, System.nanoTime() - startNanos, sent == numInBatch);
+          } else {
+            sendBatch(cloudSolrServer, retryPolicy, batch);
+          }
         }
 
         if (commitEvery > 0) {
@@ -428,49 +493,41 @@ public class SolrCloudTools {
 
       // last batch
       if (batch.size() > 0) {
-        sendBatch(cloudSolrServer, batch, 10, 3);
+        sendBatch(cloudSolrServer, retryPolicy, batch);
       }
 
+      if (controller != null)
+        log.info("Finished with " + controller);
+      if (reporter != null) {
+        reporter.stop();
+        reporter.report();
+      }
+      log.info("Re-tried " + metrics.counter("retry.retries").getCount() + " batches; dropped " +
+        metrics.counter("retry.badDocs").getCount() + " docs that couldn't be indexed");
       log.info("Sent " + numDocs + " docs ... committing ...");
       cloudSolrServer.commit(true, true);
       log.info("Committed.");      
       healthcheck.runTool(cloudSolrServer, cli);
     }    
     
-    protected int sendBatch(CloudSolrClient cloudSolrServer,
-                            List<SolrInputDocument> batch, 
-                            int waitBeforeRetry, 
-                            int maxRetries) 
+    protected int sendBatch(final CloudSolrClient cloudSolrServer,
+                            RetryPolicy retryPolicy,
+                            final List<SolrInputDocument> batch)
         throws Exception
     {
-      int sent = 0;
-      try {
-        cloudSolrServer.add(batch);
-        sent = batch.size();
-      } catch (Exception exc) {
-        
-        Throwable rootCause = SolrException.getRootCause(exc);
-        boolean wasCommError =
-            (rootCause instanceof ConnectException ||
-                rootCause instanceof ConnectTimeoutException ||
-                rootCause instanceof NoHttpResponseException ||
-                rootCause instanceof SocketException);
-
-        if (wasCommError) {
-          if (--maxRetries > 0) {
-            log.warn("ERROR: "+rootCause+" ... Sleeping for "+waitBeforeRetry+" seconds before re-try ...");
-            Thread.sleep(waitBeforeRetry*1000L);
-            sent = sendBatch(cloudSolrServer, batch, waitBeforeRetry, maxRetries);
-          } else {
-            log.error("No more retries available! Add batch failed due to: "+rootCause);
-            throw exc;
-          }
-        }      
-      }
-      batch.clear();    
+      int sent = retryPolicy.executeBisecting(new RetryPolicy.RangeSend() {
+        public void send(int from, int to) throws Exception {
+          cloudSolrServer.add(batch.subList(from, to));
+        }
+
+        public String docId(int doc) {
+          return String.valueOf(batch.get(doc).getFieldValue("id"));
+        }
+      }, 0, batch.size(), "add batch");
+      batch.clear();
       return sent;
-    }    
-    
+    }
+
     protected SolrInputDocument buildSolrInputDocument(String docId) {
       SolrInputDocument inDoc = new SolrInputDocument();
       inDoc.setField("id", docId);
@@ -497,6 +554,652 @@ public class SolrCloudTools {
     }    
   }
   
+  /**
+   * Measures how fast the IndexingSampler can generate documents, and how much garbage it
+   * creates doing so, without sending anything to a cluster.
+   */
+  static class DatagenBenchTool implements LocalTool {
+
+    // sink for serialized batches that just counts the bytes written
+    static class CountingOutputStream extends OutputStream {
+      long count = 0;
+
+      @Override
+      public void write(int b) {
+        ++count;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        count += len;
+      }
+    }
+
+    abstract static class Scenario {
+      final String name;
+      final boolean returnsBytes;
+
+      Scenario(String name) {
+        this(name, false);
+      }
+
+      // if returnsBytes, run returns the number of bytes written, which is reported as MB/sec
+      Scenario(String name, boolean returnsBytes) {
+        this.name = name;
+        this.returnsBytes = returnsBytes;
+      }
+
+      // returns a value derived from the generated docs so the JIT can't skip the work
+      abstract long run(int numDocs, int batchSize, Random rand) throws Exception;
+    }
+
+    @SuppressWarnings("static-access")
+    @Override
+    public Option[] getOptions() {
+      return new Option[] {
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Num docs to generate per iteration; default 20000")
+          .create("numDocs"),
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Batch size; default 100")
+          .create("batchSize"),
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Measured iterations per scenario, after one warm-up iteration; default 3")
+          .create("iterations"),
+        OptionBuilder
+          .withArgName("docs|values|json")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Measure whole docs (default), values/sec for each field in the profile, or " +
+              "JSON serialization of already generated docs")
+          .create("mode"),
+        OptionBuilder
+          .withArgName("FILE")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("JSON doc profile to generate docs from instead of the built-in fields")
+          .create("profile"),
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Scale text and multi-valued fields so docs are about this many bytes of JSON")
+          .create("targetBytes"),
+        OptionBuilder
+          .withArgName("N|min:max:u|z[exp]")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Nest this many child docs under each doc, e.g. 0:20:z1.2")
+          .create("childDocs")
+      };
+    }
+
+    @Override
+    public void runTool(CloudSolrClient cloudSolrServer, CommandLine cli) throws Exception {
+      int numDocs = Integer.parseInt(cli.getOptionValue("numDocs", "20000"));
+      int batchSize = Integer.parseInt(cli.getOptionValue("batchSize", "100"));
+      int iterations = Integer.parseInt(cli.getOptionValue("iterations", "3"));
+
+      final IndexingSampler sampler = new IndexingSampler();
+      String profile = cli.getOptionValue("profile");
+      int targetBytes = Integer.parseInt(cli.getOptionValue("targetBytes", "0"));
+      String childDocs = cli.getOptionValue("childDocs");
+      if (profile != null || targetBytes > 0 || childDocs != null)
+        sampler.useProfile(profile, targetBytes, childDocs);
+
+      String mode = cli.getOptionValue("mode", "docs");
+      if ("values".equals(mode)) {
+        runValueScenarios(sampler, numDocs, iterations);
+        return;
+      } else if ("json".equals(mode)) {
+        runJsonScenarios(sampler, numDocs, batchSize, iterations);
+        return;
+      }
+
+      final ObjectMapper mapper = new ObjectMapper();
+
+      List<Scenario> scenarios = new ArrayList<Scenario>();
+      scenarios.add(new Scenario("SolrInputDocument per doc") {
+        long run(int numDocs, int batchSize, Random rand) {
+          long check = 0;
+          List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(batchSize);
+          for (int d = 0; d < numDocs; d++) {
+            batch.add(sampler.buildSolrInputDocument(String.format("%s_%s_%d", "id", "1", d), rand));
+            if (batch.size() >= batchSize) {
+              check += batch.get(0).size();
+              batch.clear();
+            }
+          }
+          return check;
+        }
+      });
+      scenarios.add(new Scenario("DocBatch as SolrInputDocuments") {
+        long run(int numDocs, int batchSize, Random rand) {
+          long check = 0;
+          DocBatch batch = sampler.newBatch(batchSize);
+          batch.setIdBase("id_1_");
+          for (int d = 0; d < numDocs; d++) {
+            batch.addDoc(d, rand);
+            if (batch.isFull() || d == numDocs - 1) {
+              check += batch.toSolrInputDocuments().get(0).size();
+              batch.clear();
+            }
+          }
+          return check;
+        }
+      });
+      scenarios.add(new Scenario("Map per doc + ObjectMapper", true) {
+        long run(int numDocs, int batchSize, Random rand) throws Exception {
+          CountingOutputStream out = new CountingOutputStream();
+          List<Object> batch = new ArrayList<Object>(batchSize);
+          for (int d = 0; d < numDocs; d++) {
+            batch.add(sampler.buildJsonInputDocument(String.format("%s_%s_%d", "id", "1", d), rand));
+            if (batch.size() >= batchSize || d == numDocs - 1) {
+              mapper.writeValue(out, batch);
+              batch.clear();
+            }
+          }
+          return out.count;
+        }
+      });
+      scenarios.add(new Scenario("DocBatch as JSON", true) {
+        long run(int numDocs, int batchSize, Random rand) throws Exception {
+          CountingOutputStream out = new CountingOutputStream();
+          DocBatch batch = sampler.newBatch(batchSize);
+          batch.setIdBase("id_1_");
+          for (int d = 0; d < numDocs; d++) {
+            batch.addDoc(d, rand);
+            if (batch.isFull() || d == numDocs - 1) {
+              batch.writeTo(out);
+              batch.clear();
+            }
+          }
+          return out.count;
+        }
+      });
+
+      log.info(String.format("Generating %d docs per iteration in batches of %d, %d iterations per scenario",
+          numDocs, batchSize, iterations));
+      for (Scenario scenario : scenarios)
+        runScenario(scenario, numDocs, batchSize, iterations, "docs");
+    }
+
+    protected void runJsonScenarios(IndexingSampler sampler, int numDocs, int batchSize, int iterations) throws Exception {
+      // generate the docs up front, so only serialization is measured
+      Random rand = new Random(5150);
+      final List<List<Object>> maps = new ArrayList<List<Object>>();
+      final List<DocBatch> batches = new ArrayList<DocBatch>();
+      for (int d = 0; d < numDocs; d += batchSize) {
+        List<Object> docs = new ArrayList<Object>(batchSize);
+        DocBatch batch = sampler.newBatch(batchSize);
+        batch.setIdBase("id_1_");
+        for (int b = d; b < Math.min(d + batchSize, numDocs); b++) {
+          docs.add(sampler.buildJsonInputDocument(String.format("%s_%s_%d", "id", "1", b), rand));
+          batch.addDoc(b, rand);
+        }
+        maps.add(docs);
+        batches.add(batch);
+      }
+
+      final ObjectMapper mapper = new ObjectMapper();
+      List<Scenario> scenarios = new ArrayList<Scenario>();
+      scenarios.add(new Scenario("ObjectMapper over Maps", true) {
+        long run(int numDocs, int batchSize, Random rand) throws Exception {
+          CountingOutputStream out = new CountingOutputStream();
+          for (List<Object> docs : maps)
+            mapper.writeValue(out, docs);
+          return out.count;
+        }
+      });
+      scenarios.add(new Scenario("DocBatch.writeTo", true) {
+        long run(int numDocs, int batchSize, Random rand) throws Exception {
+          CountingOutputStream out = new CountingOutputStream();
+          for (DocBatch batch : batches)
+            batch.writeTo(out);
+          return out.count;
+        }
+      });
+
+      log.info(String.format("Serializing %d docs per iteration in batches of %d, %d iterations per scenario",
+          numDocs, batchSize, iterations));
+      for (Scenario scenario : scenarios)
+        runScenario(scenario, numDocs, batchSize, iterations, "docs");
+    }
+
+    protected void runValueScenarios(IndexingSampler sampler, int numValues, int iterations) throws Exception {
+      final IndexingSampler.FieldSpec[] fields = sampler.getFields();
+
+      List<Scenario> scenarios = new ArrayList<Scenario>();
+      for (final IndexingSampler.FieldSpec field : fields) {
+        scenarios.add(new Scenario(field.name) {
+          long run(int numValues, int batchSize, Random rand) {
+            long check = 0;
+            for (int v = 0; v < numValues; v++) {
+              if (field.next(rand) != null)
+                ++check;
+            }
+            return check;
+          }
+        });
+      }
+      scenarios.add(new Scenario("all fields") {
+        long run(int numValues, int batchSize, Random rand) {
+          long check = 0;
+          for (int v = 0; v < numValues; v += fields.length) {
+            for (IndexingSampler.FieldSpec field : fields) {
+              if (field.next(rand) != null)
+                ++check;
+            }
+          }
+          return check;
+        }
+      });
+
+      log.info(String.format("Generating %d values per field per iteration, %d iterations per scenario",
+          numValues, iterations));
+      for (Scenario scenario : scenarios)
+        runScenario(scenario, numValues, 1, iterations, "values");
+    }
+
+    protected void runScenario(Scenario scenario, int numDocs, int batchSize, int iterations, String unit) throws Exception {
+      long check = scenario.run(numDocs, batchSize, new Random(5150)); // warm-up
+      long bytesPerRun = check;
+
+      long[] nanos = new long[iterations];
+      boolean canCountAllocations = allocatedBytes() >= 0;
+      long allocated = 0L;
+      for (int i = 0; i < iterations; i++) {
+        Random rand = new Random(5150 + i);
+        long allocatedBefore = allocatedBytes();
+        long startNs = System.nanoTime();
+        check += scenario.run(numDocs, batchSize, rand);
+        nanos[i] = System.nanoTime() - startNs;
+        allocated += allocatedBytes() - allocatedBefore;
+      }
+
+      java.util.Arrays.sort(nanos);
+      long medianNs = nanos[iterations / 2];
+      double docsPerSec = numDocs / (medianNs / (double) TimeUnit.SECONDS.toNanos(1));
+      String bytesPerDoc = canCountAllocations ? String.valueOf(allocated / ((long) numDocs * iterations)) : "?";
+      String unitName = unit.substring(0, unit.length() - 1);
+      if (scenario.returnsBytes) {
+        double mbPerSec = (bytesPerRun / (1024d * 1024d)) / (medianNs / (double) TimeUnit.SECONDS.toNanos(1));
+        log.info(String.format("%-32s %,12.0f %s/sec  %8.1f MB/sec  %8s bytes allocated per %s  (check=%d)",
+            scenario.name, docsPerSec, unit, mbPerSec, bytesPerDoc, unitName, check));
+      } else {
+        log.info(String.format("%-32s %,12.0f %s/sec  %8s bytes allocated per %s  (check=%d)",
+            scenario.name, docsPerSec, unit, bytesPerDoc, unitName, check));
+      }
+    }
+
+    // bytes allocated by the current thread, or -1 if the JVM can't tell us
+    protected long allocatedBytes() {
+      java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean) {
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return -1L;
+    }
+  } // end DatagenBenchTool
+
+  /**
+   * Writes the IndexingSampler doc profile to a corpus file that can be replayed with the
+   * CORPUS_FILE sampler param. Docs are generated in REPRODUCIBLE mode, so doc N is the same
+   * as the one the sampler would generate with the same seed and ID_PREFIX.
+   */
+  static class DatagenTool implements LocalTool {
+
+    @SuppressWarnings("static-access")
+    @Override
+    public Option[] getOptions() {
+      return new Option[] {
+        OptionBuilder
+          .withArgName("FILE")
+          .hasArg()
+          .isRequired(true)
+          .withDescription("Corpus file to write; existing files are overwritten")
+          .create("output"),
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Num docs to generate; default 100000")
+          .create("numDocs"),
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Docs per block, which is the batch size used when replaying; default 100")
+          .create("batchSize"),
+        OptionBuilder
+          .withArgName("javabin|json")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("How each block is serialized; use json to replay to Fusion; default javabin")
+          .create("format"),
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Random seed; default 5150")
+          .create("seed"),
+        OptionBuilder
+          .withArgName("PREFIX")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Doc IDs are PREFIX_N; default id")
+          .create("idPrefix"),
+        OptionBuilder
+          .withArgName("FILE")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("JSON doc profile to generate docs from instead of the built-in fields")
+          .create("profile"),
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Scale text and multi-valued fields so docs are about this many bytes of JSON")
+          .create("targetBytes"),
+        OptionBuilder
+          .withArgName("N|min:max:u|z[exp]")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Nest this many child docs under each doc, e.g. 0:20:z1.2")
+          .create("childDocs")
+      };
+    }
+
+    @Override
+    public void runTool(CloudSolrClient cloudSolrServer, CommandLine cli) throws Exception {
+      File output = new File(cli.getOptionValue("output"));
+      long numDocs = Long.parseLong(cli.getOptionValue("numDocs", "100000"));
+      int batchSize = Integer.parseInt(cli.getOptionValue("batchSize", "100"));
+      CorpusFile.Format format =
+          CorpusFile.Format.valueOf(cli.getOptionValue("format", "javabin").trim().toUpperCase(Locale.ROOT));
+
+      IndexingSampler sampler = new IndexingSampler();
+      Map<String, String> params = new HashMap<String, String>();
+      params.put("ENDPOINT_TYPE", "datagenonly");
+      params.put("REPRODUCIBLE", "true");
+      params.put("RANDOM_SEED", cli.getOptionValue("seed", "5150"));
+      if (cli.hasOption("profile"))
+        params.put("DOC_PROFILE", cli.getOptionValue("profile"));
+      if (cli.hasOption("targetBytes"))
+        params.put("TARGET_BYTES_PER_DOC", cli.getOptionValue("targetBytes"));
+      if (cli.hasOption("childDocs"))
+        params.put("CHILD_DOCS", cli.getOptionValue("childDocs"));
+      sampler.setup(params);
+
+      DocBatch batch = sampler.newBatch(batchSize);
+      batch.setIdBase(sampler.idBase(cli.getOptionValue("idPrefix", "id"), "1"));
+      Random rand = sampler.docRandom();
+
+      long startMs = System.currentTimeMillis();
+      CorpusFile.Writer writer = new CorpusFile.Writer(output, format, batchSize);
+      try {
+        for (long d = 0; d < numDocs; d++) {
+          sampler.startDoc(rand, d);
+          batch.addDoc(d, rand);
+          if (batch.isFull() || d == numDocs - 1) {
+            writer.write(batch);
+            batch.clear();
+          }
+          if (d > 0 && d % 100000 == 0)
+            log.info("Wrote " + d + " docs to " + output);
+        }
+      } finally {
+        writer.close();
+      }
+
+      long tookMs = System.currentTimeMillis() - startMs;
+      log.info(String.format("Wrote %d docs (%,d bytes) as %s blocks of %d docs to %s in %d ms",
+          writer.getNumDocs(), writer.getBytesWritten(), format, batchSize, output, tookMs));
+    }
+  } // end DatagenTool
+
+  /**
+   * Posts gzipped batches to a stand-in update handler on localhost, which inflates and parses
+   * each one and checks that all of the batch's docs came through, then reports what each gzip
+   * level costs to deflate against the bytes it keeps off the wire. Level 0 sends uncompressed,
+   * for comparison. The deflate time is the sender's compression.cpu timer, which leaves out
+   * the time spent writing to the socket; the inflate time is the sink's, not counting parsing.
+   */
+  static class GzipSinkTool implements LocalTool {
+
+    // what the sink saw while one level was being sent
+    static final class SinkStats {
+      final AtomicLong requests = new AtomicLong(0);
+      final AtomicLong wireBytes = new AtomicLong(0);
+      final AtomicLong inflatedBytes = new AtomicLong(0);
+      final AtomicLong inflateNanos = new AtomicLong(0);
+    }
+
+    volatile SinkStats current = new SinkStats();
+
+    @SuppressWarnings("static-access")
+    @Override
+    public Option[] getOptions() {
+      return new Option[] {
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Num docs to send at each level; default 20000")
+          .create("numDocs"),
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Batch size; default 100")
+          .create("batchSize"),
+        OptionBuilder
+          .withArgName("LEVELS")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Comma-separated gzip levels to compare, 0 for none; default 0,1,3,6,9")
+          .create("levels"),
+        OptionBuilder
+          .withArgName("json|javabin|xml")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Update format of the request bodies; default json")
+          .create("format"),
+        OptionBuilder
+          .withArgName("FILE")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("JSON doc profile to generate docs from instead of the built-in fields")
+          .create("profile"),
+        OptionBuilder
+          .withArgName("#")
+          .hasArg()
+          .isRequired(false)
+          .withDescription("Scale text and multi-valued fields so docs are about this many bytes of JSON")
+          .create("targetBytes")
+      };
+    }
+
+    @Override
+    public void runTool(CloudSolrClient cloudSolrServer, CommandLine cli) throws Exception {
+      int numDocs = Integer.parseInt(cli.getOptionValue("numDocs", "20000"));
+      int batchSize = Integer.parseInt(cli.getOptionValue("batchSize", "100"));
+      final UpdateFormat format = UpdateFormat.forName(cli.getOptionValue("format", "json"));
+      List<Integer> levels = new ArrayList<Integer>();
+      for (String level : cli.getOptionValue("levels", "0,1,3,6,9").split(","))
+        levels.add(Integer.parseInt(level.trim()));
+
+      IndexingSampler sampler = new IndexingSampler();
+      String profile = cli.getOptionValue("profile");
+      int targetBytes = Integer.parseInt(cli.getOptionValue("targetBytes", "0"));
+      if (profile != null || targetBytes > 0)
+        sampler.useProfile(profile, targetBytes, null);
+
+      // generate the docs up front, so each level sends the same bodies
+      Random rand = new Random(5150);
+      List<DocBatch> batches = new ArrayList<DocBatch>();
+      for (int d = 0; d < numDocs; d += batchSize) {
+        DocBatch batch = sampler.newBatch(batchSize);
+        batch.setIdBase("id_1_");
+        for (int b = d; b < Math.min(d + batchSize, numDocs); b++)
+          batch.addDoc(b, rand);
+        batches.add(batch);
+      }
+
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/update", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          sink(exchange, format);
+        }
+      });
+      server.start();
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/update";
+      CloseableHttpClient httpClient = HttpClients.createDefault();
+      try {
+        // warm up the JIT on both ends before anything is measured
+        sendAll(httpClient, url, batches, format, new RequestCompression(RequestCompression.DEFAULT_LEVEL, new MetricRegistry()));
+
+        log.info(String.format("Sending %d docs in batches of %d as %s at gzip levels %s", numDocs, batchSize, format, levels));
+        for (int level : levels) {
+          current = new SinkStats();
+          MetricRegistry metrics = new MetricRegistry();
+          RequestCompression compression = (level > 0) ? new RequestCompression(level, metrics) : null;
+          sendAll(httpClient, url, batches, format, compression);
+          report(level, current, metrics);
+        }
+      } finally {
+        httpClient.close();
+        server.stop(0);
+      }
+    }
+
+    // posts each batch and checks that the sink parsed all of its docs
+    protected void sendAll(CloseableHttpClient httpClient, String url, List<DocBatch> batches, final UpdateFormat format,
+                           RequestCompression compression) throws Exception {
+      for (final DocBatch batch : batches) {
+        ContentProducer body = new ContentProducer() {
+          public void writeTo(OutputStream out) throws IOException {
+            format.encode(batch, out);
+          }
+        };
+        EntityTemplate entity = new EntityTemplate((compression != null) ? compression.compress(body) : body);
+        entity.setContentType(format.getContentType());
+        if (compression != null)
+          entity.setContentEncoding(RequestCompression.CONTENT_ENCODING);
+        HttpPost post = new HttpPost(url);
+        post.setEntity(entity);
+
+        HttpResponse response = httpClient.execute(post);
+        String reply = EntityUtils.toString(response.getEntity());
+        if (response.getStatusLine().getStatusCode() != 200)
+          throw new IllegalStateException("Sink rejected a " + compression + " request: " + reply);
+        if (Integer.parseInt(reply.trim()) != batch.size())
+          throw new IllegalStateException("Sink parsed " + reply.trim() + " of " + batch.size() + " docs in a " + compression + " request");
+      }
+    }
+
+    protected void sink(HttpExchange exchange, UpdateFormat format) throws IOException {
+      int status = 200;
+      String reply;
+      try {
+        byte[] wire = readFully(exchange.getRequestBody());
+        byte[] body = wire;
+        long inflateNanos = 0L;
+        if (RequestCompression.CONTENT_ENCODING.equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+          long startNanos = System.nanoTime();
+          body = readFully(new GZIPInputStream(new ByteArrayInputStream(wire)));
+          inflateNanos = System.nanoTime() - startNanos;
+        }
+        reply = String.valueOf(countDocs(format, body));
+
+        SinkStats stats = current;
+        stats.requests.incrementAndGet();
+        stats.wireBytes.addAndGet(wire.length);
+        stats.inflatedBytes.addAndGet(body.length);
+        stats.inflateNanos.addAndGet(inflateNanos);
+      } catch (Exception exc) {
+        status = 400;
+        reply = String.valueOf(exc);
+      }
+      byte[] bytes = reply.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    }
+
+    // parses the body the way an update handler would, returning the number of top-level docs
+    protected int countDocs(UpdateFormat format, byte[] body) throws Exception {
+      switch (format) {
+        case JSON:
+          Object docs = ObjectBuilder.fromJSON(new String(body, StandardCharsets.UTF_8));
+          if (!(docs instanceof List))
+            throw new IllegalArgumentException("Expected a JSON array of docs, not " + docs.getClass().getSimpleName());
+          return ((List<?>) docs).size();
+        case JAVABIN:
+          final int[] count = new int[1];
+          new JavaBinUpdateRequestCodec().unmarshal(new ByteArrayInputStream(body), new JavaBinUpdateRequestCodec.StreamingUpdateHandler() {
+            public void update(SolrInputDocument document, UpdateRequest req, Integer commitWithin, Boolean override) {
+              ++count[0];
+            }
+          });
+          return count[0];
+        case XML:
+          int numDocs = 0;
+          Node add = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(body)).getDocumentElement();
+          for (Node node = add.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if ("doc".equals(node.getNodeName()))
+              ++numDocs;
+          }
+          return numDocs;
+        default:
+          throw new IllegalArgumentException("Unsupported update format " + format);
+      }
+    }
+
+    protected void report(int level, SinkStats stats, MetricRegistry metrics) {
+      long wireBytes = stats.wireBytes.get();
+      long rawBytes = stats.inflatedBytes.get();
+      double deflateMs = 0d;
+      if (level > 0) {
+        // what the sender counted should be what the sink got
+        long sentRaw = metrics.counter("compression.rawBytes").getCount();
+        long sentCompressed = metrics.counter("compression.compressedBytes").getCount();
+        if (sentRaw != rawBytes || sentCompressed != wireBytes)
+          throw new IllegalStateException(String.format("gzip:%d counted %d bytes in and %d out, but the sink got %d " +
+            "compressed bytes that inflated to %d", level, sentRaw, sentCompressed, wireBytes, rawBytes));
+        Timer cpu = metrics.timer("compression.cpu");
+        deflateMs = cpu.getSnapshot().getMean() * cpu.getCount() / 1e6d;
+      }
+      double rawMb = rawBytes / (1024d * 1024d);
+      double savedKb = (rawBytes - wireBytes) / 1024d;
+      log.info(String.format("%-6s %9.2f MB raw %9.2f MB sent (%5.1f%%)  deflate %8.1f ms (%7.1f MB/sec)  inflate %8.1f ms  " +
+          "%8s KB saved per deflate ms  (%d requests)",
+        (level > 0) ? "gzip:" + level : "none", rawMb, wireBytes / (1024d * 1024d), 100d * wireBytes / Math.max(1L, rawBytes),
+        deflateMs, (deflateMs > 0) ? rawMb / (deflateMs / 1000d) : 0d, stats.inflateNanos.get() / 1e6d,
+        (deflateMs > 0) ? String.format("%.1f", savedKb / deflateMs) : "-", stats.requests.get()));
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int read;
+      while ((read = in.read(buf)) != -1)
+        out.write(buf, 0, read);
+      in.close();
+      return out.toByteArray();
+    }
+  } // end GzipSinkTool
+
   /**
    * Requests health information from the cluster. 
    */
@@ -844,6 +1547,12 @@ public class SolrCloudTools {
       return new BackupTool();
     } else if (toolType == ToolType.indexer) {
       return new IndexerTool();
+    } else if (toolType == ToolType.datagenbench) {
+      return new DatagenBenchTool();
+    } else if (toolType == ToolType.datagen) {
+      return new DatagenTool();
+    } else if (toolType == ToolType.gzipsink) {
+      return new GzipSinkTool();
     } else {
       throw new IllegalArgumentException(toolType+" not supported!");
     }
@@ -923,6 +1632,9 @@ public class SolrCloudTools {
     formatter.printHelp("healthcheck", getToolOptions(new HealthcheckTool()));    
     formatter.printHelp("backup", getToolOptions(new BackupTool()));    
     formatter.printHelp("indexer", getToolOptions(new IndexerTool()));    
+    formatter.printHelp("datagenbench", getToolOptions(new DatagenBenchTool()));
+    formatter.printHelp("datagen", getToolOptions(new DatagenTool()));
+    formatter.printHelp("gzipsink", getToolOptions(new GzipSinkTool()));
   }
     
   private static Options getToolOptions(Tool tool) {
@@ -0,0 +1,321 @@
+package com.lucidworks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only FIFO queue of byte records in memory-mapped segment files, for batches that can't
+ * be sent as fast as they're generated. Each record is its length followed by its bytes; the
+ * length is written last, so a record that was only partly written when the JVM died is never
+ * read back. When a record doesn't fit at the end of a segment, a length of -1 marks the rest
+ * of the segment as unused and the record goes in a new one.
+ *
+ * Records are taken off with poll and acked once they've been dealt with; the position of the
+ * oldest record that hasn't been acked is kept in a small mapped file, so after a restart every
+ * record that wasn't acked is read again (some may have been sent already). Segments are deleted
+ * once every record in them has been acked.
+ *
+ * Writes go to the page cache, so they survive the JVM dying but not the machine; segments are
+ * forced to disk when they fill up and when the queue is closed. Thread-safe.
+ */
+public class SpillQueue implements Closeable {
+
+  private static final Log log = LogFactory.getLog(SpillQueue.class);
+
+  static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+  static final String SEGMENT_SUFFIX = ".seg";
+  static final String HEAD_FILE = "head";
+
+  private static final int SKIP_TO_NEXT_SEGMENT = -1;
+
+  /**
+   * A record taken off the queue, which has to be acked once it's been sent.
+   */
+  public static final class Record {
+    final long pos;
+    final long nextPos;
+    final byte[] data;
+    final boolean recovered;
+    boolean acked = false;
+
+    Record(long pos, long nextPos, byte[] data, boolean recovered) {
+      this.pos = pos;
+      this.nextPos = nextPos;
+      this.data = data;
+      this.recovered = recovered;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+
+    /**
+     * True if the record was already in the queue when it was opened, i.e. it was written
+     * before a restart.
+     */
+    public boolean isRecovered() {
+      return recovered;
+    }
+  }
+
+  private final File dir;
+  private final int segmentBytes;
+  private final long maxBytes;
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<Long, MappedByteBuffer>();
+  private final MappedByteBuffer head;
+  private final TreeMap<Long, Record> unacked = new TreeMap<Long, Record>();
+  private final long recoveredEnd;
+
+  private long segmentsBytes = 0L;
+  private long writeSeq;
+  private int writeOffset;
+  private long readSeq;
+  private int readOffset;
+  private long numRecords = 0L;
+
+  /**
+   * Opens the queue in dir, creating it if need be; no more than about maxBytes of segments are
+   * kept on disk, after which append returns false.
+   */
+  public SpillQueue(File dir, int segmentBytes, long maxBytes) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Failed to create spill directory " + dir.getAbsolutePath());
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = maxBytes;
+
+    File[] segmentFiles = dir.listFiles(new FilenameFilter() {
+      public boolean accept(File d, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    Arrays.sort(segmentFiles); // names are zero-padded sequence numbers
+
+    boolean newHead = !new File(dir, HEAD_FILE).isFile();
+    head = map(new File(dir, HEAD_FILE), 12);
+    if (newHead) {
+      long first = (segmentFiles.length > 0) ? seqOf(segmentFiles[0]) : 0L;
+      head.putLong(0, first);
+      head.putInt(8, 0);
+    }
+    readSeq = head.getLong(0);
+    readOffset = head.getInt(8);
+
+    for (File file : segmentFiles) {
+      long seq = seqOf(file);
+      if (seq < readSeq) {
+        // everything in it was acked, but it wasn't deleted before the last shutdown
+        file.delete();
+        continue;
+      }
+      segments.put(seq, map(file, (int) file.length()));
+      segmentsBytes += file.length();
+    }
+
+    if (segments.isEmpty()) {
+      readOffset = 0;
+      writeSeq = readSeq;
+      writeOffset = 0;
+      addSegment(writeSeq, segmentBytes);
+    } else {
+      // find the end of the last complete record
+      writeSeq = segments.lastKey();
+      MappedByteBuffer segment = segments.get(writeSeq);
+      int offset = (writeSeq == readSeq) ? readOffset : 0;
+      while (offset + 4 <= segment.capacity()) {
+        int len = segment.getInt(offset);
+        if (len == 0)
+          break;
+        if (len == SKIP_TO_NEXT_SEGMENT) {
+          offset = segment.capacity();
+          break;
+        }
+        offset += 4 + len;
+        ++numRecords;
+      }
+      writeOffset = offset;
+      for (Map.Entry<Long, MappedByteBuffer> entry : segments.headMap(writeSeq).entrySet())
+        numRecords += countRecords(entry.getValue(), (entry.getKey() == readSeq) ? readOffset : 0);
+    }
+    recoveredEnd = pos(writeSeq, writeOffset);
+
+    if (numRecords > 0)
+      log.info("Recovered " + numRecords + " spilled records in " + segments.size() + " segments from " + dir.getAbsolutePath());
+  }
+
+  public File getDir() {
+    return dir;
+  }
+
+  /**
+   * Adds a record to the end of the queue, unless that would need more than maxBytes of segments.
+   */
+  public synchronized boolean append(byte[] buf, int off, int len) throws IOException {
+    int needed = 4 + len;
+    MappedByteBuffer segment = segments.get(writeSeq);
+    if (writeOffset + needed > segment.capacity()) {
+      int size = Math.max(segmentBytes, needed);
+      if (segmentsBytes + size > maxBytes)
+        return false;
+
+      if (writeOffset + 4 <= segment.capacity())
+        segment.putInt(writeOffset, SKIP_TO_NEXT_SEGMENT);
+      segment.force();
+      ++writeSeq;
+      writeOffset = 0;
+      segment = addSegment(writeSeq, size);
+    }
+
+    ByteBuffer dup = segment.duplicate();
+    dup.position(writeOffset + 4);
+    dup.put(buf, off, len);
+    segment.putInt(writeOffset, len);
+    writeOffset += needed;
+    ++numRecords;
+    return true;
+  }
+
+  /**
+   * Takes the oldest record off the queue, or returns null if it's empty.
+   */
+  public synchronized Record poll() {
+    while (true) {
+      if (readSeq == writeSeq && readOffset == writeOffset)
+        return null;
+
+      MappedByteBuffer segment = segments.get(readSeq);
+      int len = (readOffset + 4 <= segment.capacity()) ? segment.getInt(readOffset) : SKIP_TO_NEXT_SEGMENT;
+      if (len == SKIP_TO_NEXT_SEGMENT || len == 0) {
+        ++readSeq;
+        readOffset = 0;
+        continue;
+      }
+
+      byte[] data = new byte[len];
+      ByteBuffer dup = segment.duplicate();
+      dup.position(readOffset + 4);
+      dup.get(data);
+
+      long pos = pos(readSeq, readOffset);
+      readOffset += 4 + len;
+      --numRecords;
+      Record record = new Record(pos, pos(readSeq, readOffset), data, pos < recoveredEnd);
+      unacked.put(pos, record);
+      return record;
+    }
+  }
+
+  /**
+   * Marks a record as dealt with; once every record before it has been acked too, it won't be
+   * read again after a restart.
+   */
+  public synchronized void ack(Record record) {
+    record.acked = true;
+    long durable = -1L;
+    while (!unacked.isEmpty() && unacked.firstEntry().getValue().acked)
+      durable = unacked.pollFirstEntry().getValue().nextPos;
+    if (durable == -1L)
+      return;
+    if (unacked.isEmpty())
+      durable = pos(readSeq, readOffset);
+
+    long seq = durable >>> 32;
+    int offset = (int) durable;
+    // nothing but a skip marker after the head, so that segment is done with too
+    while (seq < writeSeq) {
+      MappedByteBuffer segment = segments.get(seq);
+      if (offset + 4 <= segment.capacity() && segment.getInt(offset) != SKIP_TO_NEXT_SEGMENT)
+        break;
+      ++seq;
+      offset = 0;
+    }
+    if (readSeq < seq) {
+      readSeq = seq;
+      readOffset = 0;
+    }
+    head.putLong(0, seq);
+    head.putInt(8, offset);
+
+    for (Iterator<Map.Entry<Long, MappedByteBuffer>> it = segments.headMap(seq).entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Long, MappedByteBuffer> entry = it.next();
+      segmentsBytes -= entry.getValue().capacity();
+      it.remove();
+      File file = segmentFile(entry.getKey());
+      if (!file.delete())
+        log.warn("Failed to delete spill segment " + file.getAbsolutePath());
+    }
+  }
+
+  public synchronized boolean isEmpty() {
+    return readSeq == writeSeq && readOffset == writeOffset;
+  }
+
+  /**
+   * Number of records that haven't been taken off the queue yet.
+   */
+  public synchronized long size() {
+    return numRecords;
+  }
+
+  public synchronized void close() {
+    for (MappedByteBuffer segment : segments.values())
+      segment.force();
+    head.force();
+    segments.clear();
+  }
+
+  private MappedByteBuffer addSegment(long seq, int size) throws IOException {
+    MappedByteBuffer segment = map(segmentFile(seq), size);
+    segments.put(seq, segment);
+    segmentsBytes += size;
+    return segment;
+  }
+
+  private File segmentFile(long seq) {
+    return new File(dir, String.format("%020d%s", seq, SEGMENT_SUFFIX));
+  }
+
+  private static long seqOf(File segmentFile) {
+    String name = segmentFile.getName();
+    return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private static long pos(long seq, int offset) {
+    return (seq << 32) | (offset & 0xffffffffL);
+  }
+
+  private static int countRecords(MappedByteBuffer segment, int offset) {
+    int count = 0;
+    while (offset + 4 <= segment.capacity()) {
+      int len = segment.getInt(offset);
+      if (len == 0 || len == SKIP_TO_NEXT_SEGMENT)
+        break;
+      offset += 4 + len;
+      ++count;
+    }
+    return count;
+  }
+
+  // the mapping stays valid after the file is closed
+  private static MappedByteBuffer map(File file, int size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      raf.close();
+    }
+  }
+}
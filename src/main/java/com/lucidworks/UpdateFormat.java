@@ -0,0 +1,71 @@
+package com.lucidworks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+
+/**
+ * Payload formats for sending a batch of docs to an update handler (or a Fusion index
+ * pipeline), for comparing the cost of encoding and parsing each one.
+ */
+public enum UpdateFormat {
+
+  JSON("application/json") {
+    void encode(DocBatch batch, OutputStream out) throws IOException {
+      batch.writeTo(out);
+    }
+  },
+
+  JAVABIN("application/javabin") {
+    void encode(DocBatch batch, OutputStream out) throws IOException {
+      new JavaBinUpdateRequestCodec().marshal(toUpdateRequest(batch), out);
+    }
+  },
+
+  XML("application/xml; charset=UTF-8") {
+    void encode(DocBatch batch, OutputStream out) throws IOException {
+      Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+      toUpdateRequest(batch).writeXML(writer);
+      writer.flush();
+    }
+  };
+
+  final String contentType;
+
+  UpdateFormat(String contentType) {
+    this.contentType = contentType;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Writes the docs in the batch (with their children, if any) as an add request.
+   */
+  abstract void encode(DocBatch batch, OutputStream out) throws IOException;
+
+  public static UpdateFormat forName(String name) {
+    try {
+      return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException iae) {
+      throw new IllegalArgumentException("Unknown update format [" + name + "]; expected json, javabin or xml");
+    }
+  }
+
+  private static UpdateRequest toUpdateRequest(DocBatch batch) {
+    UpdateRequest req = new UpdateRequest();
+    req.add(batch.toSolrInputDocuments());
+    return req;
+  }
+
+  public String toString() {
+    return name().toLowerCase(Locale.ROOT);
+  }
+}
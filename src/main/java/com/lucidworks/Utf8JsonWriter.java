@@ -0,0 +1,275 @@
+package com.lucidworks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal buffered JSON writer that encodes straight to UTF-8 bytes, for streaming generated
+ * docs into a request body. It only does what DocBatch needs: it doesn't track nesting or
+ * insert separators, and values are written with the type-specific methods.
+ *
+ * Apart from floats and doubles (which go through Float/Double.toString), nothing is allocated
+ * per value; dates are formatted as ISO-8601 in UTC directly from epoch millis.
+ */
+final class Utf8JsonWriter {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+  private static final byte[] TRUE = "true".getBytes();
+  private static final byte[] FALSE = "false".getBytes();
+
+  private static final long MS_PER_DAY = 86400000L;
+
+  // longest value written in one piece: a date, a long, or a single escaped char
+  private static final int MIN_BUFFER_SIZE = 64;
+
+  private final byte[] buf;
+  private int pos = 0;
+  private OutputStream out;
+
+  Utf8JsonWriter(int bufferSize) {
+    this.buf = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+  }
+
+  void setOutput(OutputStream out) {
+    this.out = out;
+    this.pos = 0;
+  }
+
+  void flush() throws IOException {
+    if (pos > 0) {
+      out.write(buf, 0, pos);
+      pos = 0;
+    }
+  }
+
+  private void require(int len) throws IOException {
+    if (pos + len > buf.length)
+      flush();
+  }
+
+  void writeByte(char ch) throws IOException {
+    require(1);
+    buf[pos++] = (byte) ch;
+  }
+
+  /**
+   * Copies already encoded (and escaped) bytes, such as a pre-built field name.
+   */
+  void writeRaw(byte[] bytes) throws IOException {
+    if (bytes.length > buf.length - pos) {
+      flush();
+      if (bytes.length > buf.length) {
+        out.write(bytes);
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, buf, pos, bytes.length);
+    pos += bytes.length;
+  }
+
+  void writeBoolean(boolean value) throws IOException {
+    writeRaw(value ? TRUE : FALSE);
+  }
+
+  void writeInt(int value) throws IOException {
+    writeLong(value);
+  }
+
+  void writeLong(long value) throws IOException {
+    require(20);
+    if (value < 0) {
+      if (value == Long.MIN_VALUE) {
+        writeAscii(Long.toString(value));
+        return;
+      }
+      buf[pos++] = '-';
+      value = -value;
+    }
+
+    int numDigits = 1;
+    for (long v = value; v >= 10; v /= 10)
+      ++numDigits;
+
+    for (int i = pos + numDigits - 1; i >= pos; i--) {
+      buf[i] = (byte) ('0' + (value % 10));
+      value /= 10;
+    }
+    pos += numDigits;
+  }
+
+  void writeFloat(float value) throws IOException {
+    if (Float.isNaN(value) || Float.isInfinite(value)) {
+      writeQuoted(Float.toString(value));
+    } else {
+      writeAscii(Float.toString(value));
+    }
+  }
+
+  void writeDouble(double value) throws IOException {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      writeQuoted(Double.toString(value));
+    } else {
+      writeAscii(Double.toString(value));
+    }
+  }
+
+  private void writeAscii(String str) throws IOException {
+    int len = str.length();
+    require(len);
+    for (int i = 0; i < len; i++)
+      buf[pos++] = (byte) str.charAt(i);
+  }
+
+  /**
+   * Writes a quoted ISO-8601 timestamp in UTC with millis, e.g. "2013-05-08T20:36:38.000Z".
+   */
+  void writeDate(long epochMs) throws IOException {
+    long days = epochMs / MS_PER_DAY;
+    if (epochMs % MS_PER_DAY < 0)
+      --days;
+    int msOfDay = (int) (epochMs - days * MS_PER_DAY);
+
+    // civil-from-days, see http://howardhinnant.github.io/date_algorithms.html
+    long z = days + 719468;
+    long era = (z >= 0 ? z : z - 146096) / 146097;
+    long doe = z - era * 146097;
+    long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+    int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+    long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+    if (year < 0 || year > 9999) {
+      // not worth handling expanded years, which generated data doesn't produce
+      throw new IllegalArgumentException("Year " + year + " is outside the range supported for JSON dates");
+    }
+
+    require(26);
+    buf[pos++] = '"';
+    writeDigits((int) year, 4);
+    buf[pos++] = '-';
+    writeDigits(month, 2);
+    buf[pos++] = '-';
+    writeDigits(day, 2);
+    buf[pos++] = 'T';
+    writeDigits(msOfDay / 3600000, 2);
+    buf[pos++] = ':';
+    writeDigits((msOfDay / 60000) % 60, 2);
+    buf[pos++] = ':';
+    writeDigits((msOfDay / 1000) % 60, 2);
+    buf[pos++] = '.';
+    writeDigits(msOfDay % 1000, 3);
+    buf[pos++] = 'Z';
+    buf[pos++] = '"';
+  }
+
+  // caller has already made room
+  private void writeDigits(int value, int numDigits) {
+    for (int i = pos + numDigits - 1; i >= pos; i--) {
+      buf[i] = (byte) ('0' + (value % 10));
+      value /= 10;
+    }
+    pos += numDigits;
+  }
+
+  /**
+   * Writes the UTF-8 bytes of a word without quotes, escaping it if needed.
+   */
+  void writeWord(WordArena words, int index) throws IOException {
+    int len = words.length(index);
+    if (words.isJsonSafe(index) && len <= buf.length) {
+      require(len);
+      pos = words.copyTo(index, buf, pos);
+    } else {
+      for (int b = 0; b < len; b++)
+        writeEscaped(words.byteAt(index, b));
+    }
+  }
+
+  /**
+   * Writes a quoted, escaped JSON string.
+   */
+  void writeQuoted(String str) throws IOException {
+    writeByte('"');
+    writeUnquoted(str);
+    writeByte('"');
+  }
+
+  void writeUnquoted(String str) throws IOException {
+    int len = str.length();
+    for (int i = 0; i < len; i++) {
+      char ch = str.charAt(i);
+      if (ch < 0x80) {
+        writeEscaped((byte) ch);
+      } else if (ch < 0x800) {
+        require(2);
+        buf[pos++] = (byte) (0xc0 | (ch >> 6));
+        buf[pos++] = (byte) (0x80 | (ch & 0x3f));
+      } else if (Character.isHighSurrogate(ch) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+        int cp = Character.toCodePoint(ch, str.charAt(++i));
+        require(4);
+        buf[pos++] = (byte) (0xf0 | (cp >> 18));
+        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+      } else {
+        require(3);
+        buf[pos++] = (byte) (0xe0 | (ch >> 12));
+        buf[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (ch & 0x3f));
+      }
+    }
+  }
+
+  // escapes an ASCII char (or passes through a byte of a multi-byte UTF-8 sequence)
+  private void writeEscaped(byte b) throws IOException {
+    require(6);
+    if (b == '"' || b == '\\') {
+      buf[pos++] = '\\';
+      buf[pos++] = b;
+    } else if (b >= 0 && b < 0x20) {
+      buf[pos++] = '\\';
+      buf[pos++] = 'u';
+      buf[pos++] = '0';
+      buf[pos++] = '0';
+      buf[pos++] = HEX[b >> 4];
+      buf[pos++] = HEX[b & 0xf];
+    } else {
+      buf[pos++] = b;
+    }
+  }
+
+  /**
+   * Returns the bytes for ,"name": (or "name": if first), for writing field names without
+   * encoding them each time.
+   */
+  static byte[] fieldNameBytes(String name, boolean first) {
+    StringBuilder sb = new StringBuilder(name.length() + 4);
+    if (!first)
+      sb.append(',');
+    sb.append('"');
+    for (int i = 0; i < name.length(); i++) {
+      char ch = name.charAt(i);
+      if (ch == '"' || ch == '\\')
+        sb.append('\\');
+      sb.append(ch);
+    }
+    sb.append("\":");
+    return sb.toString().getBytes(UTF8);
+  }
+
+  /**
+   * Returns the bytes for ,"name":"value", for fields that always have the same value.
+   */
+  static byte[] fieldBytes(String name, String value) {
+    byte[] nameBytes = fieldNameBytes(name, false);
+    byte[] valueBytes = fieldNameBytes(value, true); // "value":
+    byte[] bytes = new byte[nameBytes.length + valueBytes.length - 1];
+    System.arraycopy(nameBytes, 0, bytes, 0, nameBytes.length);
+    System.arraycopy(valueBytes, 0, bytes, nameBytes.length, valueBytes.length - 1);
+    return bytes;
+  }
+}
@@ -0,0 +1,250 @@
+package com.lucidworks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Measures how long it takes for added docs to become visible, to realtime get (which only
+ * needs the update log) and / or to search (which needs a new searcher, i.e. a soft or hard
+ * commit). Senders mark a doc from a batch they've just sent, at most one every
+ * MARK_EVERY_MS, and a background thread looks up all of the marked docs that haven't shown up
+ * yet every POLL_MS, with one request per kind of lookup. The latency is from the doc's
+ * indexed_at_tdt, which is set when the batch is written to the request, until the lookup that
+ * found it came back, so it's accurate to about POLL_MS.
+ *
+ * Given as MODE[:MARK_EVERY_MS[:POLL_MS]], where MODE is search, rtg or both, e.g. both:1000:50.
+ */
+public class VisibilityProbe {
+
+  private static final Log log = LogFactory.getLog(VisibilityProbe.class);
+
+  static final long TIMEOUT_MS = 120000L;
+  static final int MAX_PENDING = 500;
+
+  private static final String FIELDS = "id," + DocBatch.INDEXED_AT_FIELD;
+
+  static final class Marker {
+    final long markedAtMs;
+    boolean seenByRtg;
+    boolean seenBySearch;
+
+    Marker(long markedAtMs) {
+      this.markedAtMs = markedAtMs;
+    }
+  }
+
+  final SolrClient solrClient;
+  final boolean rtg;
+  final boolean search;
+  final long markEveryMs;
+  final long pollMs;
+
+  private final Map<String, Marker> pending = new ConcurrentHashMap<String, Marker>();
+  private final AtomicLong nextMarkMs = new AtomicLong(0L);
+  private ScheduledExecutorService prober;
+
+  final Timer rtgLatency;
+  final Timer searchLatency;
+  final Counter markers;
+  final Counter timeouts;
+
+  VisibilityProbe(SolrClient solrClient, boolean rtg, boolean search, long markEveryMs, long pollMs, MetricRegistry metrics) {
+    if (markEveryMs < 1 || pollMs < 1)
+      throw new IllegalArgumentException("Visibility probe intervals must be at least 1 ms, not " + markEveryMs + ":" + pollMs);
+    this.solrClient = solrClient;
+    this.rtg = rtg;
+    this.search = search;
+    this.markEveryMs = markEveryMs;
+    this.pollMs = pollMs;
+    this.rtgLatency = metrics.timer("nrt.rtg");
+    this.searchLatency = metrics.timer("nrt.search");
+    this.markers = metrics.counter("nrt.markers");
+    this.timeouts = metrics.counter("nrt.timeouts");
+  }
+
+  public static VisibilityProbe parse(String spec, SolrClient solrClient, MetricRegistry metrics) {
+    String[] parts = spec.trim().toLowerCase(Locale.ROOT).split(":");
+    String mode = parts[0].trim();
+    boolean rtg = "rtg".equals(mode) || "both".equals(mode);
+    boolean search = "search".equals(mode) || "both".equals(mode);
+    if ((rtg || search) && parts.length <= 3) {
+      try {
+        long markEveryMs = (parts.length > 1) ? Long.parseLong(parts[1].trim()) : 1000L;
+        long pollMs = (parts.length > 2) ? Long.parseLong(parts[2].trim()) : 100L;
+        return new VisibilityProbe(solrClient, rtg, search, markEveryMs, pollMs, metrics);
+      } catch (NumberFormatException nfe) {
+        // fall through
+      }
+    }
+    throw new IllegalArgumentException("Invalid visibility probe [" + spec + "]; expected search, rtg or both, " +
+      "optionally followed by :MARK_EVERY_MS[:POLL_MS], e.g. both:1000:50");
+  }
+
+  public synchronized void start() {
+    prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "VisibilityProbe");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    prober.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          poll();
+        } catch (Exception exc) {
+          // keep probing; the docs are still pending, so they'll be looked up again next time
+          log.warn("Visibility probe failed due to: " + exc);
+        }
+      }
+    }, pollMs, pollMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Marks the doc to be looked up, unless another doc was marked less than MARK_EVERY_MS ago;
+   * call once the doc was sent, so a doc that was rejected is never waited for.
+   */
+  public void mark(String id) {
+    long nowMs = System.currentTimeMillis();
+    long next = nextMarkMs.get();
+    if (nowMs < next || pending.size() >= MAX_PENDING || !nextMarkMs.compareAndSet(next, nowMs + markEveryMs))
+      return;
+    pending.put(id, new Marker(nowMs));
+    markers.inc();
+  }
+
+  void poll() throws Exception {
+    if (pending.isEmpty())
+      return;
+
+    if (rtg) {
+      List<String> ids = idsToFind(true);
+      if (!ids.isEmpty()) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("ids", join(ids));
+        params.set("fl", FIELDS);
+        QueryRequest req = new QueryRequest(params);
+        req.setPath("/get");
+        NamedList<Object> rsp = solrClient.request(req);
+        found((SolrDocumentList) rsp.get("response"), true, System.currentTimeMillis());
+      }
+    }
+
+    if (search) {
+      List<String> ids = idsToFind(false);
+      if (!ids.isEmpty()) {
+        SolrQuery query = new SolrQuery("{!terms f=id}" + join(ids));
+        query.setFields(FIELDS);
+        query.setRows(ids.size());
+        found(solrClient.query(query).getResults(), false, System.currentTimeMillis());
+      }
+    }
+
+    long nowMs = System.currentTimeMillis();
+    for (Iterator<Map.Entry<String, Marker>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, Marker> entry = it.next();
+      Marker marker = entry.getValue();
+      if ((!rtg || marker.seenByRtg) && (!search || marker.seenBySearch)) {
+        it.remove();
+      } else if (nowMs - marker.markedAtMs > TIMEOUT_MS) {
+        it.remove();
+        timeouts.inc();
+        log.warn("Doc " + entry.getKey() + " still isn't visible to " + (marker.seenByRtg || !rtg ? "search" : "realtime get") +
+          " after " + TIMEOUT_MS + " ms; giving up on it");
+      }
+    }
+  }
+
+  private List<String> idsToFind(boolean byRtg) {
+    List<String> ids = new ArrayList<String>();
+    for (Map.Entry<String, Marker> entry : pending.entrySet()) {
+      Marker marker = entry.getValue();
+      if (!(byRtg ? marker.seenByRtg : marker.seenBySearch))
+        ids.add(entry.getKey());
+    }
+    return ids;
+  }
+
+  private void found(SolrDocumentList docs, boolean byRtg, long seenAtMs) {
+    if (docs == null)
+      return;
+    for (SolrDocument doc : docs) {
+      Marker marker = pending.get(String.valueOf(doc.getFirstValue("id")));
+      if (marker == null)
+        continue;
+
+      // indexed_at_tdt is re-written when a batch is re-tried, so it's the time of the add that took
+      Object indexedAt = doc.getFirstValue(DocBatch.INDEXED_AT_FIELD);
+      long addedAtMs = (indexedAt instanceof Date) ? ((Date) indexedAt).getTime() : marker.markedAtMs;
+      long latencyMs = Math.max(0L, seenAtMs - addedAtMs);
+      if (byRtg) {
+        marker.seenByRtg = true;
+        rtgLatency.update(latencyMs, TimeUnit.MILLISECONDS);
+      } else {
+        marker.seenBySearch = true;
+        searchLatency.update(latencyMs, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private static String join(List<String> ids) {
+    StringBuilder sb = new StringBuilder();
+    for (String id : ids) {
+      if (sb.length() > 0)
+        sb.append(',');
+      sb.append(id);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Stops probing and logs the visibility latencies; docs that haven't shown up yet aren't counted.
+   */
+  public synchronized void close() {
+    if (prober != null) {
+      prober.shutdownNow();
+      prober = null;
+    }
+    if (rtg)
+      log.info(summary("realtime get", rtgLatency));
+    if (search)
+      log.info(summary("search", searchLatency));
+    if (!pending.isEmpty())
+      log.info(pending.size() + " marked docs weren't visible yet when the probe was stopped");
+  }
+
+  private static String summary(String what, Timer timer) {
+    Snapshot snap = timer.getSnapshot();
+    return String.format(Locale.ROOT, "Add-to-visible latency for %s over %d docs: median=%.0f ms, p95=%.0f ms, p99=%.0f ms, max=%.0f ms",
+      what, timer.getCount(), snap.getMedian() / 1e6d, snap.get95thPercentile() / 1e6d, snap.get99thPercentile() / 1e6d, snap.getMax() / 1e6d);
+  }
+
+  public String toString() {
+    return (rtg && search ? "both" : rtg ? "rtg" : "search") + ":" + markEveryMs + ":" + pollMs;
+  }
+}
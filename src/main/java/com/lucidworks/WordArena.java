@@ -0,0 +1,179 @@
+package com.lucidworks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Word list held as UTF-8 bytes in one direct ByteBuffer, with word i stored at
+ * [offsets[i] .. offsets[i+1]). Text can be assembled by copying byte ranges out of the arena
+ * and written to a request body without creating a String per word; Strings are only created,
+ * and then cached, for callers that need them (such as SolrInputDocuments).
+ *
+ * The arena is read-only once loaded, so it is safe to share across threads.
+ */
+public final class WordArena {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer bytes;
+  private final int[] offsets;
+  private final String[] strings;
+  private final int maxLength;
+  private final BitSet needsJsonEscape;
+
+  private WordArena(ByteBuffer bytes, int[] offsets, int maxLength, BitSet needsJsonEscape) {
+    this.bytes = bytes;
+    this.offsets = offsets;
+    this.maxLength = maxLength;
+    this.needsJsonEscape = needsJsonEscape;
+    this.strings = new String[offsets.length - 1];
+  }
+
+  /**
+   * Loads one word per line from a classpath resource, skipping blank lines, and shuffles the
+   * words with the given Random (in the same order Collections.shuffle would).
+   */
+  public static WordArena load(String classpathRes, Random shuffleRand) throws IOException {
+    InputStream stream = WordArena.class.getClassLoader().getResourceAsStream(classpathRes);
+    if (stream == null)
+      throw new IllegalArgumentException(classpathRes + " not found on classpath!");
+
+    byte[] raw;
+    int rawLen = 0;
+    try {
+      raw = new byte[Math.max(stream.available(), 64 * 1024)];
+      int r;
+      while ((r = stream.read(raw, rawLen, raw.length - rawLen)) != -1) {
+        rawLen += r;
+        if (rawLen == raw.length)
+          raw = Arrays.copyOf(raw, raw.length * 2);
+      }
+    } finally {
+      try {
+        stream.close();
+      } catch (Exception ignore) {
+      }
+    }
+
+    // find the start and end of each trimmed, non-empty line
+    int[] starts = new int[1024];
+    int[] ends = new int[1024];
+    int numWords = 0;
+    int pos = 0;
+    while (pos < rawLen) {
+      int eol = pos;
+      while (eol < rawLen && raw[eol] != '\n')
+        ++eol;
+
+      int start = pos, end = eol;
+      while (start < end && (raw[start] & 0xff) <= ' ')
+        ++start;
+      while (end > start && (raw[end - 1] & 0xff) <= ' ')
+        --end;
+
+      if (end > start) {
+        if (numWords == starts.length) {
+          starts = Arrays.copyOf(starts, numWords * 2);
+          ends = Arrays.copyOf(ends, numWords * 2);
+        }
+        starts[numWords] = start;
+        ends[numWords] = end;
+        ++numWords;
+      }
+      pos = eol + 1;
+    }
+
+    if (numWords == 0)
+      throw new IllegalArgumentException("No words found in " + classpathRes);
+
+    int[] order = new int[numWords];
+    for (int i = 0; i < numWords; i++)
+      order[i] = i;
+    for (int i = numWords; i > 1; i--) {
+      int j = shuffleRand.nextInt(i);
+      int tmp = order[i - 1];
+      order[i - 1] = order[j];
+      order[j] = tmp;
+    }
+
+    int totalBytes = 0;
+    for (int i = 0; i < numWords; i++)
+      totalBytes += ends[i] - starts[i];
+
+    ByteBuffer bytes = ByteBuffer.allocateDirect(totalBytes);
+    int[] offsets = new int[numWords + 1];
+    int maxLength = 0;
+    BitSet needsJsonEscape = new BitSet();
+    for (int i = 0; i < numWords; i++) {
+      int w = order[i];
+      int len = ends[w] - starts[w];
+      offsets[i] = bytes.position();
+      bytes.put(raw, starts[w], len);
+      if (len > maxLength)
+        maxLength = len;
+      for (int b = starts[w]; b < ends[w]; b++) {
+        if (raw[b] == '"' || raw[b] == '\\' || (raw[b] >= 0 && raw[b] < 0x20)) {
+          needsJsonEscape.set(i);
+          break;
+        }
+      }
+    }
+    offsets[numWords] = bytes.position();
+
+    return new WordArena(bytes, offsets, maxLength, needsJsonEscape);
+  }
+
+  public int size() {
+    return strings.length;
+  }
+
+  /**
+   * Length of the word in UTF-8 bytes.
+   */
+  public int length(int index) {
+    return offsets[index + 1] - offsets[index];
+  }
+
+  /**
+   * True if the word can be copied into a JSON string as is.
+   */
+  public boolean isJsonSafe(int index) {
+    return !needsJsonEscape.get(index);
+  }
+
+  public byte byteAt(int index, int pos) {
+    return bytes.get(offsets[index] + pos);
+  }
+
+  public int maxLength() {
+    return maxLength;
+  }
+
+  /**
+   * Copies the UTF-8 bytes of a word into dst at pos, returning the position after the word;
+   * the caller must make sure dst has room for length(index) more bytes.
+   */
+  public int copyTo(int index, byte[] dst, int pos) {
+    int end = offsets[index + 1];
+    for (int b = offsets[index]; b < end; b++)
+      dst[pos++] = bytes.get(b);
+    return pos;
+  }
+
+  public String word(int index) {
+    String word = strings[index];
+    if (word == null) {
+      // racing threads just build equal Strings, which is harmless
+      byte[] utf8 = new byte[length(index)];
+      copyTo(index, utf8, 0);
+      word = new String(utf8, UTF8);
+      strings[index] = word;
+    }
+    return word;
+  }
+}
@@ -0,0 +1,103 @@
+package com.lucidworks;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Relative weights of the kinds of writes in a mixed indexing workload, parsed from a spec
+ * like add=70,overwrite=10,atomic=10,inplace=5,delete=4,dbq=1; kinds that aren't listed
+ * aren't sent.
+ */
+public class WorkloadMix {
+
+  public static enum Op {
+    ADD("add"),                     // new doc with a new id
+    OVERWRITE("overwrite"),         // full doc for an id that was already sent
+    ATOMIC("atomic"),               // set / inc of some fields of an existing doc
+    INPLACE("inplace"),             // inc of a single numeric field, which Solr 6.5+ can apply in place
+    DELETE("delete"),               // delete by id
+    DELETE_BY_QUERY("dbq");         // delete by query on a few ids
+
+    final String key;
+
+    Op(String key) {
+      this.key = key;
+    }
+
+    /**
+     * True if the op works on a doc that was already indexed.
+     */
+    boolean needsExistingId() {
+      return this != ADD;
+    }
+  }
+
+  private static final Op[] OPS = Op.values();
+
+  private final int[] weights = new int[OPS.length];
+  private final int total;
+
+  public WorkloadMix(String spec) {
+    int sum = 0;
+    for (String part : spec.split(",")) {
+      part = part.trim();
+      if (part.length() == 0)
+        continue;
+
+      int eq = part.indexOf('=');
+      if (eq == -1)
+        throw new IllegalArgumentException("Invalid workload mix entry [" + part + "] in [" + spec + "]; expected op=weight");
+
+      Op op = forKey(part.substring(0, eq).trim().toLowerCase(Locale.ROOT));
+      int weight;
+      try {
+        weight = Integer.parseInt(part.substring(eq + 1).trim());
+      } catch (NumberFormatException nfe) {
+        throw new IllegalArgumentException("Invalid weight for " + op.key + " in workload mix [" + spec + "]");
+      }
+      if (weight < 0)
+        throw new IllegalArgumentException("Weight for " + op.key + " can't be negative in workload mix [" + spec + "]");
+      weights[op.ordinal()] += weight;
+      sum += weight;
+    }
+    if (sum <= 0)
+      throw new IllegalArgumentException("Workload mix [" + spec + "] doesn't have any ops with a weight > 0");
+    if (weights[Op.ADD.ordinal()] == 0)
+      throw new IllegalArgumentException("Workload mix [" + spec + "] needs some adds, so there are ids to update and delete");
+    this.total = sum;
+  }
+
+  static Op forKey(String key) {
+    for (Op op : OPS) {
+      if (op.key.equals(key))
+        return op;
+    }
+    throw new IllegalArgumentException("Unknown workload mix op [" + key + "]; expected one of add, overwrite, atomic, inplace, delete, dbq");
+  }
+
+  public boolean includes(Op op) {
+    return weights[op.ordinal()] > 0;
+  }
+
+  public Op next(Random rand) {
+    int r = rand.nextInt(total);
+    for (int o = 0; o < OPS.length; o++) {
+      r -= weights[o];
+      if (r < 0)
+        return OPS[o];
+    }
+    return Op.ADD; // not reached
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Op op : OPS) {
+      if (weights[op.ordinal()] > 0) {
+        if (sb.length() > 0)
+          sb.append(',');
+        sb.append(op.key).append('=').append(weights[op.ordinal()]);
+      }
+    }
+    return sb.toString();
+  }
+}
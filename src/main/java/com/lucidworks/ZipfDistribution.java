@@ -0,0 +1,124 @@
+package com.lucidworks;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Zipf distribution over [0..cardinality), where the probability of rank k is proportional to
+ * 1/(k+1)^exponent. Sampling uses Vose's alias method, so each sample costs one call to
+ * Random.nextDouble and two array reads, regardless of cardinality.
+ *
+ * The alias table takes 12 bytes per rank and is immutable once built, so instances are
+ * shared by all threads; use get to look up (or build) the table for a (cardinality, exponent)
+ * pair.
+ */
+public final class ZipfDistribution {
+
+  public static final double DEFAULT_EXPONENT = 1.0d;
+
+  // keeps the alias table under ~200MB
+  static final int MAX_CARDINALITY = 1 << 24;
+
+  private static final ConcurrentMap<String, ZipfDistribution> cache =
+    new ConcurrentHashMap<String, ZipfDistribution>();
+
+  public static ZipfDistribution get(int cardinality, double exponent) {
+    String key = cardinality + ":" + exponent;
+    ZipfDistribution zipf = cache.get(key);
+    if (zipf == null) {
+      // building is deterministic, so it doesn't matter if two threads race to build the same table
+      zipf = new ZipfDistribution(cardinality, exponent);
+      ZipfDistribution existing = cache.putIfAbsent(key, zipf);
+      if (existing != null)
+        zipf = existing;
+    }
+    return zipf;
+  }
+
+  private final int cardinality;
+  private final double exponent;
+  private final double[] prob;
+  private final int[] alias;
+
+  public ZipfDistribution(int cardinality, double exponent) {
+    if (cardinality <= 0 || cardinality > MAX_CARDINALITY)
+      throw new IllegalArgumentException("Zipf cardinality must be between 1 and " + MAX_CARDINALITY +
+        ", not " + cardinality);
+    if (exponent < 0 || Double.isNaN(exponent) || Double.isInfinite(exponent))
+      throw new IllegalArgumentException("Zipf exponent must be >= 0, not " + exponent);
+
+    this.cardinality = cardinality;
+    this.exponent = exponent;
+    this.prob = new double[cardinality];
+    this.alias = new int[cardinality];
+
+    // scale each weight so the average is 1
+    double[] scaled = new double[cardinality];
+    double sum = 0d;
+    for (int k = 0; k < cardinality; k++) {
+      scaled[k] = Math.pow(k + 1, -exponent);
+      sum += scaled[k];
+    }
+
+    int[] small = new int[cardinality];
+    int[] large = new int[cardinality];
+    int numSmall = 0, numLarge = 0;
+    for (int k = 0; k < cardinality; k++) {
+      scaled[k] = scaled[k] * cardinality / sum;
+      if (scaled[k] < 1d)
+        small[numSmall++] = k;
+      else
+        large[numLarge++] = k;
+    }
+
+    while (numSmall > 0 && numLarge > 0) {
+      int s = small[--numSmall];
+      int l = large[--numLarge];
+      prob[s] = scaled[s];
+      alias[s] = l;
+      scaled[l] = (scaled[l] + scaled[s]) - 1d;
+      if (scaled[l] < 1d)
+        small[numSmall++] = l;
+      else
+        large[numLarge++] = l;
+    }
+
+    // anything left over is only off from 1 due to rounding
+    while (numLarge > 0) {
+      int l = large[--numLarge];
+      prob[l] = 1d;
+      alias[l] = l;
+    }
+    while (numSmall > 0) {
+      int s = small[--numSmall];
+      prob[s] = 1d;
+      alias[s] = s;
+    }
+  }
+
+  public int getCardinality() {
+    return cardinality;
+  }
+
+  public double getExponent() {
+    return exponent;
+  }
+
+  /**
+   * Returns the next rank in [0..cardinality), where 0 is the most likely.
+   */
+  public int next(Random rand) {
+    // use the integer part of one uniform draw to pick the column and the fraction to
+    // pick between the column and its alias
+    double x = rand.nextDouble() * cardinality;
+    int k = (int) x;
+    if (k >= cardinality)
+      k = cardinality - 1;
+    return (x - k) < prob[k] ? k : alias[k];
+  }
+
+  public String toString() {
+    return "Zipf(" + cardinality + ", " + exponent + ")";
+  }
+}
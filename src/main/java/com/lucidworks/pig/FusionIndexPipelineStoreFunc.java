@@ -25,11 +25,10 @@ import org.apache.solr.common.SolrException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Simple Pig StoreFunc for indexing documents to a cluster of indexing pipeline endpoints.
@@ -57,9 +56,31 @@ public class FusionIndexPipelineStoreFunc extends StoreFunc {
   protected String fusionPass;
   protected String fusionRealm;
   protected String endpoints;
-  private ExecutorService executor = null;
+  // how long to wait for a batch that's in flight before giving up on it
+  private static final int BATCH_TIMEOUT_SECS = 600;
+
+  // a batch that was posted async, held on to until it's done so its docs can be re-sent one by one
+  static class PendingBatch implements FusionPipelineClient.BatchCallback {
+    final List docs;
+    final long startMs = System.currentTimeMillis();
+    volatile long elapsedMs = 0;
+    Future<Integer> future;
+
+    PendingBatch(List docs) {
+      this.docs = docs;
+    }
+
+    public void completed(int numDocs) {
+      elapsedMs = System.currentTimeMillis() - startMs;
+    }
+
+    public void failed(Exception exc) {
+      elapsedMs = System.currentTimeMillis() - startMs;
+    }
+  }
 
   protected List batch = new ArrayList();
+  protected List<PendingBatch> pending = new LinkedList<PendingBatch>();
   protected int batchSize = 100;
   protected int batchCount = 0;
   protected int docCount = 0;
@@ -129,16 +150,8 @@ public class FusionIndexPipelineStoreFunc extends StoreFunc {
 
         log.info(String.format("Sending batch %d to server at docCount: %d", batchCount, docCount));
 
-        long _startMs = System.currentTimeMillis();
-
-        if (sendBatchWithTimeout(batch, 600)) {
-          incrementCounter(Counters.NUM_DOCS_INDEXED, batchSize);
-        }
-
-        long _diffMs = (System.currentTimeMillis() - _startMs);
-        if (_diffMs > 10000) {
-          incrementCounter(Counters.SLOW_BATCHES, 1);
-        }
+        sendBatchAsync();
+        checkPending(false);
 
         ++batchCount;
 
@@ -148,80 +161,55 @@ public class FusionIndexPipelineStoreFunc extends StoreFunc {
           reporter.setStatus(logMsg);
           log.info(logMsg);
         }
-
-        batch.clear();
       }
     } catch (Exception e) {
       handleSolrServerException(input, e);
     }
   }
 
-  protected boolean sendBatchWithTimeout(final List theBatch, final int timeoutSecs) throws IOException {
-
-    synchronized (this) {
-      if (executor == null) {
-        executor = Executors.newCachedThreadPool();
-      }
-    }
-
-    Callable<Object> task = new Callable<Object>() {
-      public Object call() {
-        try {
-          FusionIndexPipelineStoreFunc.this.pipelineClient.postBatchToPipeline(theBatch);
-          return Boolean.TRUE;
-        } catch (Exception exc) {
-          log.error("{In java.util.concurrent.Callable} Failed to send batch after " + timeoutSecs + " secs due to: " + exc.toString());
-          return Boolean.FALSE;
-        }
-      }
-    };
+  /**
+   * Posts the current batch on the client's async transport and starts a new one; this only
+   * blocks while the client has as many batches in flight as it allows.
+   */
+  protected void sendBatchAsync() throws Exception {
+    PendingBatch sending = new PendingBatch(batch);
+    sending.future = pipelineClient.postBatchToPipelineAsync(batch, sending);
+    pending.add(sending);
+    batch = new ArrayList();
+  }
 
-    boolean sentBatchOk = false;
-    Future<Object> future = executor.submit(task);
-    try {
-      Object result = future.get(timeoutSecs, TimeUnit.SECONDS);
-      if (result != null) {
-        Boolean tf = (Boolean) result;
-        sentBatchOk = tf.booleanValue();
-      }
-    } catch (java.util.concurrent.TimeoutException e) {
-      log.error("Send batch " + batchCount + " timed out after " + timeoutSecs + " secs due to: " + e);
-      incrementCounter(Counters.BATCHES_TIMED_OUT, 1);
-      try {
-        future.cancel(true);
-      } catch (Exception ignore) {
+  /**
+   * Counts the docs in batches that are done, re-sending the docs of any that failed (or that
+   * are still going after BATCH_TIMEOUT_SECS) one by one; if waitForAll, waits for every batch
+   * in flight.
+   */
+  protected void checkPending(boolean waitForAll) {
+    for (Iterator<PendingBatch> it = pending.iterator(); it.hasNext(); ) {
+      PendingBatch sent = it.next();
+      if (!waitForAll && !sent.future.isDone()) {
+        continue;
       }
 
-      // re-try the task with new SolrClient
-      future = executor.submit(task);
       try {
-        Object result = future.get(timeoutSecs, TimeUnit.SECONDS);
-        if (result != null) {
-          Boolean tf = (Boolean) result;
-          sentBatchOk = tf.booleanValue();
-          if (sentBatchOk) {
-            incrementCounter(Counters.BATCHES_RECOVERED, 1);
-          }
+        int numDocs = sent.future.get(BATCH_TIMEOUT_SECS, TimeUnit.SECONDS);
+        incrementCounter(Counters.NUM_DOCS_INDEXED, numDocs);
+        if (sent.elapsedMs > 10000) {
+          incrementCounter(Counters.SLOW_BATCHES, 1);
         }
-      } catch (Exception secondTryFailed) {
-        log.error("Failed to send batch with timeout " + timeoutSecs + " secs due to: " + secondTryFailed);
+      } catch (TimeoutException e) {
+        log.error("Send batch timed out after " + BATCH_TIMEOUT_SECS + " secs due to: " + e);
+        incrementCounter(Counters.BATCHES_TIMED_OUT, 1);
+        recoverBatch(sent.docs, e);
+      } catch (ExecutionException e) {
         incrementCounter(Counters.BATCHES_FAILED, 1);
-        try {
-          future.cancel(true);
-        } catch (Exception ignore) {
-        }
-      }
-
-    } catch (Exception exc) {
-      log.error("Failed to send batch with timeout " + timeoutSecs + " secs due to: " + exc);
-      incrementCounter(Counters.BATCHES_FAILED, 1);
-      try {
-        future.cancel(true);
-      } catch (Exception ignore) {
+        Throwable cause = e.getCause();
+        recoverBatch(sent.docs, (cause instanceof Exception) ? (Exception) cause : e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        recoverBatch(sent.docs, e);
       }
+      it.remove();
     }
-
-    return sentBatchOk;
   }
 
   protected Map<String,Object> tupleToJsonDoc(Tuple input) {
@@ -284,48 +272,63 @@ public class FusionIndexPipelineStoreFunc extends StoreFunc {
   }
 
   /**
-   * Error handling for batch mode and single doc mode.
+   * Error handling for a failed batch: all we can do is re-send its docs one by one, so the bad
+   * ones are counted and the rest are indexed.
    */
-  protected void handleSolrServerException(Tuple input, Exception e) throws IOException {
+  protected void recoverBatch(List docs, Exception e) {
     Throwable rootCause = SolrException.getRootCause(e);
 
-    if (batchSize > 1) {
-      // for batches, all we can do is fail
-      int count = (batch != null ? batch.size() : 1);
-      log.error(String.format("Failed to add batch containing %d inserts due to: %s", count, rootCause.getMessage()), rootCause);
+    // for batches, all we can do is fail
+    int count = (docs != null ? docs.size() : 1);
+    log.error(String.format("Failed to add batch containing %d inserts due to: %s", count, rootCause.getMessage()), rootCause);
 
-      log.error("Attempting to add batch docs one-by-one ... ");
-      if (batch != null) {
-        int recovered = 0; // how many in the batch were we able to recover?
-        int errorsWhileRecovering = 0;
-        for (int j=0; j < batch.size(); j++) {
-          Map<String,Object> doc = (Map<String,Object>)batch.get(j);
-          try {
-            index(doc);
-            ++recovered;
-          } catch (Exception ex) {
-            ++errorsWhileRecovering;
-
-            // note: don't call handleSolrServerException here ... handle ex manually
-            String docId = (String) doc.get("id");
-            log.error(String.format("Failed to index document %s due to %s", docId, ex.getMessage()), ex);
-            incrementCounter(Counters.NUM_FAILURES, 1);
-
-            if (errorsWhileRecovering < 10) {
-              if (reporter != null) {
-                try {
-                  Counter counter = reporter.getCounter("FusionIndexPipelineStoreFunc-DocError", String.valueOf(docId));
-                  if (counter != null) {
-                    counter.increment(1);
-                  }
-                } catch (Exception ignore) {
+    log.error("Attempting to add batch docs one-by-one ... ");
+    if (docs != null) {
+      int recovered = 0; // how many in the batch were we able to recover?
+      int errorsWhileRecovering = 0;
+      for (int j=0; j < docs.size(); j++) {
+        Map<String,Object> doc = (Map<String,Object>)docs.get(j);
+        try {
+          index(doc);
+          ++recovered;
+        } catch (Exception ex) {
+          ++errorsWhileRecovering;
+
+          // note: don't call handleSolrServerException here ... handle ex manually
+          String docId = (String) doc.get("id");
+          log.error(String.format("Failed to index document %s due to %s", docId, ex.getMessage()), ex);
+          incrementCounter(Counters.NUM_FAILURES, 1);
+
+          if (errorsWhileRecovering < 10) {
+            if (reporter != null) {
+              try {
+                Counter counter = reporter.getCounter("FusionIndexPipelineStoreFunc-DocError", String.valueOf(docId));
+                if (counter != null) {
+                  counter.increment(1);
                 }
+              } catch (Exception ignore) {
               }
-            } // else there's something really wrong so don't flood the jobtracker with counters!!!
-          }
+            }
+          } // else there's something really wrong so don't flood the jobtracker with counters!!!
         }
+      }
+      log.info(String.format("Recovered %d of %d docs after failed batch.", recovered, count));
+      if (recovered == count) {
+        incrementCounter(Counters.BATCHES_RECOVERED, 1);
+      }
+    }
+  }
+
+  /**
+   * Error handling for batch mode and single doc mode.
+   */
+  protected void handleSolrServerException(Tuple input, Exception e) throws IOException {
+    Throwable rootCause = SolrException.getRootCause(e);
+
+    if (batchSize > 1) {
+      recoverBatch(batch, e);
+      if (batch != null) {
         batch.clear();
-        log.info(String.format("Recovered %d of %d docs after failed batch.", recovered, count));
       }
     } else {
       String tupleAsStr = "??";
@@ -383,21 +386,18 @@ public class FusionIndexPipelineStoreFunc extends StoreFunc {
             // we have one final batch to commit
             try {
               log.info("Executing final batch of size " + FusionIndexPipelineStoreFunc.this.batch.size());
-
-              if (sendBatchWithTimeout(batch, 600)) {
-                incrementCounter(Counters.NUM_DOCS_INDEXED, FusionIndexPipelineStoreFunc.this.batch.size());
-              }
-
-              if (reporter != null) {
-                reporter.progress();
-              }
-
-              batch.clear();
+              sendBatchAsync();
             } catch (Exception e) {
               FusionIndexPipelineStoreFunc.this.handleSolrServerException(null, e);
             }
           }
 
+          // wait for the batches still in flight, re-sending the docs of any that failed
+          checkPending(true);
+          if (reporter != null) {
+            reporter.progress();
+          }
+
           // reset status counters
           docCount = 0;
           batchCount = 0;
@@ -436,20 +436,18 @@ public class FusionIndexPipelineStoreFunc extends StoreFunc {
             // we have one final batch to commit
             try {
               log.info("In getRecordWriter.close(), executing final batch of size " + FusionIndexPipelineStoreFunc.this.batch.size());
-              if (sendBatchWithTimeout(batch, 600)) {
-                incrementCounter(Counters.NUM_DOCS_INDEXED, FusionIndexPipelineStoreFunc.this.batch.size());
-              }
-
-              if (reporter != null) {
-                reporter.progress();
-              }
-
-              batch.clear();
+              sendBatchAsync();
             } catch (Exception e) {
               log.error("Failure in RecordWriter.close()", e);
             }
           }
 
+          // wait for the batches still in flight, re-sending the docs of any that failed
+          checkPending(true);
+          if (reporter != null) {
+            reporter.progress();
+          }
+
           // commit all un-committed docs now ...
           FusionIndexPipelineStoreFunc.this.commit();
 
@@ -13,6 +13,8 @@ import org.apache.pig.impl.util.Utils;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.SolrInputField;
 
+import com.lucidworks.ChildDocSpec;
+import com.lucidworks.DocRandom;
 import com.lucidworks.IndexingSampler;
 import com.lucidworks.IndexingSampler.FieldSpec;
 
@@ -20,6 +22,12 @@ import org.apache.solr.common.util.DateUtil;
 
 /**
  * A Pig UDF that creates synthetic documents for Solr performance benchmarking.
+ *
+ * The docs generated for a key only depend on the seed and the key, so re-running a script
+ * produces the same corpus regardless of how the keys are split up across tasks.
+ *
+ * Multi-valued (_ss) fields are bags of single-value tuples. If child docs are enabled, each
+ * doc tuple ends with a children bag holding a tuple per child doc.
  */
 public class SyntheticDoc extends EvalFunc<DataBag> {
 
@@ -27,44 +35,76 @@ public class SyntheticDoc extends EvalFunc<DataBag> {
     private TupleFactory tupleFactory = TupleFactory.getInstance();
 
     private IndexingSampler datagen;
-    private Random random;
+    private DocRandom random;
+    private long seed;
     private int numDocs;
     private FieldSpec[] fields;
+    private ChildDocSpec childDocs;
     
     public SyntheticDoc(String numDocsPerKey, String seed) {
+      this(numDocsPerKey, seed, "", "");
+    }
+
+    /**
+     * @param docProfile doc profile (file or classpath resource) to use instead of the built-in fields, or empty
+     * @param childDocs child doc fan-out such as 0:20:z, or empty for no child docs
+     */
+    public SyntheticDoc(String numDocsPerKey, String seed, String docProfile, String childDocs) {
       datagen = new IndexingSampler();
       Map<String,String> params = new HashMap<String,String>();
       params.put("ENDPOINT_TYPE", "datagenonly");
+      params.put("DOC_PROFILE", docProfile);
+      params.put("CHILD_DOCS", childDocs);
 
       datagen.setup(params);
 
-      random = new Random();
+      random = new DocRandom();
+      this.seed = Long.parseLong(seed);
       
       fields = datagen.getFields();      
+      this.childDocs = datagen.getChildDocs();
       numDocs = Integer.parseInt(numDocsPerKey);
     }
     
     public DataBag exec(Tuple input) throws IOException {
         DataBag outputBag = bagFactory.newDefaultBag();        
         String idBase = (String)input.get(0);        
+        long keySeed = DocRandom.seedFor(seed, idBase);
         for (int d=0; d < numDocs; d++) {
           String docId = String.format("%s_%d", idBase, d);
+          random.setDoc(keySeed, d);
           SolrInputDocument doc = datagen.buildSolrInputDocument(docId, random);
-          Tuple outputTuple = tupleFactory.newTuple(fields.length + 1);
-          outputTuple.set(0, docId);
-          int tuplePos = 0;
-          for (FieldSpec f : fields)
-            outputTuple.set(++tuplePos, toPigValue(doc.getField(f.name)));            
+          Tuple outputTuple = toTuple(doc, fields, (childDocs != null) ? 1 : 0);
+          if (childDocs != null) {
+            DataBag children = bagFactory.newDefaultBag();
+            if (doc.hasChildDocuments()) {
+              for (SolrInputDocument child : doc.getChildDocuments())
+                children.add(toTuple(child, childDocs.getFields(), 0));
+            }
+            outputTuple.set(fields.length + 1, children);
+          }
           outputBag.add(outputTuple);
         }
         return outputBag;
     }
+
+    protected Tuple toTuple(SolrInputDocument doc, FieldSpec[] tupleFields, int extra) throws IOException {
+      Tuple tuple = tupleFactory.newTuple(tupleFields.length + 1 + extra);
+      tuple.set(0, doc.getFieldValue("id"));
+      int tuplePos = 0;
+      for (FieldSpec f : tupleFields)
+        tuple.set(++tuplePos, toPigValue(doc.getField(f.name)));
+      return tuple;
+    }
     
     @Override
     public Schema outputSchema(Schema input) {
         StringBuilder sb = new StringBuilder();
-        for (int f=0; f < fields.length; f++) {
-          sb.append(",").append(fields[f].name).append(":").append(toPigType(fields[f].name));
+        appendFieldSchema(sb, fields);
+        if (childDocs != null) {
+          sb.append(",children: bag {c: tuple(id:chararray");
+          appendFieldSchema(sb, childDocs.getFields());
+          sb.append(")}");
         }
         
         String serializedSchema = "docs: bag {t: tuple(id:chararray"+sb.toString()+")}";
@@ -81,6 +121,12 @@ public class SyntheticDoc extends EvalFunc<DataBag> {
         return schema;
     }
     
+    protected void appendFieldSchema(StringBuilder sb, FieldSpec[] schemaFields) {
+      for (int f=0; f < schemaFields.length; f++) {
+        sb.append(",").append(schemaFields[f].name).append(":").append(toPigType(schemaFields[f].name));
+      }
+    }
+
     protected Object toPigValue(SolrInputField field) {
       if (field == null)
         return null;
@@ -91,10 +137,13 @@ public class SyntheticDoc extends EvalFunc<DataBag> {
         return val;
       
       String suffix = name.substring(name.lastIndexOf("_")+1);      
-      if (val instanceof Collection) {
-        Collection vals = (Collection)val;
-        // TODO: support multi-valued fields
-        return null;
+      if ("ss".equals(suffix) || val instanceof Collection) {
+        // a field with a single value holds it directly rather than in a Collection
+        Collection vals = (val instanceof Collection) ? (Collection)val : Collections.singletonList(val);
+        DataBag bag = bagFactory.newDefaultBag();
+        for (Object v : vals)
+          bag.add(tupleFactory.newTuple(v));
+        return bag;
       } else {
         if ("tdt".equals(suffix))
           return DateUtil.getThreadLocalDateFormat().format((Date)val);
@@ -107,7 +156,9 @@ public class SyntheticDoc extends EvalFunc<DataBag> {
     
     protected String toPigType(String name) {
       String suffix = name.substring(name.lastIndexOf("_")+1);
-      if ("i".equals(suffix))
+      if ("ss".equals(suffix))
+        return "bag {v: tuple(value:chararray)}";
+      else if ("i".equals(suffix))
         return "int";
       else if ("f".equals(suffix))
         return "float";
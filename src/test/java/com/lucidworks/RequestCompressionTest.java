@@ -0,0 +1,112 @@
+package com.lucidworks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.entity.ContentProducer;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class RequestCompressionTest {
+
+  private static final String[] WORDS = {"solr", "fusion", "shard", "replica", "leader", "commit", "segment", "merge"};
+
+  // a JSON-ish body with enough variety that gzip has real work to do
+  private static byte[] body(int numDocs) {
+    Random rand = new Random(5150);
+    StringBuilder sb = new StringBuilder("[");
+    for (int d = 0; d < numDocs; d++) {
+      if (d > 0) sb.append(',');
+      sb.append("{\"id\":\"doc_").append(d).append("\",\"text_en\":\"");
+      for (int w = 0; w < 40; w++)
+        sb.append(WORDS[rand.nextInt(WORDS.length)]).append(rand.nextInt(1000)).append(' ');
+      sb.append("\"}");
+    }
+    return sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static ContentProducer producer(final byte[] bytes) {
+    return new ContentProducer() {
+      public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+      }
+    };
+  }
+
+  private static byte[] inflate(byte[] gzipped) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int read;
+    while ((read = in.read(buf)) != -1)
+      out.write(buf, 0, read);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testRoundTripAndByteCounts() throws Exception {
+    byte[] raw = body(2000);
+    long smallest = Long.MAX_VALUE;
+    for (int level : new int[]{1, 6, 9}) {
+      MetricRegistry metrics = new MetricRegistry();
+      ContentProducer compressed = new RequestCompression(level, metrics).compress(producer(raw));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      compressed.writeTo(out);
+      assertArrayEquals("gzip:" + level + " didn't inflate to the original body", raw, inflate(out.toByteArray()));
+      assertEquals(raw.length, metrics.counter("compression.rawBytes").getCount());
+      assertEquals(out.size(), metrics.counter("compression.compressedBytes").getCount());
+      assertTrue("gzip:" + level + " didn't compress: " + out.size() + " of " + raw.length, out.size() < raw.length / 2);
+      smallest = Math.min(smallest, out.size());
+
+      // written again, as when a request is re-tried
+      ByteArrayOutputStream again = new ByteArrayOutputStream();
+      compressed.writeTo(again);
+      assertArrayEquals(out.toByteArray(), again.toByteArray());
+      assertEquals(2L * raw.length, metrics.counter("compression.rawBytes").getCount());
+      assertEquals(2, metrics.timer("compression.cpu").getCount());
+    }
+  }
+
+  @Test
+  public void testCpuTimeLeavesOutSlowWrites() throws Exception {
+    byte[] raw = body(4000);
+    MetricRegistry metrics = new MetricRegistry();
+    ContentProducer compressed = new RequestCompression(1, metrics).compress(producer(raw));
+
+    // stands in for a slow socket
+    final long[] sleptNanos = new long[1];
+    OutputStream slow = new FilterOutputStream(new ByteArrayOutputStream()) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+        out.write(b, off, len);
+        sleptNanos[0] += System.nanoTime() - startNanos;
+      }
+    };
+    compressed.writeTo(slow);
+
+    long cpuNanos = metrics.timer("compression.cpu").getSnapshot().getMax();
+    assertTrue("expected several writes to the slow stream", sleptNanos[0] >= TimeUnit.MILLISECONDS.toNanos(100));
+    assertTrue("compression.cpu was " + cpuNanos + " ns, which includes time blocked on the slow stream (" + sleptNanos[0] + " ns)",
+      cpuNanos > 0 && cpuNanos < sleptNanos[0] / 2);
+  }
+}
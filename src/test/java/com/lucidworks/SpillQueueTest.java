@@ -0,0 +1,191 @@
+package com.lucidworks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillQueueTest {
+
+  // room for two 20-byte records (plus their lengths) per segment, and the skip marker after them
+  private static final int SEGMENT_BYTES = 64;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static byte[] record(int n, int len) {
+    byte[] data = new byte[len];
+    Arrays.fill(data, (byte) n);
+    return data;
+  }
+
+  private static boolean append(SpillQueue spill, byte[] data) throws IOException {
+    return spill.append(data, 0, data.length);
+  }
+
+  private static String[] segmentFiles(File dir) {
+    String[] names = dir.list(new FilenameFilter() {
+      public boolean accept(File d, String name) {
+        return name.endsWith(SpillQueue.SEGMENT_SUFFIX);
+      }
+    });
+    Arrays.sort(names);
+    return names;
+  }
+
+  private static String segmentName(long seq) {
+    return String.format("%020d%s", seq, SpillQueue.SEGMENT_SUFFIX);
+  }
+
+  private static SpillQueue.Record pollExpecting(SpillQueue spill, int n, boolean recovered) {
+    SpillQueue.Record rec = spill.poll();
+    assertArrayEquals("record " + n, record(n, 20), rec.getData());
+    assertEquals("isRecovered for record " + n, recovered, rec.isRecovered());
+    return rec;
+  }
+
+  @Test
+  public void testResumeAfterOutOfOrderAcks() throws Exception {
+    File dir = tmp.newFolder("spill");
+    SpillQueue spill = new SpillQueue(dir, SEGMENT_BYTES, 1 << 20);
+    for (int n = 0; n < 5; n++)
+      assertTrue(append(spill, record(n, 20)));
+    assertEquals(5, spill.size());
+    // 0 and 1 in the first segment, 2 and 3 in the second, 4 in the third
+    assertArrayEquals(new String[]{segmentName(0), segmentName(1), segmentName(2)}, segmentFiles(dir));
+
+    SpillQueue.Record[] recs = new SpillQueue.Record[4];
+    for (int n = 0; n < 4; n++)
+      recs[n] = pollExpecting(spill, n, false);
+    // record 0 is still out, so none of these move the head
+    spill.ack(recs[1]);
+    spill.ack(recs[3]);
+    spill.ack(recs[2]);
+    assertEquals(3, segmentFiles(dir).length);
+    spill.close();
+
+    // as if the JVM died: everything from record 0 on comes back
+    spill = new SpillQueue(dir, SEGMENT_BYTES, 1 << 20);
+    assertEquals(5, spill.size());
+    assertFalse(spill.isEmpty());
+    for (int n = 0; n < 5; n++)
+      recs[Math.min(n, 3)] = pollExpecting(spill, n, true);
+    assertNull(spill.poll());
+
+    // re-open after acking 0 to 2 (in that order this time); the first segment is gone
+    spill.close();
+    spill = new SpillQueue(dir, SEGMENT_BYTES, 1 << 20);
+    SpillQueue.Record r0 = pollExpecting(spill, 0, true);
+    SpillQueue.Record r1 = pollExpecting(spill, 1, true);
+    SpillQueue.Record r2 = pollExpecting(spill, 2, true);
+    spill.ack(r1);
+    spill.ack(r0);
+    assertArrayEquals(new String[]{segmentName(1), segmentName(2)}, segmentFiles(dir));
+    spill.ack(r2);
+    spill.close();
+
+    spill = new SpillQueue(dir, SEGMENT_BYTES, 1 << 20);
+    assertEquals(2, spill.size());
+    SpillQueue.Record r3 = pollExpecting(spill, 3, true);
+    SpillQueue.Record r4 = pollExpecting(spill, 4, true);
+    assertNull(spill.poll());
+    spill.ack(r4);
+    spill.ack(r3);
+    assertTrue(spill.isEmpty());
+    // only the segment being written to is left
+    assertArrayEquals(new String[]{segmentName(2)}, segmentFiles(dir));
+
+    // new records after a restart aren't flagged as recovered
+    assertTrue(append(spill, record(5, 20)));
+    spill.ack(pollExpecting(spill, 5, false));
+    spill.close();
+
+    spill = new SpillQueue(dir, SEGMENT_BYTES, 1 << 20);
+    assertTrue(spill.isEmpty());
+    assertNull(spill.poll());
+    spill.close();
+  }
+
+  @Test
+  public void testTornRecordIsNotReadBack() throws Exception {
+    File dir = tmp.newFolder("spill");
+    SpillQueue spill = new SpillQueue(dir, 256, 1 << 20);
+    assertTrue(append(spill, record(0, 20)));
+    assertTrue(append(spill, record(1, 20)));
+    spill.close();
+
+    // the JVM died while writing record 2: its bytes are there, but not its length
+    RandomAccessFile raf = new RandomAccessFile(new File(dir, segmentName(0)), "rw");
+    try {
+      raf.seek(2 * 24 + 4);
+      raf.write(record(2, 20));
+    } finally {
+      raf.close();
+    }
+
+    spill = new SpillQueue(dir, 256, 1 << 20);
+    assertEquals(2, spill.size());
+    SpillQueue.Record r0 = pollExpecting(spill, 0, true);
+    SpillQueue.Record r1 = pollExpecting(spill, 1, true);
+    assertNull(spill.poll());
+
+    // the next record goes where the torn one was
+    assertTrue(append(spill, record(7, 20)));
+    SpillQueue.Record r7 = pollExpecting(spill, 7, false);
+    spill.ack(r0);
+    spill.ack(r1);
+    spill.ack(r7);
+    spill.close();
+
+    spill = new SpillQueue(dir, 256, 1 << 20);
+    assertTrue(spill.isEmpty());
+    spill.close();
+  }
+
+  @Test
+  public void testRecordsThatDontFitStartANewSegment() throws Exception {
+    File dir = tmp.newFolder("spill");
+    SpillQueue spill = new SpillQueue(dir, SEGMENT_BYTES, 4 * SEGMENT_BYTES);
+    assertTrue(append(spill, record(0, 20)));
+    // 24 + 4 + 50 > 64, so the rest of the first segment is skipped
+    assertTrue(append(spill, record(1, 50)));
+    // bigger than a segment, so it gets a segment of its own
+    assertTrue(append(spill, record(2, 100)));
+    assertArrayEquals(new String[]{segmentName(0), segmentName(1), segmentName(2)}, segmentFiles(dir));
+    // 64 + 64 + 104 bytes of segments, so another full segment would go over maxBytes
+    assertFalse(append(spill, record(3, 60)));
+    spill.close();
+
+    RandomAccessFile raf = new RandomAccessFile(new File(dir, segmentName(0)), "r");
+    try {
+      raf.seek(24);
+      assertEquals(-1, raf.readInt());
+    } finally {
+      raf.close();
+    }
+
+    spill = new SpillQueue(dir, SEGMENT_BYTES, 4 * SEGMENT_BYTES);
+    assertEquals(3, spill.size());
+    int[] lens = {20, 50, 100};
+    for (int n = 0; n < 3; n++) {
+      SpillQueue.Record rec = spill.poll();
+      assertArrayEquals(record(n, lens[n]), rec.getData());
+      assertTrue(rec.isRecovered());
+      spill.ack(rec);
+    }
+    assertNull(spill.poll());
+    assertArrayEquals(new String[]{segmentName(2)}, segmentFiles(dir));
+    spill.close();
+  }
+}